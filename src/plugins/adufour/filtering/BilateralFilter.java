@@ -0,0 +1,201 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+import plugins.adufour.filtering.FilterToolbox.Axis;
+import plugins.adufour.vars.lang.VarBoolean;
+
+/**
+ * Edge-preserving smoothing (bilateral filter), approximated on a down-sampled bilateral grid
+ * (Paris and Durand). <br>
+ * Each plane is embedded into a coarse 3D grid (X, Y, intensity) sampled at the spatial and range
+ * sigmas: every pixel is accumulated ("splatted") into its nearest grid cell along with a unit
+ * weight, the grid is smoothed with the separable passes of
+ * {@link Convolution1D#convolve1D(double[][], double[][], int, int, int, double[], Axis, boolean)}
+ * (a Gaussian of one cell along each axis), and each pixel is read back ("sliced") by trilinear
+ * interpolation of the smoothed values divided by the smoothed weights. Since the grid shrinks as
+ * the spatial sigma grows, the cost is linear in the number of pixels and does not depend on the
+ * spatial sigma. <br>
+ * The number of intensity cells is bounded by {@link #MAX_GRID_DEPTH}: if the range sigma is too
+ * small with respect to the intensity range of a plane, a larger range sigma is used instead. <br>
+ * Stacks are filtered slice by slice.
+ * 
+ */
+public class BilateralFilter
+{
+	/**
+	 * Maximum number of cells of the grid along the intensity axis (including the margins)
+	 */
+	public static final int	MAX_GRID_DEPTH	= 256;
+	
+	/**
+	 * Applies the bilateral filter to each plane of the input sequence, and writes the result into
+	 * the output sequence (out-of-place)
+	 * 
+	 * @param input
+	 *            the input sequence (unchanged)
+	 * @param output
+	 *            the output sequence, with the same dimensions as the input (see
+	 *            {@link Convolution#createOutput(Sequence, DataType)}). Can be the input itself
+	 * @param sigmaSpatial
+	 *            the standard deviation of the spatial Gaussian (in pixels)
+	 * @param sigmaRange
+	 *            the standard deviation of the range (intensity) Gaussian, in the units of the
+	 *            data. Intensity differences well above this value are preserved. This value is
+	 *            raised (with a warning) if it would exceed {@link #MAX_GRID_DEPTH} intensity cells
+	 * @param stopFlag
+	 *            a flag that stops the process when set to true
+	 * @throws IllegalArgumentException
+	 *             if a sigma is not strictly positive
+	 */
+	public static void filter(Sequence input, Sequence output, double sigmaSpatial, double sigmaRange, VarBoolean stopFlag) throws IllegalArgumentException
+	{
+		if (sigmaSpatial <= 0 || sigmaRange <= 0) throw new IllegalArgumentException("Invalid argument: the sigmas must be strictly positive");
+		
+		int width = input.getSizeX();
+		int height = input.getSizeY();
+		
+		// channel bounds are collected while writing the result
+		OutputBounds bounds = new OutputBounds(output);
+		double[] _outXY = new double[width * height];
+		double effectiveSigmaRange = sigmaRange;
+		
+		output.beginUpdate();
+		
+		try
+		{
+			for (int t = 0; t < input.getSizeT(); t++)
+				for (int z = 0; z < input.getSizeZ(); z++)
+				{
+					for (int c = 0; c < input.getSizeC(); c++)
+					{
+						double sigma = filter(input.getDataXYAsDouble(t, z, c), width, height, sigmaSpatial, sigmaRange, _outXY);
+						effectiveSigmaRange = Math.max(effectiveSigmaRange, sigma);
+						bounds.write(_outXY, output, t, z, c);
+					}
+					
+					if (stopFlag.getValue()) return;
+				}
+		}
+		finally
+		{
+			output.endUpdate();
+			bounds.apply(output);
+			
+			if (effectiveSigmaRange > sigmaRange)
+			{
+				System.out.println("Warning (BilateralFilter): range sigma too small for the intensity range. Using a range sigma of up to " + effectiveSigmaRange);
+			}
+		}
+	}
+	
+	/**
+	 * Applies the bilateral filter to a plane
+	 * 
+	 * @param in
+	 *            the plane to filter
+	 * @param width
+	 *            the plane width
+	 * @param height
+	 *            the plane height
+	 * @param sigmaSpatial
+	 *            the standard deviation of the spatial Gaussian (in pixels)
+	 * @param sigmaRange
+	 *            the standard deviation of the range Gaussian (in the units of the data)
+	 * @param out
+	 *            the filtered plane (can be the input itself)
+	 * @return the range sigma actually used, i.e. the given one, or a larger one if the intensity
+	 *         range of the plane spans more than {@link #MAX_GRID_DEPTH} cells of the given sigma
+	 */
+	public static double filter(double[] in, int width, int height, double sigmaSpatial, double sigmaRange, double[] out)
+	{
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for (double value : in)
+		{
+			if (value < min) min = value;
+			if (value > max) max = value;
+		}
+		
+		// Gaussian of one cell, and a margin of cells such that nothing leaks through the edges
+		double[] kernel = Kernel1D.gaussian(1).getData();
+		int pad = kernel.length >> 1;
+		
+		sigmaRange = Math.max(sigmaRange, (max - min) / (MAX_GRID_DEPTH - 1 - 2 * pad));
+		
+		int gridWidth = (int) ((width - 1) / sigmaSpatial) + 1 + 2 * pad;
+		int gridHeight = (int) ((height - 1) / sigmaSpatial) + 1 + 2 * pad;
+		int gridDepth = (int) ((max - min) / sigmaRange) + 1 + 2 * pad;
+		
+		// values and weights are interleaved, and smoothed together
+		double[][] grid = new double[gridDepth][gridWidth * gridHeight * 2];
+		double[][] temp = new double[gridDepth][gridWidth * gridHeight * 2];
+		
+		// splat
+		for (int y = 0, xy = 0; y < height; y++)
+		{
+			int gy = (int) Math.round(y / sigmaSpatial) + pad;
+			
+			for (int x = 0; x < width; x++, xy++)
+			{
+				int gx = (int) Math.round(x / sigmaSpatial) + pad;
+				int gz = (int) Math.round((in[xy] - min) / sigmaRange) + pad;
+				
+				int cell = (gy * gridWidth + gx) * 2;
+				grid[gz][cell] += in[xy];
+				grid[gz][cell + 1] += 1;
+			}
+		}
+		
+		// blur
+		Convolution1D.convolve1D(grid, temp, gridWidth, gridHeight, 2, kernel, Axis.X, true);
+		Convolution1D.convolve1D(temp, grid, gridWidth, gridHeight, 2, kernel, Axis.Y, true);
+		Convolution1D.convolve1D(grid, temp, gridWidth, gridHeight, 2, kernel, Axis.Z, true);
+		
+		// slice
+		for (int y = 0, xy = 0; y < height; y++)
+		{
+			double fy = y / sigmaSpatial + pad;
+			int y0 = (int) fy;
+			double wy = fy - y0;
+			
+			for (int x = 0; x < width; x++, xy++)
+			{
+				double fx = x / sigmaSpatial + pad;
+				int x0 = (int) fx;
+				double wx = fx - x0;
+				
+				double fz = (in[xy] - min) / sigmaRange + pad;
+				int z0 = (int) fz;
+				double wz = fz - z0;
+				
+				double value = 0, weight = 0;
+				
+				for (int dz = 0; dz < 2; dz++)
+				{
+					double[] slice = temp[z0 + dz];
+					double cz = dz == 0 ? 1 - wz : wz;
+					
+					for (int dy = 0; dy < 2; dy++)
+					{
+						double cyz = cz * (dy == 0 ? 1 - wy : wy);
+						int row = (y0 + dy) * gridWidth;
+						
+						for (int dx = 0; dx < 2; dx++)
+						{
+							double coef = cyz * (dx == 0 ? 1 - wx : wx);
+							int cell = (row + x0 + dx) * 2;
+							
+							value += coef * slice[cell];
+							weight += coef * slice[cell + 1];
+						}
+					}
+				}
+				
+				out[xy] = weight > 0 ? value / weight : in[xy];
+			}
+		}
+		
+		return sigmaRange;
+	}
+}
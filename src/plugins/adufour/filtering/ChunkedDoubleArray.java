@@ -0,0 +1,236 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+import icy.type.collection.array.Array1DUtil;
+
+/**
+ * Long-indexed array of doubles, stored as a list of fixed-size chunks. <br>
+ * Java arrays (and therefore the planes of a {@link Sequence}) are limited to 2^31 elements,
+ * which very large planes (e.g. stitched whole-slide mosaics of 60000 x 60000 pixels) exceed.
+ * Such planes are stored as chunked arrays instead, assembled tile by tile (see
+ * {@link #readTile(Sequence, int, int, int, int, int, int)}), filtered with the row-based engines
+ * (see {@link Convolution1D#convolve(ChunkedDoubleArray[], ChunkedDoubleArray[], int, int, double[], double[], double[], boolean)}
+ * and {@link Convolution#convolve(ChunkedDoubleArray[], ChunkedDoubleArray[], int, int, Sequence, boolean)}),
+ * and extracted tile by tile.
+ * 
+ */
+public class ChunkedDoubleArray
+{
+	/**
+	 * Number of bits of the index within a chunk (i.e. chunks of 16M elements, 128MB)
+	 */
+	public static final int		CHUNK_BITS	= 24;
+	
+	private static final int	CHUNK_SIZE	= 1 << CHUNK_BITS;
+	
+	private static final int	CHUNK_MASK	= CHUNK_SIZE - 1;
+	
+	private final long			length;
+	
+	private final double[][]	chunks;
+	
+	/**
+	 * Creates a new array (filled with zeros)
+	 * 
+	 * @param length
+	 *            the number of elements
+	 */
+	public ChunkedDoubleArray(long length)
+	{
+		this.length = length;
+		
+		int nbChunks = (int) ((length + CHUNK_SIZE - 1) >> CHUNK_BITS);
+		chunks = new double[nbChunks][];
+		
+		for (int i = 0; i < nbChunks; i++)
+			chunks[i] = new double[(int) Math.min(CHUNK_SIZE, length - ((long) i << CHUNK_BITS))];
+	}
+	
+	/**
+	 * Creates the slices of a (possibly very large) stack
+	 * 
+	 * @param width
+	 *            the stack width
+	 * @param height
+	 *            the stack height
+	 * @param depth
+	 *            the stack depth
+	 * @return the slices of the stack, given as a [Z] array of XY arrays
+	 */
+	public static ChunkedDoubleArray[] createStack(int width, int height, int depth)
+	{
+		ChunkedDoubleArray[] stack = new ChunkedDoubleArray[depth];
+		
+		for (int z = 0; z < depth; z++)
+			stack[z] = new ChunkedDoubleArray((long) width * height);
+		
+		return stack;
+	}
+	
+	/**
+	 * @return the number of elements
+	 */
+	public long length()
+	{
+		return length;
+	}
+	
+	/**
+	 * @param index
+	 *            the element index
+	 * @return the element value
+	 */
+	public double get(long index)
+	{
+		return chunks[(int) (index >>> CHUNK_BITS)][(int) (index & CHUNK_MASK)];
+	}
+	
+	/**
+	 * @param index
+	 *            the element index
+	 * @param value
+	 *            the new element value
+	 */
+	public void set(long index, double value)
+	{
+		chunks[(int) (index >>> CHUNK_BITS)][(int) (index & CHUNK_MASK)] = value;
+	}
+	
+	/**
+	 * Copies consecutive elements into a regular array
+	 * 
+	 * @param index
+	 *            the index of the first element to copy
+	 * @param dest
+	 *            the destination array
+	 * @param destOffset
+	 *            the offset of the first element in the destination array
+	 * @param count
+	 *            the number of elements to copy
+	 * @throws ArrayIndexOutOfBoundsException
+	 *             if the elements are not all within this array
+	 */
+	public void get(long index, double[] dest, int destOffset, int count) throws ArrayIndexOutOfBoundsException
+	{
+		checkRange(index, count);
+		
+		while (count > 0)
+		{
+			double[] chunk = chunks[(int) (index >>> CHUNK_BITS)];
+			int offset = (int) (index & CHUNK_MASK);
+			int n = Math.min(count, chunk.length - offset);
+			
+			System.arraycopy(chunk, offset, dest, destOffset, n);
+			
+			index += n;
+			destOffset += n;
+			count -= n;
+		}
+	}
+	
+	/**
+	 * Copies elements of a regular array into consecutive elements of this array
+	 * 
+	 * @param index
+	 *            the index of the first element to overwrite
+	 * @param src
+	 *            the source array
+	 * @param srcOffset
+	 *            the offset of the first element in the source array
+	 * @param count
+	 *            the number of elements to copy
+	 * @throws ArrayIndexOutOfBoundsException
+	 *             if the elements are not all within this array
+	 */
+	public void set(long index, double[] src, int srcOffset, int count) throws ArrayIndexOutOfBoundsException
+	{
+		checkRange(index, count);
+		
+		while (count > 0)
+		{
+			double[] chunk = chunks[(int) (index >>> CHUNK_BITS)];
+			int offset = (int) (index & CHUNK_MASK);
+			int n = Math.min(count, chunk.length - offset);
+			
+			System.arraycopy(src, srcOffset, chunk, offset, n);
+			
+			index += n;
+			srcOffset += n;
+			count -= n;
+		}
+	}
+	
+	private void checkRange(long index, int count) throws ArrayIndexOutOfBoundsException
+	{
+		if (index < 0 || count < 0 || index + count > length)
+			throw new ArrayIndexOutOfBoundsException("Elements " + index + " to " + (index + count - 1) + " are out of range [0, " + (length - 1) + "]");
+	}
+	
+	/**
+	 * Copies a tile (i.e. a plane of a regular sequence) into this array, seen as a plane of the
+	 * given width
+	 * 
+	 * @param tile
+	 *            the tile to read
+	 * @param t
+	 *            the time point of the tile plane
+	 * @param z
+	 *            the slice of the tile plane
+	 * @param c
+	 *            the channel of the tile plane
+	 * @param x
+	 *            the column of this plane receiving the first tile column
+	 * @param y
+	 *            the row of this plane receiving the first tile row
+	 * @param width
+	 *            the width of this plane
+	 */
+	public void readTile(Sequence tile, int t, int z, int c, int x, int y, int width)
+	{
+		int tileWidth = tile.getSizeX();
+		double[] row = new double[tileWidth];
+		Object data = tile.getDataXY(t, z, c);
+		boolean signed = tile.getDataType_().isSigned();
+		
+		for (int tileY = 0; tileY < tile.getSizeY(); tileY++)
+		{
+			Array1DUtil.arrayToDoubleArray(data, tileY * tileWidth, row, 0, tileWidth, signed);
+			set((long) (y + tileY) * width + x, row, 0, tileWidth);
+		}
+	}
+	
+	/**
+	 * Copies a part of this array, seen as a plane of the given width, into a tile (i.e. a plane
+	 * of a regular sequence). Values are converted (and clamped) to the data type of the tile
+	 * 
+	 * @param tile
+	 *            the tile to write
+	 * @param t
+	 *            the time point of the tile plane
+	 * @param z
+	 *            the slice of the tile plane
+	 * @param c
+	 *            the channel of the tile plane
+	 * @param x
+	 *            the column of this plane corresponding to the first tile column
+	 * @param y
+	 *            the row of this plane corresponding to the first tile row
+	 * @param width
+	 *            the width of this plane
+	 */
+	public void writeTile(Sequence tile, int t, int z, int c, int x, int y, int width)
+	{
+		int tileWidth = tile.getSizeX();
+		double[] row = new double[tileWidth];
+		Object data = tile.getDataXY(t, z, c);
+		boolean signed = tile.getDataType_().isSigned();
+		
+		for (int tileY = 0; tileY < tile.getSizeY(); tileY++)
+		{
+			get((long) (y + tileY) * width + x, row, 0, tileWidth);
+			Array1DUtil.doubleArrayToSafeArray(row, 0, data, tileY * tileWidth, tileWidth, signed);
+		}
+		
+		tile.dataChanged();
+	}
+}
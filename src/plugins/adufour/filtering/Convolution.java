@@ -1,8 +1,12 @@
 package plugins.adufour.filtering;
 
+import icy.image.IcyBufferedImage;
 import icy.sequence.Sequence;
 import icy.type.DataType;
 import icy.type.collection.array.Array1DUtil;
+
+import java.util.Arrays;
+
 import plugins.adufour.vars.lang.VarBoolean;
 
 public class Convolution
@@ -26,121 +30,705 @@ public class Convolution
 	{
 		DataType type = input.getDataType_();
 
-		final int kWidth = kernel.getSizeX() >> 1;
-		final int kHeight = kernel.getSizeY() >> 1;
-		final int kDepth = kernel.getSizeZ() >> 1;
+		// 8/16-bit data and integer-valued kernels: use exact integer arithmetic
+		if (IntegerConvolution.isSupported(type))
+		{
+			double[][] kernelData = kernel.getDataXYZAsDouble(0, 0);
+
+			if (IntegerConvolution.convolve(input, kernelData, kernel.getSizeX() >> 1, kernel.getSizeY() >> 1, zeroEdges, nbIter, stopFlag)) return;
+		}
 
 		// temporary buffers
 		double[][] _inZXY = new double[input.getSizeZ()][input.getSizeX() * input.getSizeY()];
 		double[] _outXY = new double[input.getSizeX() * input.getSizeY()];
-		double[][] _kernel = kernel.getDataXYZAsDouble(0, 0);
+		SparseKernel _kernel = SparseKernel.compile(kernel);
 
 		convolution: for (int t = 0; t < input.getSizeT(); t++)
 		{
 			for (int c = 0; c < input.getSizeC(); c++)
 			{
-				// retrieve the input data in double format for convolution
+				for (int i = 0; i < nbIter; i++)
+				{
+					// retrieve the input data in double format for convolution
+
+					for (int z = 0; z < _inZXY.length; z++)
+					{
+						Array1DUtil.arrayToDoubleArray(input.getDataXY(t, z, c), _inZXY[z], type.isSigned());
+					}
+
+					for (int z = 0; z < _inZXY.length; z++)
+					{
+						convolve(_inZXY, input.getSizeX(), input.getSizeY(), _kernel, zeroEdges, z, _outXY);
+
+						// ArrayMath.rescale(_outXY, input.getComponentMinValue(c),
+						// input.getComponentMaxValue(c), true);
+						Array1DUtil.doubleArrayToSafeArray(_outXY, input.getDataXY(t, z, c), type.isSigned());
+					} // end for(z)
+					if (stopFlag.getValue()) break convolution;
+				} // end for(i)
+			} // end for(c)
+		} // end for(t)
+	}
+
+	/**
+	 * Convolve the input sequence with the given kernel and writes the result into the output
+	 * sequence (out-of-place). The input data is read once, iterations are performed in double
+	 * precision, and the result is written directly in the data type of the output (e.g.
+	 * {@link DataType#FLOAT} to preserve negative values). The channel bounds of the output are
+	 * collected during the write-back and updated accordingly.
+	 * 
+	 * @param input
+	 *            the input sequence (unchanged)
+	 * @param output
+	 *            the output sequence, with the same dimensions as the input (see
+	 *            {@link #createOutput(Sequence, DataType)}). Can be the input itself
+	 * @param kernel
+	 *            the convolution kernel (1D, 2D or 3D), assumed to be already normalized. If the
+	 *            kernel has more than one channel or time point, only the first c,t are used for
+	 *            convolution
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param nbIter
+	 *            the number of filter iterations
+	 */
+	public static void convolve(Sequence input, Sequence output, Sequence kernel, boolean zeroEdges, int nbIter, VarBoolean stopFlag)
+	{
+		DataType type = input.getDataType_();
+
+		// channel bounds are collected while writing the result
+		OutputBounds bounds = new OutputBounds(output);
+
+		// same 8/16-bit output type and integer-valued kernel: exact integer arithmetic in-place
+		// (unless the accumulated values could overflow, in which case the double path is used)
+		if (output.getDataType_() == type && IntegerConvolution.isSupported(type) && IntegerConvolution.getScale(kernel.getDataXYZAsDouble(0, 0)) != 0)
+		{
+			if (output != input)
+			{
+				for (int t = 0; t < input.getSizeT(); t++)
+					for (int z = 0; z < input.getSizeZ(); z++)
+						for (int c = 0; c < input.getSizeC(); c++)
+							System.arraycopy(input.getDataXY(t, z, c), 0, output.getDataXY(t, z, c), 0, input.getSizeX() * input.getSizeY());
+			}
+
+			if (IntegerConvolution.convolve(output, kernel.getDataXYZAsDouble(0, 0), kernel.getSizeX() >> 1, kernel.getSizeY() >> 1, zeroEdges, nbIter, stopFlag, bounds))
+			{
+				bounds.apply(output);
+				return;
+			}
+		}
+
+		boolean inSigned = type.isSigned();
+
+		final int width = input.getSizeX();
+		final int height = input.getSizeY();
+
+		// all channels share the same kernel: filter them together (interleaved), such that the
+		// data is streamed once and the border handling is shared across channels
+		final int nbChannels = input.getSizeC();
+
+		if (nbChannels > 1)
+		{
+			convolveChannels(input, output, kernel, zeroEdges, nbIter, stopFlag, bounds);
+			bounds.apply(output);
+			return;
+		}
+
+		// temporary buffers
+		double[][] _inZXY = new double[input.getSizeZ()][width * height];
+		double[][] _tmpZXY = nbIter > 1 ? new double[input.getSizeZ()][width * height] : null;
+		double[] _outXY = new double[width * height];
+		SparseKernel _kernel = SparseKernel.compile(kernel);
 
-				for (int z = 0; z < _inZXY.length; z++)
+		output.beginUpdate();
+
+		try
+		{
+			convolution: for (int t = 0; t < input.getSizeT(); t++)
+			{
+				for (int c = 0; c < nbChannels; c++)
 				{
-					Array1DUtil.arrayToDoubleArray(input.getDataXY(t, z, c), _inZXY[z], type.isSigned());
+					// read the input data once
+
+					for (int z = 0; z < _inZXY.length; z++)
+					{
+						Array1DUtil.arrayToDoubleArray(input.getDataXY(t, z, c), _inZXY[z], inSigned);
+					}
+
+					// all iterations but the last one remain in double precision
+
+					for (int i = 1; i < nbIter; i++)
+					{
+						for (int z = 0; z < _inZXY.length; z++)
+							convolve(_inZXY, width, height, _kernel, zeroEdges, z, _tmpZXY[z]);
+
+						double[][] swap = _inZXY;
+						_inZXY = _tmpZXY;
+						_tmpZXY = swap;
+
+						if (stopFlag.getValue()) break convolution;
+					}
+
+					// the last iteration is written directly into the output
+
+					for (int z = 0; z < _inZXY.length; z++)
+					{
+						convolve(_inZXY, width, height, _kernel, zeroEdges, z, _outXY);
+
+						bounds.write(_outXY, output, t, z, c);
+					}
+
+					if (stopFlag.getValue()) break convolution;
+				} // end for(c)
+			} // end for(t)
+		}
+		finally
+		{
+			output.endUpdate();
+		}
+
+		bounds.apply(output);
+	}
+
+	/**
+	 * Out-of-place convolution of all the channels at once (see
+	 * {@link #convolve(Sequence, Sequence, Sequence, boolean, int, VarBoolean)})
+	 */
+	private static void convolveChannels(Sequence input, Sequence output, Sequence kernel, boolean zeroEdges, int nbIter, VarBoolean stopFlag, OutputBounds bounds)
+	{
+		final int width = input.getSizeX();
+		final int height = input.getSizeY();
+		final int nbChannels = input.getSizeC();
+
+		// temporary buffers (interleaved channels)
+		double[][] _inZXYC = new double[input.getSizeZ()][width * height * nbChannels];
+		double[][] _tmpZXYC = nbIter > 1 ? new double[input.getSizeZ()][width * height * nbChannels] : null;
+		double[] _outXYC = new double[width * height * nbChannels];
+		double[] _outXY = new double[width * height];
+		SparseKernel _kernel = SparseKernel.compile(kernel);
+
+		output.beginUpdate();
+
+		try
+		{
+			for (int t = 0; t < input.getSizeT(); t++)
+			{
+				// read the input data once
+
+				for (int z = 0; z < _inZXYC.length; z++)
+					Convolution1D.interleave(input, t, z, _outXY, _inZXYC[z]);
+
+				// all iterations but the last one remain in double precision
+
+				for (int i = 1; i < nbIter && !stopFlag.getValue(); i++)
+				{
+					for (int z = 0; z < _inZXYC.length; z++)
+						convolve(_inZXYC, width, height, nbChannels, _kernel, zeroEdges, z, _tmpZXYC[z]);
+
+					double[][] swap = _inZXYC;
+					_inZXYC = _tmpZXYC;
+					_tmpZXYC = swap;
 				}
 
-				for (int i = 0; i < nbIter; i++)
+				// the last iteration is written directly into the output
+
+				for (int z = 0; z < _inZXYC.length; z++)
 				{
-					for (int z = 0; z < _inZXY.length; z++)
+					convolve(_inZXYC, width, height, nbChannels, _kernel, zeroEdges, z, _outXYC);
+
+					for (int c = 0; c < nbChannels; c++)
+					{
+						Convolution1D.deinterleave(_outXYC, c, nbChannels, _outXY);
+						bounds.write(_outXY, output, t, z, c);
+					}
+				}
+
+				if (stopFlag.getValue()) break;
+			}
+		}
+		finally
+		{
+			output.endUpdate();
+		}
+	}
+
+	/**
+	 * Creates an empty sequence with the same dimensions as the input, to be used as the output of
+	 * an out-of-place convolution
+	 * 
+	 * @param input
+	 *            the input sequence
+	 * @param type
+	 *            the data type of the output (e.g. {@link DataType#FLOAT} for signed results)
+	 * @return the new sequence
+	 */
+	public static Sequence createOutput(Sequence input, DataType type)
+	{
+		Sequence output = new Sequence();
+
+		output.beginUpdate();
+
+		for (int t = 0; t < input.getSizeT(); t++)
+			for (int z = 0; z < input.getSizeZ(); z++)
+				output.setImage(t, z, new IcyBufferedImage(input.getSizeX(), input.getSizeY(), input.getSizeC(), type));
+
+		output.endUpdate();
+
+		return output;
+	}
+
+	/**
+	 * Computes one slice of the convolution of a stack. Only the non-zero taps of the kernel are
+	 * evaluated, and border checks are only performed near the stack borders
+	 * 
+	 * @param _inZXY
+	 *            the input stack, given as a [Z][XY] array
+	 * @param width
+	 *            the stack width
+	 * @param height
+	 *            the stack height
+	 * @param _kernel
+	 *            the compiled kernel
+	 * @param zeroEdges
+	 *            true if data outside the stack should be treated as zero, or false for mirroring
+	 *            condition
+	 * @param z
+	 *            the slice to compute
+	 * @param _outXY
+	 *            the output slice
+	 */
+	private static void convolve(double[][] _inZXY, int width, int height, SparseKernel _kernel, boolean zeroEdges, int z, double[] _outXY)
+	{
+		convolve(_inZXY, width, height, 1, _kernel, zeroEdges, z, _outXY);
+	}
+
+	/**
+	 * Computes one slice of the convolution of a multi-channel stack. The channels are interleaved,
+	 * and share the same kernel and border handling. Only the non-zero taps of the kernel are
+	 * evaluated, and border checks are only performed near the stack borders
+	 * 
+	 * @param _inZXYC
+	 *            the input stack, given as a [Z][XYC] array (channel c of offset xy is stored at
+	 *            index xy * nbChannels + c)
+	 * @param width
+	 *            the stack width
+	 * @param height
+	 *            the stack height
+	 * @param nbChannels
+	 *            the number of interleaved channels
+	 * @param _kernel
+	 *            the compiled kernel
+	 * @param zeroEdges
+	 *            true if data outside the stack should be treated as zero, or false for mirroring
+	 *            condition
+	 * @param z
+	 *            the slice to compute
+	 * @param _outXYC
+	 *            the output slice (interleaved)
+	 */
+	private static void convolve(double[][] _inZXYC, int width, int height, int nbChannels, SparseKernel _kernel, boolean zeroEdges, int z, double[] _outXYC)
+	{
+		final int kWidth = _kernel.getRadiusX();
+		final int kHeight = _kernel.getRadiusY();
+		final int kDepth = _kernel.getRadiusZ();
+		final int depth = _inZXYC.length;
+
+		final int nbTaps = _kernel.getNbTaps();
+		final int[] dx = _kernel.dx, dy = _kernel.dy, dz = _kernel.dz;
+		final double[] weights = _kernel.weights;
+
+		// offset of each tap in the interior of the slice
+		final int[] offsets = _kernel.getOffsets(width);
+
+		final boolean interiorZ = z >= kDepth && z < depth - kDepth;
+
+		// common 2D kernels: the interior is computed by unrolled loops, either over the non-zero
+		// taps (up to 9, e.g. any 3x3 kernel, Laplace or Sobel) or over a dense 5x5 neighborhood
+		final boolean unrolledTaps = kDepth == 0 && kWidth <= 2 && kHeight <= 2 && nbTaps > 0 && nbTaps <= 9;
+		final boolean unrolled5x5 = kDepth == 0 && kWidth == 2 && kHeight == 2 && nbTaps == 25;
+		final boolean unrolled = unrolledTaps || unrolled5x5;
+
+		if (unrolledTaps)
+			convolve9Taps(_inZXYC[z], width, height, nbChannels, kWidth, kHeight, offsets, weights, _outXYC);
+		else if (unrolled5x5)
+			convolve5x5(_inZXYC[z], width, height, nbChannels, _kernel.toArray2D(), _outXYC);
+
+		int outXY = 0;
+
+		for (int y = 0; y < height; y++)
+		{
+			final boolean interiorY = interiorZ && y >= kHeight && y < height - kHeight;
+
+			for (int x = 0; x < width; x++, outXY++)
+			{
+				final boolean interior = interiorY && x >= kWidth && x < width - kWidth;
+
+				if (interior && unrolled) continue;
+
+				final int outXYC = outXY * nbChannels;
+
+				for (int c = 0; c < nbChannels; c++)
+					_outXYC[outXYC + c] = 0;
+
+				if (interior)
+				{
+					// no border check needed
+
+					for (int tap = 0; tap < nbTaps; tap++)
+					{
+						double[] _inXYC = _inZXYC[z + dz[tap]];
+						int inXYC = (outXY + offsets[tap]) * nbChannels;
+						double weight = weights[tap];
+
+						for (int c = 0; c < nbChannels; c++)
+							_outXYC[outXYC + c] += _inXYC[inXYC + c] * weight;
+					}
+
+					continue;
+				}
+
+				// the border handling is shared by all channels
+
+				taps: for (int tap = 0; tap < nbTaps; tap++)
+				{
+					int inX = x + dx[tap];
+					int inY = y + dy[tap];
+					int inZ = z + dz[tap];
+
+					// mirror boundary condition
+					if (inX < 0 || inX >= width)
+					{
+						if (zeroEdges) continue taps;
+
+						inX = mirror(inX, width);
+					}
+					if (inY < 0 || inY >= height)
+					{
+						if (zeroEdges) continue taps;
+
+						inY = mirror(inY, height);
+					}
+					if (inZ < 0 || inZ >= depth)
+					{
+						if (zeroEdges) continue taps;
+
+						inZ = mirror(inZ, depth);
+					}
+
+					double[] _inXYC = _inZXYC[inZ];
+					int inXYC = (inY * width + inX) * nbChannels;
+					double weight = weights[tap];
+
+					for (int c = 0; c < nbChannels; c++)
+						_outXYC[outXYC + c] += _inXYC[inXYC + c] * weight;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes the interior of a slice (i.e. the voxels at least kWidth voxels away from the west
+	 * and east borders and kHeight voxels away from the north and south borders) for a 2D kernel
+	 * with at most 9 non-zero taps, using an unrolled loop with the tap offsets and weights held
+	 * in local variables (missing taps are given a zero weight)
+	 * 
+	 * @param in
+	 *            the input slice (interleaved channels)
+	 * @param width
+	 *            the slice width
+	 * @param height
+	 *            the slice height
+	 * @param nbChannels
+	 *            the number of interleaved channels
+	 * @param kWidth
+	 *            the kernel radius along X
+	 * @param kHeight
+	 *            the kernel radius along Y
+	 * @param offsets
+	 *            the offset of each tap within a (single-channel) slice
+	 * @param weights
+	 *            the weight of each tap
+	 * @param out
+	 *            the output slice (interleaved channels)
+	 */
+	private static void convolve9Taps(double[] in, int width, int height, int nbChannels, int kWidth, int kHeight, int[] offsets, double[] weights, double[] out)
+	{
+		int[] o = new int[9];
+		double[] w = new double[9];
+
+		for (int tap = 0; tap < weights.length; tap++)
+		{
+			o[tap] = offsets[tap] * nbChannels;
+			w[tap] = weights[tap];
+		}
+
+		final int o0 = o[0], o1 = o[1], o2 = o[2], o3 = o[3], o4 = o[4], o5 = o[5], o6 = o[6], o7 = o[7], o8 = o[8];
+		final double w0 = w[0], w1 = w[1], w2 = w[2], w3 = w[3], w4 = w[4], w5 = w[5], w6 = w[6], w7 = w[7], w8 = w[8];
+
+		for (int y = kHeight; y < height - kHeight; y++)
+		{
+			int end = (y * width + width - kWidth) * nbChannels;
+
+			for (int i = (y * width + kWidth) * nbChannels; i < end; i++)
+			{
+				out[i] = in[i + o0] * w0 + in[i + o1] * w1 + in[i + o2] * w2
+						+ in[i + o3] * w3 + in[i + o4] * w4 + in[i + o5] * w5
+						+ in[i + o6] * w6 + in[i + o7] * w7 + in[i + o8] * w8;
+			}
+		}
+	}
+
+	/**
+	 * Computes the interior of a slice (i.e. the voxels at least 2 voxels away from the borders)
+	 * for a 5x5 kernel, using an unrolled loop with the taps held in local variables
+	 * 
+	 * @param in
+	 *            the input slice (interleaved channels)
+	 * @param width
+	 *            the slice width
+	 * @param height
+	 *            the slice height
+	 * @param nbChannels
+	 *            the number of interleaved channels
+	 * @param k
+	 *            the kernel, given as an XY array
+	 * @param out
+	 *            the output slice (interleaved channels)
+	 */
+	private static void convolve5x5(double[] in, int width, int height, int nbChannels, double[] k, double[] out)
+	{
+		final double k00 = k[0], k01 = k[1], k02 = k[2], k03 = k[3], k04 = k[4];
+		final double k10 = k[5], k11 = k[6], k12 = k[7], k13 = k[8], k14 = k[9];
+		final double k20 = k[10], k21 = k[11], k22 = k[12], k23 = k[13], k24 = k[14];
+		final double k30 = k[15], k31 = k[16], k32 = k[17], k33 = k[18], k34 = k[19];
+		final double k40 = k[20], k41 = k[21], k42 = k[22], k43 = k[23], k44 = k[24];
+
+		final int row = width * nbChannels;
+
+		for (int y = 2; y < height - 2; y++)
+		{
+			int end = (y * width + width - 2) * nbChannels;
+
+			for (int i = (y * width + 2) * nbChannels; i < end; i++)
+			{
+				out[i] = in[i - 2 * row - 2 * nbChannels] * k00 + in[i - 2 * row - nbChannels] * k01 + in[i - 2 * row] * k02 + in[i - 2 * row + nbChannels] * k03 + in[i - 2 * row + 2 * nbChannels] * k04
+						+ in[i - row - 2 * nbChannels] * k10 + in[i - row - nbChannels] * k11 + in[i - row] * k12 + in[i - row + nbChannels] * k13 + in[i - row + 2 * nbChannels] * k14
+						+ in[i - 2 * nbChannels] * k20 + in[i - nbChannels] * k21 + in[i] * k22 + in[i + nbChannels] * k23 + in[i + 2 * nbChannels] * k24
+						+ in[i + row - 2 * nbChannels] * k30 + in[i + row - nbChannels] * k31 + in[i + row] * k32 + in[i + row + nbChannels] * k33 + in[i + row + 2 * nbChannels] * k34
+						+ in[i + 2 * row - 2 * nbChannels] * k40 + in[i + 2 * row - nbChannels] * k41 + in[i + 2 * row] * k42 + in[i + 2 * row + nbChannels] * k43 + in[i + 2 * row + 2 * nbChannels] * k44;
+			}
+		}
+	}
+
+	/**
+	 * Convolve a (possibly very large) stack stored in long-indexed arrays with the given kernel,
+	 * e.g. a whole-slide mosaic with more than 2^31 pixels per plane. The stack is processed row by
+	 * row, such that only a few rows are held in regular arrays at any time.
+	 * 
+	 * @param input
+	 *            the input stack, given as a [Z] array of XY planes (unchanged)
+	 * @param output
+	 *            the output stack, given as a [Z] array of XY planes (must be different from the
+	 *            input)
+	 * @param width
+	 *            the stack width
+	 * @param height
+	 *            the stack height
+	 * @param kernel
+	 *            the convolution kernel (1D, 2D or 3D), assumed to be already normalized. If the
+	 *            kernel has more than one channel or time point, only the first c,t are used for
+	 *            convolution
+	 * @param zeroEdges
+	 *            true if data outside the stack should be treated as zero, or false for mirroring
+	 *            condition
+	 * @throws IllegalArgumentException
+	 *             if the output is the input
+	 */
+	public static void convolve(ChunkedDoubleArray[] input, ChunkedDoubleArray[] output, int width, int height, Sequence kernel, boolean zeroEdges) throws IllegalArgumentException
+	{
+		if (output == input)
+			throw new IllegalArgumentException("Invalid argument: the output must be different from the input");
+
+		SparseKernel _kernel = SparseKernel.compile(kernel);
+
+		final int kWidth = _kernel.getRadiusX();
+		final int depth = input.length;
+
+		final int nbTaps = _kernel.getNbTaps();
+		final int[] dx = _kernel.dx, dy = _kernel.dy, dz = _kernel.dz;
+		final double[] weights = _kernel.weights;
+
+		// padded input row, and output row
+		double[] _inX = new double[width + 2 * kWidth];
+		double[] _outX = new double[width];
+
+		for (int z = 0; z < depth; z++)
+		{
+			for (int y = 0; y < height; y++)
+			{
+				Arrays.fill(_outX, 0);
+
+				// taps are sorted by slice and row: each input row is read once
+				int loadedZ = -1, loadedY = -1;
+
+				taps: for (int tap = 0; tap < nbTaps; tap++)
+				{
+					int inZ = z + dz[tap];
+					int inY = y + dy[tap];
+
+					// mirror boundary condition
+					if (inZ < 0 || inZ >= depth)
 					{
-						int kX, inX, kY, inY, kZ, inZ;
-						int kXY, inXY, outXY = 0;
+						if (zeroEdges) continue taps;
 
-						for (int y = 0; y < input.getSizeY(); y++)
+						inZ = Math.max(0, Math.min(depth - 1, mirror(inZ, depth)));
+					}
+					if (inY < 0 || inY >= height)
+					{
+						if (zeroEdges) continue taps;
+
+						inY = Math.max(0, Math.min(height - 1, mirror(inY, height)));
+					}
+
+					if (inZ != loadedZ || inY != loadedY)
+					{
+						input[inZ].get((long) inY * width, _inX, kWidth, width);
+
+						for (int i = 1; i <= kWidth; i++)
 						{
-							for (int x = 0; x < input.getSizeX(); x++, outXY++)
+							_inX[kWidth - i] = zeroEdges ? 0 : _inX[kWidth + Math.min(width - 1, mirror(-i, width))];
+							_inX[kWidth + width - 1 + i] = zeroEdges ? 0 : _inX[kWidth + Math.max(0, mirror(width - 1 + i, width))];
+						}
+
+						loadedZ = inZ;
+						loadedY = inY;
+					}
+
+					int offset = kWidth + dx[tap];
+					double weight = weights[tap];
+
+					for (int x = 0; x < width; x++)
+						_outX[x] += _inX[x + offset] * weight;
+				}
+
+				output[z].set((long) y * width, _outX, 0, width);
+			}
+		}
+	}
+
+	/**
+	 * Convolve the input sequence with the given kernel, restricted to a region of interest. Only
+	 * the region grown by the kernel radius is read from the input, and only the voxels of the
+	 * region (or of its mask) are computed and written to the output.
+	 * 
+	 * @param input
+	 *            the input sequence
+	 * @param output
+	 *            the sequence receiving the result (must have the same dimensions as the input,
+	 *            and may be the input itself). Voxels outside the region are left untouched
+	 * @param kernel
+	 *            the convolution kernel (1D, 2D or 3D), assumed to be already normalized. If the
+	 *            kernel has more than one channel or time point, only the first c,t are used for
+	 *            convolution
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param region
+	 *            the region to compute
+	 */
+	public static void convolve(Sequence input, Sequence output, Sequence kernel, boolean zeroEdges, ConvolutionRegion region)
+	{
+		convolve(input, output, kernel, zeroEdges, region, 0, input.getSizeT());
+	}
+
+	/**
+	 * Convolve the input sequence with the given kernel, restricted to a region of interest and
+	 * to a range of time points
+	 * 
+	 * @see #convolve(Sequence, Sequence, Sequence, boolean, ConvolutionRegion)
+	 * @param tMin
+	 *            the first time point to process
+	 * @param tMax
+	 *            the last time point to process (exclusive)
+	 */
+	static void convolve(Sequence input, Sequence output, Sequence kernel, boolean zeroEdges, ConvolutionRegion region, int tMin, int tMax)
+	{
+		final int kWidth = kernel.getSizeX() >> 1;
+		final int kHeight = kernel.getSizeY() >> 1;
+		final int kDepth = kernel.getSizeZ() >> 1;
+
+		ConvolutionRegion box = region.clip(input.getSizeX(), input.getSizeY(), input.getSizeZ());
+
+		if (box.isEmpty()) return;
+
+		final int blockWidth = box.width + 2 * kWidth;
+		final int blockHeight = box.height + 2 * kHeight;
+
+		// temporary buffers
+		double[][] _block = new double[box.depth + 2 * kDepth][blockWidth * blockHeight];
+		double[][] _result = new double[box.depth][box.width * box.height];
+		SparseKernel _kernel = SparseKernel.compile(kernel);
+
+		final int nbTaps = _kernel.getNbTaps();
+		final int[] dz = _kernel.dz;
+		final double[] weights = _kernel.weights;
+		final int[] offsets = _kernel.getOffsets(blockWidth);
+
+		output.beginUpdate();
+
+		try
+		{
+			for (int t = tMin; t < tMax; t++)
+			{
+				for (int c = 0; c < input.getSizeC(); c++)
+				{
+					box.read(input, t, c, kWidth, kHeight, kDepth, zeroEdges, true, _block);
+
+					for (int z = 0; z < box.depth; z++)
+					{
+						double[] _outXY = _result[z];
+						int outXY = 0;
+
+						for (int y = 0; y < box.height; y++)
+						{
+							for (int x = 0; x < box.width; x++, outXY++)
 							{
-								// core convolution code
+								if (box.hasMask() && !box.contains(box.x + x, box.y + y, box.z + z, input.getSizeX())) continue;
+
+								// the block already contains the halo: no boundary check needed
 
+								int blockXY = (y + kHeight) * blockWidth + x + kWidth;
 								double conv = 0;
 
-								// sweep through the kernel along Z
-								for (kZ = -kDepth; kZ <= kDepth; kZ++)
-								{
-									inZ = z + kZ;
-
-									// mirror boundary condition
-									if (inZ < 0)
-									{
-										if (zeroEdges) continue;
-
-										inZ = -inZ + 1;
-									}
-									else if (inZ >= input.getSizeZ())
-									{
-										if (zeroEdges) continue;
-
-										inZ = (input.getSizeZ() * 2) - inZ - 1;
-									}
-
-									kXY = 0;
-
-									// sweep through the kernel along Y
-									for (kY = -kHeight; kY <= kHeight; kY++)
-									{
-										inY = y + kY;
-
-										// mirror boundary condition
-										if (inY < 0)
-										{
-											if (zeroEdges) continue;
-
-											inY = -inY + 1;
-										}
-										else if (inY >= input.getSizeY())
-										{
-											if (zeroEdges) continue;
-
-											inY = (input.getSizeY() * 2) - inY - 1;
-										}
-
-										// this is the line offset
-										inXY = inY * input.getSizeX();
-
-										// sweep through the kernel along X
-										for (kX = -kWidth; kX <= kWidth; kX++, kXY++)
-										{
-											inX = x + kX;
-
-											// mirror boundary condition
-											if (inX < 0)
-											{
-												if (zeroEdges) continue;
-
-												inX = -inX + 1;
-											}
-											else if (inX >= input.getSizeX())
-											{
-												if (zeroEdges) continue;
-
-												inX = (input.getSizeX() * 2) - inX - 1;
-											}
-
-											// Enough of this crap ! convolve god damn it !!
-
-											conv += _inZXY[inZ][inXY + inX] * _kernel[kZ][kXY];
-										}
-									}
-								}
-								// store the result in the temporary buffer
+								for (int tap = 0; tap < nbTaps; tap++)
+									conv += _block[z + kDepth + dz[tap]][blockXY + offsets[tap]] * weights[tap];
+
 								_outXY[outXY] = conv;
 							}
 						}
+					}
 
-						// ArrayMath.rescale(_outXY, input.getComponentMinValue(c),
-						// input.getComponentMaxValue(c), true);
-						Array1DUtil.doubleArrayToSafeArray(_outXY, input.getDataXY(t, z, c), type.isSigned());
-					} // end for(z)
-					if (stopFlag.getValue()) break convolution;
-				} // end for(i)
-			} // end for(c)
-		} // end for(t)
+					box.write(_result, output, t, c);
+				}
+			}
+		}
+		finally
+		{
+			output.endUpdate();
+		}
+	}
+
+	/**
+	 * Mirror boundary condition used by the classic convolution engines
+	 *
+	 * @param i
+	 *            an index outside [0, size-1]
+	 * @param size
+	 *            the number of elements along the considered axis
+	 * @return the mirrored index
+	 */
+	static int mirror(int i, int size)
+	{
+		return i < 0 ? -i + 1 : (size * 2) - i - 1;
 	}
 }
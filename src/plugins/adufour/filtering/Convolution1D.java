@@ -3,6 +3,9 @@ package plugins.adufour.filtering;
 import icy.sequence.Sequence;
 import icy.type.DataType;
 import icy.type.collection.array.Array1DUtil;
+
+import java.util.Arrays;
+
 import plugins.adufour.filtering.FilterToolbox.Axis;
 import plugins.adufour.vars.lang.VarBoolean;
 
@@ -115,6 +118,76 @@ public class Convolution1D
 					}
 				}
 		}
+		else if (type == DataType.FLOAT)
+		{
+			// single precision data: convolve the sequence arrays directly
+			
+			float[][] z_xy = new float[sequence.getSizeZ()][];
+			
+			convolution: for (int t = 0; t < sequence.getSizeT(); t++)
+				for (int c = 0; c < sequence.getSizeC(); c++)
+				{
+					if (kernel1D_X != null)
+						kernelX = kernel1D_X.getDataXYAsDouble(Math.min(t, kernel1D_X.getSizeT() - 1), 0, Math.min(c, kernel1D_X.getSizeC() - 1));
+					if (kernel1D_Y != null)
+						kernelY = kernel1D_Y.getDataXYAsDouble(Math.min(t, kernel1D_Y.getSizeT() - 1), 0, Math.min(c, kernel1D_Y.getSizeC() - 1));
+					if (kernel1D_Z != null)
+						kernelZ = kernel1D_Z.getDataXYAsDouble(Math.min(t, kernel1D_Z.getSizeT() - 1), 0, Math.min(c, kernel1D_Z.getSizeC() - 1));
+					
+					for (int z = 0; z < z_xy.length; z++)
+						z_xy[z] = (float[]) sequence.getDataXY(t, z, c);
+					
+					for (int i = 0; i < nbIter; i++)
+					{
+						convolve(z_xy, sequence.getSizeX(), sequence.getSizeY(), kernelX, kernelY, kernelZ, false);
+						
+						if (stopFlag.getValue())
+							break convolution;
+					}
+				}
+			
+			sequence.dataChanged();
+		}
+		else if (IntegerConvolution.isSupported(type))
+		{
+			// 8/16-bit data: exact integer arithmetic if the kernels allow it, otherwise single
+			// precision scratch (exact for the input values, half the memory of double)
+			
+			float[][] z_xy = new float[sequence.getSizeZ()][sequence.getSizeX() * sequence.getSizeY()];
+			
+			convolution: for (int t = 0; t < sequence.getSizeT(); t++)
+				for (int c = 0; c < sequence.getSizeC(); c++)
+				{
+					if (kernel1D_X != null)
+						kernelX = kernel1D_X.getDataXYAsDouble(Math.min(t, kernel1D_X.getSizeT() - 1), 0, Math.min(c, kernel1D_X.getSizeC() - 1));
+					if (kernel1D_Y != null)
+						kernelY = kernel1D_Y.getDataXYAsDouble(Math.min(t, kernel1D_Y.getSizeT() - 1), 0, Math.min(c, kernel1D_Y.getSizeC() - 1));
+					if (kernel1D_Z != null)
+						kernelZ = kernel1D_Z.getDataXYAsDouble(Math.min(t, kernel1D_Z.getSizeT() - 1), 0, Math.min(c, kernel1D_Z.getSizeC() - 1));
+					
+					for (int i = 0; i < nbIter; i++)
+					{
+						if (IntegerConvolution.convolve(sequence, t, c, kernelX, kernelY, kernelZ, false))
+						{
+							if (stopFlag.getValue())
+								break convolution;
+							
+							continue;
+						}
+						
+						for (int z = 0; z < sequence.getSizeZ(); z++)
+							Array1DUtil.arrayToFloatArray(sequence.getDataXY(t, z, c), z_xy[z], type.isSigned());
+						
+						convolve(z_xy, sequence.getSizeX(), sequence.getSizeY(), kernelX, kernelY, kernelZ, false);
+						
+						for (int z = 0; z < sequence.getSizeZ(); z++)
+							Array1DUtil.floatArrayToSafeArray(z_xy[z], sequence.getDataXY(t, z, c), type.isSigned());
+						
+						if (stopFlag.getValue())
+							break convolution;
+					}
+				}
+		}
 		else
 		{
 			double[][] z_xy = new double[sequence.getSizeZ()][sequence.getSizeX() * sequence.getSizeY()];
@@ -190,132 +263,1119 @@ public class Convolution1D
 		{
 			double[][] z_xy = new double[sequence.getSizeZ()][sequence.getSizeX() * sequence.getSizeY()];
 			
-			for (int t = 0; t < sequence.getSizeT(); t++)
-				for (int c = 0; c < sequence.getSizeC(); c++)
+			for (int t = 0; t < sequence.getSizeT(); t++)
+				for (int c = 0; c < sequence.getSizeC(); c++)
+				{
+					for (int z = 0; z < sequence.getSizeZ(); z++)
+						Array1DUtil.arrayToDoubleArray(sequence.getDataXY(t, z, c), z_xy[z], type.isSigned());
+					
+					convolve(z_xy, sequence.getSizeX(), sequence.getSizeY(), kernel1D_X, kernel1D_Y, kernel1D_Z);
+					
+					for (int z = 0; z < sequence.getSizeZ(); z++)
+					{
+						Array1DUtil.doubleArrayToSafeArray(z_xy[z], sequence.getDataXY(t, z, c), type.isSigned());
+					}
+				}
+		}
+	}
+	
+	/**
+	 * Out-of-place separable convolution. The input data is read once, all passes and iterations
+	 * are performed in double precision, and the result is written directly in the data type of
+	 * the output (e.g. {@link DataType#FLOAT} to preserve negative values). The channel bounds of
+	 * the output are collected during the write-back and updated accordingly
+	 * 
+	 * @param input
+	 *            the sequence to convolve (unchanged)
+	 * @param output
+	 *            the output sequence, with the same dimensions as the input (see
+	 *            {@link Convolution#createOutput(Sequence, DataType)}). Can be the input itself
+	 * @param kernelX
+	 *            the kernel to use for convolution along X (or null)
+	 * @param kernelY
+	 *            the kernel to use for convolution along Y (or null)
+	 * @param kernelZ
+	 *            the kernel to use for convolution along Z (or null)
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param nbIter
+	 *            the number of filter iterations
+	 * @param stopFlag
+	 *            a flag that stops the process when set to true
+	 * @throws IllegalArgumentException
+	 *             If all kernels are null or of even size
+	 */
+	public static void convolve(Sequence input, Sequence output, double[] kernelX, double[] kernelY, double[] kernelZ, boolean zeroEdges, int nbIter, VarBoolean stopFlag) throws IllegalArgumentException
+	{
+		if (kernelX == null && kernelY == null && kernelZ == null)
+			throw new IllegalArgumentException("Invalid argument: provide at least one non-null kernel");
+		
+		Axis[] axes = { Axis.X, Axis.Y, Axis.Z };
+		double[][] kernels = { kernelX, kernelY, input.getSizeZ() == 1 ? null : kernelZ };
+		
+		for (double[] kernel : kernels)
+			if (kernel != null && kernel.length % 2 == 0)
+				throw new IllegalArgumentException("Invalid argument: kernels must have odd size");
+		
+		int width = input.getSizeX();
+		int height = input.getSizeY();
+		DataType type = input.getDataType_();
+		OutputBounds bounds = new OutputBounds(output);
+		
+		// same 8/16-bit output type and integer-valued kernels: exact integer arithmetic in-place
+		boolean integerPath = output.getDataType_() == type && IntegerConvolution.isSupported(type);
+		
+		for (double[] kernel : kernels)
+			if (kernel != null && IntegerConvolution.getScale(kernel) == 0) integerPath = false;
+		
+		// all channels share the same kernels: filter them together (interleaved), such that each
+		// pass streams the data once and shares the border handling across channels
+		int nbChannels = input.getSizeC();
+		boolean batched = !integerPath && nbChannels > 1;
+		
+		double[][] z_xy = new double[input.getSizeZ()][width * height * (batched ? nbChannels : 1)];
+		double[][] temp = new double[input.getSizeZ()][width * height * (batched ? nbChannels : 1)];
+		double[] plane = batched ? new double[width * height] : null;
+		
+		output.beginUpdate();
+		
+		try
+		{
+			convolution: for (int t = 0; t < input.getSizeT(); t++)
+			{
+				if (batched)
+				{
+					for (int z = 0; z < z_xy.length; z++)
+						interleave(input, t, z, plane, z_xy[z]);
+					
+					for (int i = 0; i < nbIter; i++)
+					{
+						for (int axis = 0; axis < 3; axis++)
+						{
+							if (kernels[axis] == null) continue;
+							
+							convolve1D(z_xy, temp, width, height, nbChannels, kernels[axis], axes[axis], zeroEdges);
+							
+							double[][] swap = z_xy;
+							z_xy = temp;
+							temp = swap;
+						}
+						
+						if (stopFlag.getValue()) break;
+					}
+					
+					for (int z = 0; z < z_xy.length; z++)
+						for (int c = 0; c < nbChannels; c++)
+						{
+							deinterleave(z_xy[z], c, nbChannels, plane);
+							bounds.write(plane, output, t, z, c);
+						}
+					
+					if (stopFlag.getValue()) break convolution;
+					
+					continue;
+				}
+				
+				for (int c = 0; c < nbChannels; c++)
+				{
+					Sequence source = input;
+					int i = 0;
+					
+					if (integerPath)
+					{
+						// the integer path works in-place on the output
+						if (output != input)
+						{
+							for (int z = 0; z < z_xy.length; z++)
+								System.arraycopy(input.getDataXY(t, z, c), 0, output.getDataXY(t, z, c), 0, width * height);
+						}
+						
+						source = output;
+						
+						while (i < nbIter && !stopFlag.getValue() && IntegerConvolution.convolve(output, t, c, kernels[0], kernels[1], kernels[2], zeroEdges, bounds))
+							i++;
+						
+						if (stopFlag.getValue()) break convolution;
+						
+						if (i == nbIter) continue;
+					}
+					
+					for (int z = 0; z < z_xy.length; z++)
+						Array1DUtil.arrayToDoubleArray(source.getDataXY(t, z, c), z_xy[z], type.isSigned());
+					
+					for (; i < nbIter; i++)
+					{
+						for (int axis = 0; axis < 3; axis++)
+						{
+							if (kernels[axis] == null) continue;
+							
+							convolve1D(z_xy, temp, width, height, 1, kernels[axis], axes[axis], zeroEdges);
+							
+							double[][] swap = z_xy;
+							z_xy = temp;
+							temp = swap;
+						}
+						
+						if (stopFlag.getValue()) break;
+					}
+					
+					for (int z = 0; z < z_xy.length; z++)
+						bounds.write(z_xy[z], output, t, z, c);
+					
+					if (stopFlag.getValue()) break convolution;
+				}
+			}
+		}
+		finally
+		{
+			output.endUpdate();
+		}
+		
+		bounds.apply(output);
+	}
+	
+	/**
+	 * Separable convolution restricted to a region of interest. Only the region grown by the
+	 * kernel radii is read from the input, and only the voxels of the region (or of its mask) are
+	 * computed and written to the output
+	 *
+	 * @param input
+	 *            the sequence to convolve
+	 * @param output
+	 *            the sequence receiving the result (must have the same dimensions as the input,
+	 *            and may be the input itself). Voxels outside the region are left untouched
+	 * @param kernelX
+	 *            the kernel to use for convolution along X (or null)
+	 * @param kernelY
+	 *            the kernel to use for convolution along Y (or null)
+	 * @param kernelZ
+	 *            the kernel to use for convolution along Z (or null)
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param region
+	 *            the region to compute
+	 * @throws IllegalArgumentException
+	 *             If all kernels are null or of even size
+	 */
+	public static void convolve(Sequence input, Sequence output, double[] kernelX, double[] kernelY, double[] kernelZ, boolean zeroEdges, ConvolutionRegion region) throws IllegalArgumentException
+	{
+		convolve(input, output, kernelX, kernelY, kernelZ, zeroEdges, region, 0, input.getSizeT());
+	}
+	
+	/**
+	 * Separable convolution restricted to a region of interest and to a range of time points
+	 * 
+	 * @see #convolve(Sequence, Sequence, double[], double[], double[], boolean, ConvolutionRegion)
+	 * @param tMin
+	 *            the first time point to process
+	 * @param tMax
+	 *            the last time point to process (exclusive)
+	 */
+	static void convolve(Sequence input, Sequence output, double[] kernelX, double[] kernelY, double[] kernelZ, boolean zeroEdges, ConvolutionRegion region, int tMin, int tMax) throws IllegalArgumentException
+	{
+		if (kernelX == null && kernelY == null && kernelZ == null)
+			throw new IllegalArgumentException("Invalid argument: provide at least one non-null kernel");
+		
+		double[][] kernels = { kernelX, kernelY, input.getSizeZ() == 1 ? null : kernelZ };
+		int[] halo = new int[3];
+		
+		for (int axis = 0; axis < 3; axis++)
+		{
+			if (kernels[axis] == null) continue;
+			
+			if (kernels[axis].length % 2 == 0)
+				throw new IllegalArgumentException("Invalid argument: kernels must have odd size");
+			
+			halo[axis] = kernels[axis].length >> 1;
+		}
+		
+		ConvolutionRegion box = region.clip(input.getSizeX(), input.getSizeY(), input.getSizeZ());
+		
+		if (box.isEmpty()) return;
+		
+		int blockSize = (box.width + 2 * halo[0]) * (box.height + 2 * halo[1]);
+		double[][] block = new double[box.depth + 2 * halo[2]][blockSize];
+		double[][] temp = new double[block.length][blockSize];
+		double[][] result = new double[box.depth][box.width * box.height];
+		
+		output.beginUpdate();
+		
+		try
+		{
+			for (int t = tMin; t < tMax; t++)
+				for (int c = 0; c < input.getSizeC(); c++)
+				{
+					box.read(input, t, c, halo[0], halo[1], halo[2], zeroEdges, false, block);
+					
+					convolve(block, temp, kernels, halo, box, input.getSizeX(), result);
+					
+					box.write(result, output, t, c);
+				}
+		}
+		finally
+		{
+			output.endUpdate();
+		}
+	}
+	
+	/**
+	 * Separable convolution of a region block (i.e. the region grown by the kernel radii). All
+	 * passes but the last one are computed over the entire block, while the last one is computed
+	 * for the region voxels only
+	 *
+	 * @param block
+	 *            the block data (overwritten)
+	 * @param temp
+	 *            a temporary buffer of the same size as the block
+	 * @param kernels
+	 *            the kernels along X, Y and Z (null to skip an axis)
+	 * @param halo
+	 *            the halo size along X, Y and Z
+	 * @param box
+	 *            the (clipped) region
+	 * @param imageWidth
+	 *            the image width (to access the region mask)
+	 * @param result
+	 *            the region values, given as a [Z][XY] array
+	 */
+	private static void convolve(double[][] block, double[][] temp, double[][] kernels, int[] halo, ConvolutionRegion box, int imageWidth, double[][] result)
+	{
+		Axis[] axes = { Axis.X, Axis.Y, Axis.Z };
+		
+		int blockWidth = box.width + 2 * halo[0];
+		int blockHeight = box.height + 2 * halo[1];
+		
+		int lastAxis = 0;
+		for (int axis = 0; axis < 3; axis++)
+			if (kernels[axis] != null) lastAxis = axis;
+		
+		double[][] source = block;
+		double[][] target = temp;
+		
+		for (int axis = 0; axis < lastAxis; axis++)
+		{
+			if (kernels[axis] == null) continue;
+			
+			convolve1D(source, target, blockWidth, blockHeight, kernels[axis], axes[axis]);
+			
+			double[][] swap = source;
+			source = target;
+			target = swap;
+		}
+		
+		// last pass: region voxels only
+		
+		double[] kernel = kernels[lastAxis];
+		int kRadius = kernel.length >> 1;
+		int stride = lastAxis == 0 ? 1 : blockWidth;
+		
+		for (int z = 0; z < box.depth; z++)
+		{
+			double[] out = result[z];
+			int bz = z + halo[2];
+			
+			for (int y = 0, xy = 0; y < box.height; y++)
+			{
+				int bOffset = (y + halo[1]) * blockWidth + halo[0];
+				
+				for (int x = 0; x < box.width; x++, xy++, bOffset++)
+				{
+					if (box.hasMask() && !box.contains(box.x + x, box.y + y, box.z + z, imageWidth)) continue;
+					
+					double value = 0;
+					
+					if (lastAxis == 2)
+					{
+						for (int k = 0; k < kernel.length; k++)
+							value += source[bz - kRadius + k][bOffset] * kernel[k];
+					}
+					else
+					{
+						double[] slice = source[bz];
+						for (int k = 0, offset = bOffset - kRadius * stride; k < kernel.length; k++, offset += stride)
+							value += slice[offset] * kernel[k];
+					}
+					
+					out[xy] = value;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Separable convolution of a (possibly very large) stack stored in long-indexed arrays, e.g. a
+	 * whole-slide mosaic with more than 2^31 pixels per plane. The stack is processed row by row,
+	 * such that only a few rows are held in regular arrays at any time
+	 * 
+	 * @param input
+	 *            the input stack, given as a [Z] array of XY planes (unchanged)
+	 * @param output
+	 *            the output stack, given as a [Z] array of XY planes (can be the input itself)
+	 * @param width
+	 *            the stack width
+	 * @param height
+	 *            the stack height
+	 * @param kernelX
+	 *            the kernel to use for convolution along X (or null)
+	 * @param kernelY
+	 *            the kernel to use for convolution along Y (or null)
+	 * @param kernelZ
+	 *            the kernel to use for convolution along Z (or null)
+	 * @param zeroEdges
+	 *            true if data outside the stack should be treated as zero, or false for
+	 *            mirroring condition
+	 * @throws IllegalArgumentException
+	 *             If all kernels are null or of even size
+	 */
+	public static void convolve(ChunkedDoubleArray[] input, ChunkedDoubleArray[] output, int width, int height, double[] kernelX, double[] kernelY, double[] kernelZ, boolean zeroEdges) throws IllegalArgumentException
+	{
+		if (kernelX == null && kernelY == null && kernelZ == null)
+			throw new IllegalArgumentException("Invalid argument: provide at least one non-null kernel");
+		
+		for (double[] kernel : new double[][] { kernelX, kernelY, kernelZ })
+			if (kernel != null && kernel.length % 2 == 0)
+				throw new IllegalArgumentException("Invalid argument: kernels must have odd size");
+		
+		int depth = input.length;
+		
+		// convolution along X from the input to the output (each row is padded)
+		
+		int kRadius = kernelX == null ? 0 : kernelX.length >> 1;
+		double[] line = new double[width + 2 * kRadius];
+		double[] row = new double[width + 2 * kRadius];
+		
+		for (int z = 0; z < depth; z++)
+			for (int y = 0; y < height; y++)
+			{
+				long offset = (long) y * width;
+				
+				if (kernelX == null)
+				{
+					if (output != input)
+					{
+						input[z].get(offset, row, 0, width);
+						output[z].set(offset, row, 0, width);
+					}
+					continue;
+				}
+				
+				input[z].get(offset, line, kRadius, width);
+				
+				for (int i = 1; i <= kRadius; i++)
+				{
+					line[kRadius - i] = zeroEdges ? 0 : line[kRadius + mirror(-i, width)];
+					line[kRadius + width - 1 + i] = zeroEdges ? 0 : line[kRadius + mirror(width - 1 + i, width)];
+				}
+				
+				convolveRange(line, row, kRadius, kRadius + width, 1, kernelX);
+				
+				output[z].set(offset, row, kRadius, width);
+			}
+		
+		// convolution along Y and Z in-place on the output
+		
+		if (kernelY != null)
+		{
+			for (int z = 0; z < depth; z++)
+				convolveRows(new ChunkedDoubleArray[] { output[z] }, 0, width, height, width, kernelY, zeroEdges);
+		}
+		
+		if (kernelZ != null && depth > 1)
+		{
+			for (int y = 0; y < height; y++)
+				convolveRows(output, (long) y * width, 0, depth, width, kernelZ, zeroEdges);
+		}
+	}
+	
+	/**
+	 * In-place convolution across consecutive rows of a long-indexed stack, where row i starts at
+	 * offset firstOffset + i * rowStep of slice i (if several slices are given) or of the single
+	 * given slice. The original values of the 2r+1 rows around the current one are kept in a ring
+	 * buffer, since the rows are overwritten as the convolution proceeds
+	 * 
+	 * @param slices
+	 *            the slices holding the rows (a single slice for convolution along Y, all the
+	 *            slices for convolution along Z)
+	 * @param firstOffset
+	 *            the offset of the first row
+	 * @param rowStep
+	 *            the offset between two consecutive rows within a slice
+	 * @param nbRows
+	 *            the number of rows
+	 * @param width
+	 *            the row length
+	 * @param kernel
+	 *            the odd-length kernel
+	 * @param zeroEdges
+	 *            true if data outside the stack should be treated as zero, or false for
+	 *            mirroring condition
+	 */
+	private static void convolveRows(ChunkedDoubleArray[] slices, long firstOffset, long rowStep, int nbRows, int width, double[] kernel, boolean zeroEdges)
+	{
+		int kRadius = kernel.length >> 1;
+		
+		double[][] ring = new double[kernel.length][width];
+		double[] sum = new double[width];
+		
+		// load the first r+1 rows
+		for (int i = 0; i <= kRadius && i < nbRows; i++)
+			slices[slices.length == 1 ? 0 : i].get(firstOffset + i * rowStep, ring[i], 0, width);
+		
+		for (int row = 0; row < nbRows; row++)
+		{
+			// load row + r in place of row - r - 1 (no longer needed)
+			int next = row + kRadius;
+			if (row > 0 && next < nbRows)
+				slices[slices.length == 1 ? 0 : next].get(firstOffset + next * rowStep, ring[next % ring.length], 0, width);
+			
+			Arrays.fill(sum, 0);
+			
+			for (int k = 0; k < kernel.length; k++)
+			{
+				int inRow = row - kRadius + k;
+				
+				if (inRow < 0 || inRow >= nbRows)
+				{
+					if (zeroEdges) continue;
+					
+					// mirrored rows remain within [row - r, row + r]
+					inRow = mirror(inRow, nbRows);
+				}
+				
+				double[] source = ring[inRow % ring.length];
+				double weight = kernel[k];
+				
+				for (int i = 0; i < width; i++)
+					sum[i] += source[i] * weight;
+			}
+			
+			slices[slices.length == 1 ? 0 : row].set(firstOffset + row * rowStep, sum, 0, width);
+		}
+	}
+	
+	/**
+	 * Low-level 3D separable convolution. <br>
+	 * The convolution is made "in-place", i.e. the input array is overwritten upon return. <br>
+	 * Warning: this is a low-level method. No check is performed on the input arguments, and the
+	 * method may return successfully though with incorrect results. Make sure your arguments follow
+	 * the indicated constraints.
+	 * 
+	 * @param input_Z_XY
+	 *            the input data buffer, given as a [Z (slice)][XY (1D offset)] double array
+	 * @param output_Z_XY
+	 *            the output data buffer, given as a [Z (slice)][XY (1D offset)] double array.
+	 * @param imageWidth
+	 *            the image width
+	 * @param imageHeight
+	 *            the image height
+	 * @param kernelX
+	 *            a 1D odd-length kernel to convolve along X (or null to skip convolution along X)
+	 * @param kernelY
+	 *            a 1D odd-length kernel to convolve along Y (or null to skip convolution along Y)
+	 * @param kernelZ
+	 *            a 1D odd-length kernel to convolve along Z (or null to skip convolution along Z)
+	 * @throws IllegalArgumentException
+	 *             If all kernels are null or of even size
+	 * @throws NullPointerException
+	 *             If the output array is null
+	 */
+	public static void convolve(double[][] array, int imageWidth, int imageHeight, double[] kernelX, double[] kernelY, double[] kernelZ) throws IllegalArgumentException, NullPointerException
+	{
+		int sliceSize = array[0].length;
+		
+		double[][] temp = new double[array.length][sliceSize];
+		
+		if (array.length == 1)
+		{
+			if (kernelX == null)
+			{
+				convolve1D(array, temp, imageWidth, imageHeight, 1, kernelY, Axis.Y, false);
+				
+				for (int z = 0; z < array.length; z++)
+					System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
+			}
+			else if (kernelY == null)
+			{
+				convolve1D(array, temp, imageWidth, imageHeight, 1, kernelX, Axis.X, false);
+				
+				for (int z = 0; z < array.length; z++)
+					System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
+			}
+			else
+			{
+				convolve1D(array, temp, imageWidth, imageHeight, 1, kernelX, Axis.X, false);
+				convolve1D(temp, array, imageWidth, imageHeight, 1, kernelY, Axis.Y, false);
+			}
+		}
+		else
+		{
+			if (kernelX == null)
+			{
+				if (kernelY == null)
+				{
+					convolve1D(array, temp, imageWidth, imageHeight, 1, kernelZ, Axis.Z, false);
+					
+					for (int z = 0; z < array.length; z++)
+						System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
+				}
+				else if (kernelZ == null)
+				{
+					convolve1D(array, temp, imageWidth, imageHeight, 1, kernelY, Axis.Y, false);
+					
+					for (int z = 0; z < array.length; z++)
+						System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
+				}
+				else
+				{
+					convolve1D(array, temp, imageWidth, imageHeight, 1, kernelY, Axis.Y, false);
+					convolve1D(temp, array, imageWidth, imageHeight, 1, kernelZ, Axis.Z, false);
+				}
+			}
+			// kernel_X is not null from here on
+			else if (kernelY == null)
+			{
+				if (kernelZ == null)
+				{
+					convolve1D(array, temp, imageWidth, imageHeight, 1, kernelX, Axis.X, false);
+					
+					for (int z = 0; z < array.length; z++)
+						System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
+				}
+				else
+				{
+					convolve1D(array, temp, imageWidth, imageHeight, 1, kernelX, Axis.X, false);
+					convolve1D(temp, array, imageWidth, imageHeight, 1, kernelZ, Axis.Z, false);
+				}
+			}
+			// kernel_X and kernel_Y are not null from here
+			else if (kernelZ == null)
+			{
+				convolve1D(array, temp, imageWidth, imageHeight, 1, kernelX, Axis.X, false);
+				convolve1D(temp, array, imageWidth, imageHeight, 1, kernelY, Axis.Y, false);
+			}
+			else
+			{
+				convolve1D(array, temp, imageWidth, imageHeight, 1, kernelX, Axis.X, false);
+				convolve1D(temp, array, imageWidth, imageHeight, 1, kernelY, Axis.Y, false);
+				convolve1D(array, temp, imageWidth, imageHeight, 1, kernelZ, Axis.Z, false);
+				
+				for (int z = 0; z < array.length; z++)
+					System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
+			}
+		}
+	}
+	
+	/**
+	 * Low-level 3D separable convolution of single precision data. <br>
+	 * The convolution is made "in-place" directly on the given arrays (typically those of a
+	 * {@link DataType#FLOAT} sequence): each line (along X) or row / slice (along Y and Z) is
+	 * accumulated in double precision into a small scratch buffer, such that no temporary volume
+	 * is needed. <br>
+	 * Warning: this is a low-level method. No check is performed on the input arguments.
+	 * 
+	 * @param array
+	 *            the data buffer, given as a [Z (slice)][XY (1D offset)] float array
+	 * @param imageWidth
+	 *            the image width
+	 * @param imageHeight
+	 *            the image height
+	 * @param kernelX
+	 *            a 1D odd-length kernel to convolve along X (or null to skip convolution along X)
+	 * @param kernelY
+	 *            a 1D odd-length kernel to convolve along Y (or null to skip convolution along Y)
+	 * @param kernelZ
+	 *            a 1D odd-length kernel to convolve along Z (or null to skip convolution along Z)
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 */
+	public static void convolve(float[][] array, int imageWidth, int imageHeight, double[] kernelX, double[] kernelY, double[] kernelZ, boolean zeroEdges)
+	{
+		if (kernelX != null) convolveX(array, imageWidth, imageHeight, kernelX, zeroEdges);
+		
+		if (kernelY != null)
+			for (float[] slice : array)
+				convolveRows(new float[][] { slice }, imageWidth, imageHeight, kernelY, zeroEdges);
+		
+		if (kernelZ != null && array.length > 1) convolveRows(array, imageWidth * imageHeight, 1, kernelZ, zeroEdges);
+	}
+	
+	/**
+	 * In-place convolution along X, using a padded line buffer
+	 */
+	private static void convolveX(float[][] array, int width, int height, double[] kernel, boolean zeroEdges)
+	{
+		int kRadius = kernel.length >> 1;
+		double[] line = new double[width + 2 * kRadius];
+		
+		for (float[] slice : array)
+			for (int offset = 0; offset < slice.length; offset += width)
+			{
+				for (int x = 0; x < width; x++)
+					line[x + kRadius] = slice[offset + x];
+				
+				for (int i = 1; i <= kRadius; i++)
+				{
+					line[kRadius - i] = zeroEdges ? 0 : line[kRadius + mirror(-i, width)];
+					line[kRadius + width - 1 + i] = zeroEdges ? 0 : line[kRadius + mirror(width - 1 + i, width)];
+				}
+				
+				for (int x = 0; x < width; x++)
+				{
+					double value = 0;
+					
+					for (int k = 0; k < kernel.length; k++)
+						value += line[x + k] * kernel[k];
+					
+					slice[offset + x] = (float) value;
+				}
+			}
+	}
+	
+	/**
+	 * In-place convolution across consecutive "rows" of a given length, where a row is either a
+	 * line of a slice (convolution along Y, with a single slice) or an entire slice (convolution
+	 * along Z, with rows of length width x height). The original values of the last r rows are
+	 * kept in a ring buffer, since they are overwritten before the next rows are computed
+	 * 
+	 * @param array
+	 *            the data, given as a single slice (Y) or as a stack of slices (Z)
+	 * @param rowLength
+	 *            the row length
+	 * @param rowsPerSlice
+	 *            the number of rows in each slice (image height for Y, 1 for Z)
+	 */
+	private static void convolveRows(float[][] array, int rowLength, int rowsPerSlice, double[] kernel, boolean zeroEdges)
+	{
+		int kRadius = kernel.length >> 1;
+		int nbRows = array.length * rowsPerSlice;
+		
+		float[][] saved = new float[kRadius][rowLength];
+		double[] sum = new double[rowLength];
+		
+		for (int row = 0; row < nbRows; row++)
+		{
+			Arrays.fill(sum, 0);
+			
+			for (int k = 0; k < kernel.length; k++)
+			{
+				int inRow = row - kRadius + k;
+				
+				if (inRow < 0 || inRow >= nbRows)
+				{
+					if (zeroEdges) continue;
+					
+					inRow = mirror(inRow, nbRows);
+				}
+				
+				// rows above the current one have already been overwritten
+				float[] source;
+				int offset;
+				
+				if (inRow < row)
+				{
+					source = saved[inRow % kRadius];
+					offset = 0;
+				}
+				else
+				{
+					source = array[inRow / rowsPerSlice];
+					offset = (inRow % rowsPerSlice) * rowLength;
+				}
+				
+				double weight = kernel[k];
+				
+				for (int i = 0; i < rowLength; i++)
+					sum[i] += source[offset + i] * weight;
+			}
+			
+			float[] target = array[row / rowsPerSlice];
+			int offset = (row % rowsPerSlice) * rowLength;
+			
+			if (kRadius > 0) System.arraycopy(target, offset, saved[row % kRadius], 0, rowLength);
+			
+			for (int i = 0; i < rowLength; i++)
+				target[offset + i] = (float) sum[i];
+		}
+	}
+	
+	/**
+	 * Convolves a range of elements that requires no border check, i.e. computes out[i] = sum of
+	 * in[i + (k - r) * stride] * kernel[k] for each i in [from, to). Kernels of size 3, 5 and 7
+	 * are handled by unrolled loops, with the taps held in local variables
+	 * 
+	 * @param in
+	 *            the input data
+	 * @param out
+	 *            the output data
+	 * @param from
+	 *            the first element to compute
+	 * @param to
+	 *            the last element to compute (exclusive)
+	 * @param stride
+	 *            the distance between two consecutive elements along the convolution axis
+	 * @param kernel
+	 *            an odd-length convolution kernel
+	 */
+	private static void convolveRange(double[] in, double[] out, int from, int to, int stride, double[] kernel)
+	{
+		switch (kernel.length)
+		{
+			case 3:
+			{
+				final double k0 = kernel[0], k1 = kernel[1], k2 = kernel[2];
+				
+				for (int i = from; i < to; i++)
+					out[i] = in[i - stride] * k0 + in[i] * k1 + in[i + stride] * k2;
+			}
+			break;
+			
+			case 5:
+			{
+				final double k0 = kernel[0], k1 = kernel[1], k2 = kernel[2], k3 = kernel[3], k4 = kernel[4];
+				final int s2 = 2 * stride;
+				
+				for (int i = from; i < to; i++)
+					out[i] = in[i - s2] * k0 + in[i - stride] * k1 + in[i] * k2 + in[i + stride] * k3 + in[i + s2] * k4;
+			}
+			break;
+			
+			case 7:
+			{
+				final double k0 = kernel[0], k1 = kernel[1], k2 = kernel[2], k3 = kernel[3], k4 = kernel[4], k5 = kernel[5], k6 = kernel[6];
+				final int s2 = 2 * stride, s3 = 3 * stride;
+				
+				for (int i = from; i < to; i++)
+					out[i] = in[i - s3] * k0 + in[i - s2] * k1 + in[i - stride] * k2 + in[i] * k3 + in[i + stride] * k4 + in[i + s2] * k5 + in[i + s3] * k6;
+			}
+			break;
+			
+			default:
+			{
+				int kRadius = kernel.length >> 1;
+				
+				for (int i = from; i < to; i++)
 				{
-					for (int z = 0; z < sequence.getSizeZ(); z++)
-						Array1DUtil.arrayToDoubleArray(sequence.getDataXY(t, z, c), z_xy[z], type.isSigned());
+					double value = 0;
 					
-					convolve(z_xy, sequence.getSizeX(), sequence.getSizeY(), kernel1D_X, kernel1D_Y, kernel1D_Z);
+					for (int kIndex = 0, kOffset = -kRadius * stride; kIndex < kernel.length; kOffset += stride, kIndex++)
+						value += in[i + kOffset] * kernel[kIndex];
 					
-					for (int z = 0; z < sequence.getSizeZ(); z++)
-					{
-						Array1DUtil.doubleArrayToSafeArray(z_xy[z], sequence.getDataXY(t, z, c), type.isSigned());
-					}
+					out[i] = value;
 				}
+			}
 		}
 	}
 	
 	/**
-	 * Low-level 3D separable convolution. <br>
-	 * The convolution is made "in-place", i.e. the input array is overwritten upon return. <br>
-	 * Warning: this is a low-level method. No check is performed on the input arguments, and the
-	 * method may return successfully though with incorrect results. Make sure your arguments follow
-	 * the indicated constraints.
+	 * Convolves a slice along Z that requires no border check. Kernels of size 3, 5 and 7 are
+	 * handled by unrolled loops, with the taps held in local variables
 	 * 
-	 * @param input_Z_XY
-	 *            the input data buffer, given as a [Z (slice)][XY (1D offset)] double array
-	 * @param output_Z_XY
-	 *            the output data buffer, given as a [Z (slice)][XY (1D offset)] double array.
-	 * @param imageWidth
-	 *            the image width
-	 * @param imageHeight
-	 *            the image height
-	 * @param kernelX
-	 *            a 1D odd-length kernel to convolve along X (or null to skip convolution along X)
-	 * @param kernelY
-	 *            a 1D odd-length kernel to convolve along Y (or null to skip convolution along Y)
-	 * @param kernelZ
-	 *            a 1D odd-length kernel to convolve along Z (or null to skip convolution along Z)
-	 * @throws IllegalArgumentException
-	 *             If all kernels are null or of even size
-	 * @throws NullPointerException
-	 *             If the output array is null
+	 * @param input
+	 *            the input stack, given as a [Z][XY] array
+	 * @param z
+	 *            the slice to compute
+	 * @param out
+	 *            the output slice
+	 * @param kernel
+	 *            an odd-length convolution kernel
 	 */
-	public static void convolve(double[][] array, int imageWidth, int imageHeight, double[] kernelX, double[] kernelY, double[] kernelZ) throws IllegalArgumentException, NullPointerException
+	private static void convolveSlices(double[][] input, int z, double[] out, double[] kernel)
 	{
-		int sliceSize = array[0].length;
-		
-		double[][] temp = new double[array.length][sliceSize];
-		
-		if (array.length == 1)
+		switch (kernel.length)
 		{
-			if (kernelX == null)
+			case 3:
 			{
-				convolve1D(array, temp, imageWidth, imageHeight, kernelY, Axis.Y);
+				final double k0 = kernel[0], k1 = kernel[1], k2 = kernel[2];
+				final double[] in0 = input[z - 1], in1 = input[z], in2 = input[z + 1];
 				
-				for (int z = 0; z < array.length; z++)
-					System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
+				for (int i = 0; i < out.length; i++)
+					out[i] = in0[i] * k0 + in1[i] * k1 + in2[i] * k2;
 			}
-			else if (kernelY == null)
+			break;
+			
+			case 5:
 			{
-				convolve1D(array, temp, imageWidth, imageHeight, kernelX, Axis.X);
+				final double k0 = kernel[0], k1 = kernel[1], k2 = kernel[2], k3 = kernel[3], k4 = kernel[4];
+				final double[] in0 = input[z - 2], in1 = input[z - 1], in2 = input[z], in3 = input[z + 1], in4 = input[z + 2];
 				
-				for (int z = 0; z < array.length; z++)
-					System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
+				for (int i = 0; i < out.length; i++)
+					out[i] = in0[i] * k0 + in1[i] * k1 + in2[i] * k2 + in3[i] * k3 + in4[i] * k4;
 			}
-			else
+			break;
+			
+			case 7:
 			{
-				convolve1D(array, temp, imageWidth, imageHeight, kernelX, Axis.X);
-				convolve1D(temp, array, imageWidth, imageHeight, kernelY, Axis.Y);
+				final double k0 = kernel[0], k1 = kernel[1], k2 = kernel[2], k3 = kernel[3], k4 = kernel[4], k5 = kernel[5], k6 = kernel[6];
+				final double[] in0 = input[z - 3], in1 = input[z - 2], in2 = input[z - 1], in3 = input[z], in4 = input[z + 1], in5 = input[z + 2], in6 = input[z + 3];
+				
+				for (int i = 0; i < out.length; i++)
+					out[i] = in0[i] * k0 + in1[i] * k1 + in2[i] * k2 + in3[i] * k3 + in4[i] * k4 + in5[i] * k5 + in6[i] * k6;
 			}
-		}
-		else
-		{
-			if (kernelX == null)
+			break;
+			
+			default:
 			{
-				if (kernelY == null)
+				int kRadius = kernel.length >> 1;
+				
+				for (int i = 0; i < out.length; i++)
 				{
-					convolve1D(array, temp, imageWidth, imageHeight, kernelZ, Axis.Z);
+					double value = 0;
 					
-					for (int z = 0; z < array.length; z++)
-						System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
-				}
-				else if (kernelZ == null)
-				{
-					convolve1D(array, temp, imageWidth, imageHeight, kernelY, Axis.Y);
+					for (int kIndex = 0, kOffset = -kRadius; kOffset <= kRadius; kOffset++, kIndex++)
+						value += input[z + kOffset][i] * kernel[kIndex];
 					
-					for (int z = 0; z < array.length; z++)
-						System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
-				}
-				else
-				{
-					convolve1D(array, temp, imageWidth, imageHeight, kernelY, Axis.Y);
-					convolve1D(temp, array, imageWidth, imageHeight, kernelZ, Axis.Z);
+					out[i] = value;
 				}
 			}
-			// kernel_X is not null from here on
-			else if (kernelY == null)
+		}
+	}
+	
+	/**
+	 * Low-level 1D convolution of multi-channel data. <br>
+	 * The channels are interleaved (i.e. the value of channel c at offset xy is stored at index
+	 * xy * nbChannels + c), and are convolved with the same kernel in a single sweep, sharing the
+	 * neighborhood indexing and the border handling. <br>
+	 * Warning: this is a low-level method. No check is performed on the input arguments.
+	 * 
+	 * @param input
+	 *            the input data buffer, given as a [Z (slice)][XYC (interleaved)] double array
+	 * @param output
+	 *            the output data buffer, given as a [Z (slice)][XYC (interleaved)] double array
+	 *            (must point to a different array than the input)
+	 * @param width
+	 *            the image width
+	 * @param height
+	 *            the image height
+	 * @param nbChannels
+	 *            the number of interleaved channels
+	 * @param kernel
+	 *            an odd-length convolution kernel
+	 * @param axis
+	 *            the axis along which to convolve
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 */
+	public static void convolve1D(double[][] input, double[][] output, int width, int height, int nbChannels, double[] kernel, Axis axis, boolean zeroEdges)
+	{
+		int rowLength = width * nbChannels;
+		int kRadius = kernel.length >> 1;
+		
+		// kernels of size 3, 5 and 7 are applied by unrolled loops away from the borders
+		boolean unrolled = kernel.length == 3 || kernel.length == 5 || kernel.length == 7;
+		
+		switch (axis)
+		{
+			case X:
 			{
-				if (kernelZ == null)
+				int[][] taps = taps(width, kernel, zeroEdges);
+				
+				for (int z = 0; z < input.length; z++)
 				{
-					convolve1D(array, temp, imageWidth, imageHeight, kernelX, Axis.X);
+					double[] in = input[z];
+					double[] out = output[z];
 					
-					for (int z = 0; z < array.length; z++)
-						System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
+					Arrays.fill(out, 0);
+					
+					for (int lineOffset = 0; lineOffset < out.length; lineOffset += rowLength)
+					{
+						// the interleaved channels are one element apart along the row
+						if (unrolled && kRadius < width - kRadius) convolveRange(in, out, lineOffset + kRadius * nbChannels, lineOffset + (width - kRadius) * nbChannels, nbChannels, kernel);
+						
+						for (int x = 0; x < width; x++)
+						{
+							if (unrolled && x >= kRadius && x < width - kRadius) continue;
+							
+							int outOffset = lineOffset + x * nbChannels;
+							
+							for (int k = 0; k < kernel.length; k++)
+							{
+								if (taps[x][k] < 0) continue;
+								
+								int inOffset = lineOffset + taps[x][k] * nbChannels;
+								double weight = kernel[k];
+								
+								for (int c = 0; c < nbChannels; c++)
+									out[outOffset + c] += in[inOffset + c] * weight;
+							}
+						}
+					}
 				}
-				else
+			}
+			break;
+			
+			case Y:
+			{
+				// entire rows (all columns and channels) are accumulated at once
+				int[][] taps = taps(height, kernel, zeroEdges);
+				
+				for (int z = 0; z < input.length; z++)
 				{
-					convolve1D(array, temp, imageWidth, imageHeight, kernelX, Axis.X);
-					convolve1D(temp, array, imageWidth, imageHeight, kernelZ, Axis.Z);
+					double[] in = input[z];
+					double[] out = output[z];
+					
+					Arrays.fill(out, 0);
+					
+					if (unrolled && kRadius < height - kRadius) convolveRange(in, out, kRadius * rowLength, (height - kRadius) * rowLength, rowLength, kernel);
+					
+					for (int y = 0; y < height; y++)
+					{
+						if (unrolled && y >= kRadius && y < height - kRadius) continue;
+						
+						int outOffset = y * rowLength;
+						
+						for (int k = 0; k < kernel.length; k++)
+						{
+							if (taps[y][k] < 0) continue;
+							
+							int inOffset = taps[y][k] * rowLength;
+							double weight = kernel[k];
+							
+							for (int i = 0; i < rowLength; i++)
+								out[outOffset + i] += in[inOffset + i] * weight;
+						}
+					}
 				}
 			}
-			// kernel_X and kernel_Y are not null from here
-			else if (kernelZ == null)
+			break;
+			
+			case Z:
 			{
-				convolve1D(array, temp, imageWidth, imageHeight, kernelX, Axis.X);
-				convolve1D(temp, array, imageWidth, imageHeight, kernelY, Axis.Y);
+				// entire slices are accumulated at once
+				int[][] taps = taps(input.length, kernel, zeroEdges);
+				
+				for (int z = 0; z < input.length; z++)
+				{
+					double[] out = output[z];
+					
+					if (unrolled && z >= kRadius && z < input.length - kRadius)
+					{
+						convolveSlices(input, z, out, kernel);
+						continue;
+					}
+					
+					Arrays.fill(out, 0);
+					
+					for (int k = 0; k < kernel.length; k++)
+					{
+						if (taps[z][k] < 0) continue;
+						
+						double[] in = input[taps[z][k]];
+						double weight = kernel[k];
+						
+						for (int i = 0; i < out.length; i++)
+							out[i] += in[i] * weight;
+					}
+				}
 			}
-			else
+			break;
+			
+			default:
+				throw new IllegalArgumentException("Invalid argument: use " + TemporalConvolution.class.getSimpleName() + " to convolve along " + axis);
+		}
+	}
+	
+	/**
+	 * Computes the positions read by each kernel tap along an axis. Taps with a zero coefficient
+	 * are skipped (see {@link SparseKernel})
+	 * 
+	 * @param length
+	 *            the number of elements along the axis
+	 * @param kernel
+	 *            the odd-length kernel
+	 * @param zeroEdges
+	 *            true if positions outside the axis should be skipped, or false for mirroring
+	 *            condition
+	 * @return a [position][tap] array of positions along the axis (-1 for skipped taps)
+	 */
+	private static int[][] taps(int length, double[] kernel, boolean zeroEdges)
+	{
+		int kRadius = kernel.length >> 1;
+		int[][] taps = new int[length][kernel.length];
+		
+		for (int i = 0; i < length; i++)
+			for (int k = 0; k < kernel.length; k++)
 			{
-				convolve1D(array, temp, imageWidth, imageHeight, kernelX, Axis.X);
-				convolve1D(temp, array, imageWidth, imageHeight, kernelY, Axis.Y);
-				convolve1D(array, temp, imageWidth, imageHeight, kernelZ, Axis.Z);
+				int inI = i - kRadius + k;
 				
-				for (int z = 0; z < array.length; z++)
-					System.arraycopy(temp[z], 0, array[z], 0, sliceSize);
+				if (kernel[k] == 0) inI = -1;
+				else if (inI < 0 || inI >= length) inI = zeroEdges ? -1 : mirror(inI, length);
+				
+				taps[i][k] = inI;
 			}
+		
+		return taps;
+	}
+	
+	/**
+	 * Reads all the channels of a plane into an interleaved buffer
+	 * 
+	 * @param sequence
+	 *            the sequence to read from
+	 * @param t
+	 *            the time point
+	 * @param z
+	 *            the slice
+	 * @param plane
+	 *            a temporary buffer of the size of a single channel
+	 * @param xyc
+	 *            the interleaved buffer to fill
+	 */
+	static void interleave(Sequence sequence, int t, int z, double[] plane, double[] xyc)
+	{
+		int nbChannels = sequence.getSizeC();
+		boolean signed = sequence.getDataType_().isSigned();
+		
+		for (int c = 0; c < nbChannels; c++)
+		{
+			Array1DUtil.arrayToDoubleArray(sequence.getDataXY(t, z, c), plane, signed);
+			
+			for (int xy = 0, i = c; xy < plane.length; xy++, i += nbChannels)
+				xyc[i] = plane[xy];
+		}
+	}
+	
+	/**
+	 * Extracts a single channel from an interleaved buffer
+	 * 
+	 * @param xyc
+	 *            the interleaved buffer
+	 * @param c
+	 *            the channel to extract
+	 * @param nbChannels
+	 *            the number of interleaved channels
+	 * @param plane
+	 *            the buffer receiving the channel data
+	 */
+	static void deinterleave(double[] xyc, int c, int nbChannels, double[] plane)
+	{
+		for (int xy = 0, i = c; xy < plane.length; xy++, i += nbChannels)
+			plane[xy] = xyc[i];
+	}
+	
+	/**
+	 * Mirror condition used by the separable engines (the border element is not repeated)
+	 * 
+	 * @param i
+	 *            an index, possibly outside [0, length-1]
+	 * @param length
+	 *            the number of elements along the considered axis
+	 * @return the mirrored index in [0, length-1]
+	 */
+	static int mirror(int i, int length)
+	{
+		if (length == 1) return 0;
+		
+		while (i < 0 || i >= length)
+		{
+			if (i < 0) i = -i;
+			if (i >= length) i = 2 * (length - 1) - i;
 		}
+		
+		return i;
 	}
 	
 	/**
@@ -423,16 +1483,12 @@ public class Convolution1D
 						
 						int eastBorder = width - kRadius;
 						
-						for (; x < eastBorder; x++, xy++)
+						if (x < eastBorder)
 						{
-							double value = 0;
-							
-							for (int kIndex = 0, kOffset = -kRadius; kOffset <= kRadius; kOffset++, kIndex++)
-							{
-								value += inSlice[xy + kOffset] * kernel[kIndex];
-							}
+							convolveRange(inSlice, outSlice, xy, xy + eastBorder - x, 1, kernel);
 							
-							outSlice[xy] = value;
+							xy += eastBorder - x;
+							x = eastBorder;
 						}
 						
 						// convolve the east border
@@ -446,7 +1502,7 @@ public class Convolution1D
 								int inOffset = xy + kOffset;
 								if (zeroEdges) // zero padding
 								{
-									if (inOffset < xEndOffset) {
+									if (inOffset <= xEndOffset) {
 										value += inSlice[inOffset] * kernel[kIndex];
 									}
 								}
@@ -500,7 +1556,7 @@ public class Convolution1D
 								else // mirror condition
 								{
 									if (inOffset < 0)
-										inOffset = yStartOffset - inOffset;
+										inOffset = yStartOffset + (yStartOffset - inOffset);
 									
 									value += in[inOffset] * kernel[kIndex];	
 								}
@@ -514,19 +1570,12 @@ public class Convolution1D
 					
 					int southBorder = height - kRadius;
 					
-					for (; y < southBorder; y++)
+					if (y < southBorder)
 					{
-						for (int x = 0; x < width; x++, xy++)
-						{
-							double value = 0;
-							
-							for (int kIndex = 0, kOffset = -kRadiusY; kOffset <= kRadiusY; kOffset += width, kIndex++)
-							{
-								value += in[xy + kOffset] * kernel[kIndex];
-							}
-							
-							out[xy] = value;
-						}
+						convolveRange(in, out, xy, xy + (southBorder - y) * width, width, kernel);
+						
+						xy += (southBorder - y) * width;
+						y = southBorder;
 					}
 					
 					// convolve the south border
@@ -603,26 +1652,7 @@ public class Convolution1D
 				int bottomBorder = input.length - kRadius;
 				
 				for (; z < bottomBorder; z++)
-				{
-					double[] out = output[z];
-					
-					int xy = 0;
-					
-					for (int y = 0; y < height; y++)
-					{
-						for (int x = 0; x < width; x++, xy++)
-						{
-							double value = 0;
-							
-							for (int kIndex = 0, kOffset = -kRadius; kOffset <= kRadius; kOffset++, kIndex++)
-							{
-								value += input[z + kOffset][xy] * kernel[kIndex];
-							}
-							
-							out[xy] = value;
-						}
-					}
-				}
+					convolveSlices(input, z, output[z], kernel);
 				
 				int zEndOffset = input.length - 1;
 				
@@ -661,6 +1691,9 @@ public class Convolution1D
 				}
 			}
 			break;
+			
+			default:
+				throw new IllegalArgumentException("Invalid argument: use " + TemporalConvolution.class.getSimpleName() + " to convolve along " + axis);
 		}
 	}
 	
@@ -36,6 +36,65 @@ public class ConvolutionCL
 	}
 	
 	public void convolve(Sequence input, Sequence kernel, boolean zeroEdge, int nbIter, VarBoolean stopFlag)
+	{
+		convolve(input, input, kernel, zeroEdge, nbIter, stopFlag);
+	}
+	
+	/**
+	 * Out-of-place 2D convolution. The input data is read once, iterations are performed in single
+	 * precision on the device, and the result is written directly in the data type of the output
+	 * (e.g. {@link DataType#FLOAT} to preserve negative values). The channel bounds of the output
+	 * are collected during the write-back and updated accordingly. Planes are processed in
+	 * pipelined mode (see
+	 * {@link #convolve(Sequence, Sequence, Sequence, boolean, int, boolean, VarBoolean)})
+	 * 
+	 * @param input
+	 *            the input sequence (unchanged, unless it is also the output)
+	 * @param output
+	 *            the output sequence, with the same dimensions as the input (see
+	 *            {@link Convolution#createOutput(Sequence, DataType)}). Can be the input itself
+	 * @param kernel
+	 *            the 2D convolution kernel
+	 * @param zeroEdge
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param nbIter
+	 *            the number of filter iterations
+	 * @param stopFlag
+	 *            a flag that stops the process when set to true
+	 */
+	public void convolve(Sequence input, Sequence output, Sequence kernel, boolean zeroEdge, int nbIter, VarBoolean stopFlag)
+	{
+		convolve(input, output, kernel, zeroEdge, nbIter, true, stopFlag);
+	}
+	
+	/**
+	 * Out-of-place 2D convolution (see
+	 * {@link #convolve(Sequence, Sequence, Sequence, boolean, int, VarBoolean)}). <br>
+	 * In pipelined mode, the device memory is double-buffered and all transfers are non-blocking,
+	 * such that the host converts and uploads plane n+1 while the device filters plane n, and
+	 * converts back plane n-1 as soon as its (asynchronous) read completes. Iterations are chained
+	 * on the device without any transfer. Otherwise, each plane is converted, uploaded, filtered,
+	 * read back and converted in turn (the host and the device wait for each other)
+	 * 
+	 * @param input
+	 *            the input sequence (unchanged, unless it is also the output)
+	 * @param output
+	 *            the output sequence, with the same dimensions as the input (see
+	 *            {@link Convolution#createOutput(Sequence, DataType)}). Can be the input itself
+	 * @param kernel
+	 *            the 2D convolution kernel
+	 * @param zeroEdge
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param nbIter
+	 *            the number of filter iterations
+	 * @param pipelined
+	 *            true to overlap the transfers and conversions with the computations
+	 * @param stopFlag
+	 *            a flag that stops the process when set to true
+	 */
+	public void convolve(Sequence input, Sequence output, Sequence kernel, boolean zeroEdge, int nbIter, boolean pipelined, VarBoolean stopFlag)
 	{
 		String funcName = zeroEdge ? "convolve2D" : "convolve2D_mirror";
 		
@@ -50,14 +109,6 @@ public class ConvolutionCL
 			throw new EzException("Unable to load OpenCL function \"" + funcName + "\"", true);
 		}
 		
-		int dataSize = input.getSizeX() * input.getSizeY();
-		
-		CLEvent event;
-		
-		float[] data = new float[dataSize];
-		
-		CLFloatBuffer cl_inBuffer = clContext.createFloatBuffer(Usage.Input, dataSize);
-		
 		double[] kernelDouble = kernel.getDataXYAsDouble(0, 0, 0);
 		
 		CLFloatBuffer cl_kBuffer = clContext.createFloatBuffer(Usage.Input, kernelDouble.length);
@@ -65,7 +116,38 @@ public class ConvolutionCL
 		for (double d : kernelDouble)
 			fb_k.put((float) d);
 		fb_k.rewind();
-		event = cl_kBuffer.unmap(clQueue, fb_k);
+		CLEvent event = cl_kBuffer.unmap(clQueue, fb_k);
+		
+		output.beginUpdate();
+		
+		OutputBounds bounds = new OutputBounds(output);
+		
+		try
+		{
+			if (pipelined)
+			{
+				convolvePipelined(input, output, clKernel, cl_kBuffer, kernel.getSizeX() >> 1, kernel.getSizeY() >> 1, nbIter, event, bounds, stopFlag);
+			}
+			else
+			{
+				convolveSerial(input, output, clKernel, cl_kBuffer, kernel.getSizeX() >> 1, kernel.getSizeY() >> 1, nbIter, event, bounds, stopFlag);
+			}
+		}
+		finally
+		{
+			output.endUpdate();
+			
+			bounds.apply(output);
+		}
+	}
+	
+	private void convolveSerial(Sequence input, Sequence output, CLKernel clKernel, CLFloatBuffer cl_kBuffer, int kWidth, int kHeight, int nbIter, CLEvent event, OutputBounds bounds, VarBoolean stopFlag)
+	{
+		int dataSize = input.getSizeX() * input.getSizeY();
+		
+		float[] data = new float[dataSize];
+		
+		CLFloatBuffer cl_inBuffer = clContext.createFloatBuffer(Usage.Input, dataSize);
 		
 		// create a "direct" float buffer
 		FloatBuffer outBuffer = ByteBuffer.allocateDirect(dataSize * 4).order(clContext.getByteOrder()).asFloatBuffer();
@@ -73,12 +155,10 @@ public class ConvolutionCL
 		CLFloatBuffer cl_outBuffer = clContext.createFloatBuffer(Usage.Output, outBuffer, false);
 		
 		// set the kernel arguments in order
-		clKernel.setArgs(cl_inBuffer, input.getSizeX(), input.getSizeY(), cl_kBuffer, kernel.getSizeX() >> 1, kernel.getSizeY() >> 1, cl_outBuffer);
+		clKernel.setArgs(cl_inBuffer, input.getSizeX(), input.getSizeY(), cl_kBuffer, kWidth, kHeight, cl_outBuffer);
 		
 		FloatBuffer fb;
 		
-		input.beginUpdate();
-		
 		DataType type = input.getDataType_();
 		
 		convolution: for (int t = 0; t < input.getSizeT(); t++)
@@ -115,15 +195,102 @@ public class ConvolutionCL
 						// rewind the buffer for future iterations
 						outBuffer.rewind();
 						
-						// convert back to image data
-						Array1DUtil.floatArrayToSafeArray(data, image.getDataXY(c), type.isSigned());
-						
-						if (stopFlag.getValue())
-							break convolution;
+						if (stopFlag.getValue()) break;
 					}
+					
+					// convert back to image data (once all iterations are done)
+					bounds.write(data, output, t, z, c);
+					
+					if (stopFlag.getValue())
+						break convolution;
 				}
 			}
 		}
-		input.endUpdate();
+	}
+	
+	private void convolvePipelined(Sequence input, Sequence output, CLKernel clKernel, CLFloatBuffer cl_kBuffer, int kWidth, int kHeight, int nbIter, CLEvent event, OutputBounds bounds, VarBoolean stopFlag)
+	{
+		int width = input.getSizeX();
+		int height = input.getSizeY();
+		int dataSize = width * height;
+		
+		int sizeZ = input.getSizeZ(), sizeC = input.getSizeC();
+		int nbPlanes = input.getSizeT() * sizeZ * sizeC;
+		
+		boolean signed = input.getDataType_().isSigned();
+		
+		float[] data = new float[dataSize];
+		
+		// two slots, each with a pair of device buffers (iterations alternate between them) and
+		// direct host buffers for the asynchronous transfers
+		CLFloatBuffer[][] cl_buffers = new CLFloatBuffer[2][2];
+		FloatBuffer[] inBuffers = new FloatBuffer[2];
+		FloatBuffer[] outBuffers = new FloatBuffer[2];
+		CLEvent[] readEvents = new CLEvent[2];
+		
+		try
+		{
+			for (int slot = 0; slot < 2; slot++)
+			{
+				cl_buffers[slot][0] = clContext.createFloatBuffer(Usage.InputOutput, dataSize);
+				cl_buffers[slot][1] = clContext.createFloatBuffer(Usage.InputOutput, dataSize);
+				inBuffers[slot] = ByteBuffer.allocateDirect(dataSize * 4).order(clContext.getByteOrder()).asFloatBuffer();
+				outBuffers[slot] = ByteBuffer.allocateDirect(dataSize * 4).order(clContext.getByteOrder()).asFloatBuffer();
+			}
+			
+			boolean stopped = false;
+			
+			for (int plane = 0; plane <= nbPlanes; plane++)
+			{
+				// plane n: convert and upload (while the device filters plane n-1)
+				if (plane < nbPlanes && !stopped)
+				{
+					int slot = plane & 1;
+					int c = plane % sizeC, z = (plane / sizeC) % sizeZ, t = plane / (sizeC * sizeZ);
+					
+					// the slot is free: its previous read (plane n-2) was waited for
+					Array1DUtil.arrayToFloatArray(input.getDataXY(t, z, c), data, signed);
+					inBuffers[slot].put(data);
+					inBuffers[slot].rewind();
+					
+					CLEvent slotEvent = cl_buffers[slot][0].write(clQueue, inBuffers[slot], false, event);
+					
+					for (int i = 0; i < nbIter; i++)
+					{
+						// the arguments are captured when the kernel is enqueued
+						clKernel.setArgs(cl_buffers[slot][i & 1], width, height, cl_kBuffer, kWidth, kHeight, cl_buffers[slot][1 - (i & 1)]);
+						slotEvent = clKernel.enqueueNDRange(clQueue, new int[] { dataSize }, slotEvent);
+					}
+					
+					readEvents[slot] = cl_buffers[slot][nbIter & 1].read(clQueue, outBuffers[slot], false, slotEvent);
+				}
+				
+				// plane n-1: convert back (while the device filters plane n)
+				if (plane > 0 && readEvents[(plane - 1) & 1] != null)
+				{
+					int previous = plane - 1, slot = previous & 1;
+					int c = previous % sizeC, z = (previous / sizeC) % sizeZ, t = previous / (sizeC * sizeZ);
+					
+					readEvents[slot].waitFor();
+					readEvents[slot] = null;
+					
+					outBuffers[slot].get(data);
+					outBuffers[slot].rewind();
+					
+					bounds.write(data, output, t, z, c);
+				}
+				
+				if (stopFlag.getValue()) stopped = true;
+			}
+		}
+		finally
+		{
+			// pending transfers must complete before the buffers are released
+			clQueue.finish();
+			
+			for (CLFloatBuffer[] pair : cl_buffers)
+				for (CLFloatBuffer buffer : pair)
+					if (buffer != null) buffer.release();
+		}
 	}
 }
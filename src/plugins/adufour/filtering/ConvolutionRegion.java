@@ -0,0 +1,332 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+import icy.type.collection.array.Array1DUtil;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Region of interest restricting a convolution to a 3D bounding box, and optionally to the voxels
+ * of a binary mask within this box. <br>
+ * The convolution engines only read the region grown by the kernel radius (the "halo"), and only
+ * compute (and write) the voxels of the region, such that the cost depends on the region size
+ * rather than on the image size.
+ * 
+ * @see Convolution#convolve(Sequence, Sequence, Sequence, boolean, ConvolutionRegion)
+ * @see Convolution1D#convolve(Sequence, Sequence, double[], double[], double[], boolean,
+ *      ConvolutionRegion)
+ */
+public class ConvolutionRegion
+{
+	/** First column of the region */
+	public final int		x;
+	
+	/** First row of the region */
+	public final int		y;
+	
+	/** First slice of the region */
+	public final int		z;
+	
+	/** Number of columns of the region */
+	public final int		width;
+	
+	/** Number of rows of the region */
+	public final int		height;
+	
+	/** Number of slices of the region */
+	public final int		depth;
+	
+	/**
+	 * Optional mask, given as a [Z][XY] array in image coordinates (null if the entire box should
+	 * be processed, null slices are not processed)
+	 */
+	private final boolean[][]	mask;
+	
+	/**
+	 * Creates a new box-shaped region
+	 * 
+	 * @param x
+	 *            the first column
+	 * @param y
+	 *            the first row
+	 * @param z
+	 *            the first slice
+	 * @param width
+	 *            the number of columns
+	 * @param height
+	 *            the number of rows
+	 * @param depth
+	 *            the number of slices
+	 */
+	public ConvolutionRegion(int x, int y, int z, int width, int height, int depth)
+	{
+		this(x, y, z, width, height, depth, null);
+	}
+	
+	/**
+	 * Creates a new region from a 2D bounding rectangle spanning the given slices
+	 * 
+	 * @param bounds
+	 *            the XY bounds of the region
+	 * @param zMin
+	 *            the first slice
+	 * @param zMax
+	 *            the last slice (inclusive)
+	 */
+	public ConvolutionRegion(Rectangle bounds, int zMin, int zMax)
+	{
+		this(bounds.x, bounds.y, zMin, bounds.width, bounds.height, zMax - zMin + 1, null);
+	}
+	
+	private ConvolutionRegion(int x, int y, int z, int width, int height, int depth, boolean[][] mask)
+	{
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.width = Math.max(0, width);
+		this.height = Math.max(0, height);
+		this.depth = Math.max(0, depth);
+		this.mask = mask;
+	}
+	
+	/**
+	 * Creates a new region from a binary mask. The region bounds are those of the mask
+	 * 
+	 * @param mask
+	 *            the mask, given as a [Z][XY] array in image coordinates (null slices are ignored)
+	 * @param imageWidth
+	 *            the image width
+	 * @return the region
+	 */
+	public static ConvolutionRegion fromMask(boolean[][] mask, int imageWidth)
+	{
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+		int maxX = -1, maxY = -1, maxZ = -1;
+		
+		for (int z = 0; z < mask.length; z++)
+		{
+			if (mask[z] == null) continue;
+			
+			for (int xy = 0; xy < mask[z].length; xy++)
+			{
+				if (!mask[z][xy]) continue;
+				
+				int x = xy % imageWidth, y = xy / imageWidth;
+				
+				if (x < minX) minX = x;
+				if (x > maxX) maxX = x;
+				if (y < minY) minY = y;
+				if (y > maxY) maxY = y;
+				if (z < minZ) minZ = z;
+				if (z > maxZ) maxZ = z;
+			}
+		}
+		
+		if (maxX < 0) return new ConvolutionRegion(0, 0, 0, 0, 0, 0, mask);
+		
+		return new ConvolutionRegion(minX, minY, minZ, maxX - minX + 1, maxY - minY + 1, maxZ - minZ + 1, mask);
+	}
+	
+	/**
+	 * @return the intersection of this region with the image bounds
+	 */
+	ConvolutionRegion clip(int imageWidth, int imageHeight, int imageDepth)
+	{
+		int x0 = Math.max(0, x), y0 = Math.max(0, y), z0 = Math.max(0, z);
+		int x1 = Math.min(imageWidth, x + width), y1 = Math.min(imageHeight, y + height), z1 = Math.min(imageDepth, z + depth);
+		
+		return new ConvolutionRegion(x0, y0, z0, x1 - x0, y1 - y0, z1 - z0, mask);
+	}
+	
+	/**
+	 * @return true if the region contains no voxel
+	 */
+	public boolean isEmpty()
+	{
+		return width == 0 || height == 0 || depth == 0;
+	}
+	
+	/**
+	 * @return true if this region has a mask
+	 */
+	public boolean hasMask()
+	{
+		return mask != null;
+	}
+	
+	/**
+	 * @param x
+	 *            a column (in image coordinates)
+	 * @param y
+	 *            a row (in image coordinates)
+	 * @param z
+	 *            a slice (in image coordinates)
+	 * @param imageWidth
+	 *            the image width
+	 * @return true if the specified voxel belongs to the region (and to its mask if any)
+	 */
+	public boolean contains(int x, int y, int z, int imageWidth)
+	{
+		if (x < this.x || y < this.y || z < this.z || x >= this.x + width || y >= this.y + height || z >= this.z + depth) return false;
+		
+		if (mask == null) return true;
+		
+		return z < mask.length && mask[z] != null && mask[z][x + y * imageWidth];
+	}
+	
+	/**
+	 * Reads the region grown by the given halo (in double precision). Data outside the image is
+	 * obtained by zero padding or mirroring
+	 * 
+	 * @param input
+	 *            the sequence to read from
+	 * @param t
+	 *            the time point
+	 * @param c
+	 *            the channel
+	 * @param haloX
+	 *            the halo along X
+	 * @param haloY
+	 *            the halo along Y
+	 * @param haloZ
+	 *            the halo along Z
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param classicMirror
+	 *            true to use the mirroring convention of {@link Convolution}, false to use that of
+	 *            {@link Convolution1D}
+	 * @param block
+	 *            the buffer to fill, given as a [Z][XY] array of size (depth + 2 * haloZ) x
+	 *            (width + 2 * haloX) x (height + 2 * haloY)
+	 */
+	void read(Sequence input, int t, int c, int haloX, int haloY, int haloZ, boolean zeroEdges, boolean classicMirror, double[][] block)
+	{
+		int imageWidth = input.getSizeX();
+		int imageHeight = input.getSizeY();
+		int imageDepth = input.getSizeZ();
+		boolean signed = input.getDataType_().isSigned();
+		
+		int blockWidth = width + 2 * haloX;
+		int blockHeight = height + 2 * haloY;
+		
+		// extent of the block columns inside the image
+		int inStart = Math.max(0, x - haloX);
+		int inEnd = Math.min(imageWidth, x + width + haloX);
+		boolean hasOuterColumns = x - haloX < 0 || x + width + haloX > imageWidth;
+		
+		for (int bz = 0; bz < block.length; bz++)
+		{
+			double[] slice = block[bz];
+			int inZ = z - haloZ + bz;
+			
+			if (inZ < 0 || inZ >= imageDepth)
+			{
+				if (zeroEdges)
+				{
+					Arrays.fill(slice, 0);
+					continue;
+				}
+				inZ = mirror(inZ, imageDepth, classicMirror);
+			}
+			
+			for (int by = 0, bOffset = 0; by < blockHeight; by++, bOffset += blockWidth)
+			{
+				int inY = y - haloY + by;
+				
+				if (inY < 0 || inY >= imageHeight)
+				{
+					if (zeroEdges)
+					{
+						Arrays.fill(slice, bOffset, bOffset + blockWidth, 0);
+						continue;
+					}
+					inY = mirror(inY, imageHeight, classicMirror);
+				}
+				
+				Object plane = input.getDataXY(t, inZ, c);
+				int lineOffset = inY * imageWidth;
+				
+				// bulk copy of the part inside the image
+				Array1DUtil.arrayToDoubleArray(plane, lineOffset + inStart, slice, bOffset + inStart - (x - haloX), inEnd - inStart, signed);
+				
+				if (!hasOuterColumns) continue;
+				
+				// west and east halos outside the image (only the mirrored voxels are converted)
+				for (int bx = 0; bx < blockWidth; bx++)
+				{
+					int inX = x - haloX + bx;
+					
+					if (inX >= 0 && inX < imageWidth) continue;
+					
+					if (zeroEdges)
+						slice[bOffset + bx] = 0;
+					else
+						Array1DUtil.arrayToDoubleArray(plane, lineOffset + mirror(inX, imageWidth, classicMirror), slice, bOffset + bx, 1, signed);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes the region values into the output sequence (only the voxels of the mask, if any)
+	 * 
+	 * @param values
+	 *            the region values, given as a [Z][XY] array of size depth x width x height
+	 * @param output
+	 *            the sequence to write to
+	 * @param t
+	 *            the time point
+	 * @param c
+	 *            the channel
+	 */
+	void write(double[][] values, Sequence output, int t, int c)
+	{
+		int imageWidth = output.getSizeX();
+		boolean signed = output.getDataType_().isSigned();
+		
+		for (int rz = 0; rz < depth; rz++)
+		{
+			if (mask != null && (z + rz >= mask.length || mask[z + rz] == null)) continue;
+			
+			Object plane = output.getDataXY(t, z + rz, c);
+			
+			for (int ry = 0; ry < height; ry++)
+			{
+				int outOffset = (y + ry) * imageWidth + x;
+				
+				if (mask == null)
+				{
+					Array1DUtil.doubleArrayToSafeArray(values[rz], ry * width, plane, outOffset, width, signed);
+				}
+				else
+				{
+					boolean[] maskSlice = mask[z + rz];
+					
+					// consecutive voxels of the mask are written at once
+					for (int rx = 0; rx < width; rx++)
+					{
+						if (!maskSlice[outOffset + rx]) continue;
+						
+						int start = rx;
+						while (rx < width && maskSlice[outOffset + rx])
+							rx++;
+						
+						Array1DUtil.doubleArrayToSafeArray(values[rz], ry * width + start, plane, outOffset + start, rx - start, signed);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the mirrored index of i in [0, size-1]
+	 */
+	private static int mirror(int i, int size, boolean classic)
+	{
+		if (classic) return Math.max(0, Math.min(size - 1, Convolution.mirror(i, size)));
+		
+		return Convolution1D.mirror(i, size);
+	}
+}
@@ -0,0 +1,923 @@
+package plugins.adufour.filtering;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeSet;
+
+import plugins.adufour.vars.lang.VarBoolean;
+
+import com.nativelibs4java.opencl.CLBuildException;
+import com.nativelibs4java.opencl.CLContext;
+import com.nativelibs4java.opencl.CLException;
+import com.nativelibs4java.opencl.CLProgram;
+import com.nativelibs4java.opencl.CLQueue;
+import com.nativelibs4java.opencl.JavaCL;
+import com.ochafik.io.ReadText;
+
+/**
+ * Headless equivalence and performance regression harness for the convolution engines
+ * ({@link Convolution}, {@link Convolution1D} and {@link ConvolutionCL}). <br>
+ * Synthetic sequences of every {@link DataType}, with one and several channels, are filtered by
+ * every applicable engine, with every built-in 2D kernel (and a few wider separable and
+ * non-separable kernels, in 2D and 3D), with zero and mirror edges, out-of-place, in-place (the
+ * output being the input itself, or through the in-place methods) and with several iterations.
+ * Each result is checked over whole stacks against a brute-force reference computed in double
+ * precision, which follows the mirroring convention of
+ * the engine and, when the engine writes every iteration back into the sequence, the conversion
+ * to the data type after each iteration (see {@link #DOUBLE_TOLERANCE}, {@link #FLOAT_TOLERANCE}).
+ * <br>
+ * The throughput of each single-iteration run (in millions of voxels per second) is compared to
+ * a baseline file, and the harness fails (exit code 1) if a result is wrong or if a throughput
+ * dropped by more than the given threshold. Usage:
+ * 
+ * <pre>
+ * java plugins.adufour.filtering.EngineHarness [-update] [-threshold 0.2] [-size 256] [-workers 3] [baseline file]
+ * </pre>
+ * 
+ * where <code>-update</code> records the measured throughputs as the new baseline (the baseline
+ * is also recorded if the file does not exist yet), and <code>-workers</code> sets the number of
+ * local worker processes used to check {@link ShardedConvolution} against
+ * {@link Convolution1D} (the check is skipped with less than 2 workers).
+ * 
+ */
+public class EngineHarness
+{
+	public enum Engine
+	{
+		/** {@link Convolution}, double precision output */
+		CLASSIC,
+		
+		/** {@link Convolution}, output of the input type (exact integer path for 8/16-bit data) */
+		CLASSIC_NATIVE,
+		
+		/** {@link Convolution}, the output being the input itself */
+		CLASSIC_ALIASED,
+		
+		/** {@link Convolution}, in-place method (each iteration is written back) */
+		CLASSIC_IN_PLACE,
+		
+		/** {@link Convolution1D} (separable kernels only), double precision output */
+		SEPARABLE,
+		
+		/** {@link Convolution1D}, output of the input type (exact integer path for 8/16-bit data) */
+		SEPARABLE_NATIVE,
+		
+		/** {@link Convolution1D}, the output being the input itself */
+		SEPARABLE_ALIASED,
+		
+		/**
+		 * {@link Convolution1D}, in-place method (single precision path for float data, integer or
+		 * single precision path for 8/16-bit data, mirror edges only)
+		 */
+		SEPARABLE_IN_PLACE,
+		
+		/** {@link ConvolutionCL} (if an OpenCL device is available), single precision output */
+		OPENCL
+	}
+	
+	/**
+	 * Maximum error of the double precision engines, relative to the largest absolute value of the
+	 * reference
+	 */
+	public static final double	DOUBLE_TOLERANCE	= 1e-9;
+	
+	/**
+	 * Maximum error of the single precision engines, relative to the largest absolute value of the
+	 * reference
+	 */
+	public static final double	FLOAT_TOLERANCE		= 1e-4;
+	
+	/**
+	 * Default maximum relative drop of throughput with respect to the baseline
+	 */
+	public static final double	DEFAULT_THRESHOLD	= 0.2;
+	
+	/**
+	 * Default width and height of the synthetic sequences
+	 */
+	public static final int		DEFAULT_SIZE		= 256;
+	
+	/**
+	 * Number of timed runs per test (the best one is kept), after a first (checked) run
+	 */
+	private static final int	NB_RUNS				= 3;
+	
+	/**
+	 * Number of iterations of the multi-iteration runs (which are checked, but not timed)
+	 */
+	private static final int	NB_ITERATIONS		= 3;
+	
+	/**
+	 * Default number of worker processes of the sharded convolution check
+	 */
+	public static final int		DEFAULT_NB_WORKERS	= 3;
+	
+	private static final int	SIZE_Z				= 4;
+	
+	/**
+	 * Numbers of channels of the synthetic sequences (the engines batch several channels together)
+	 */
+	private static final int[]	SIZES_C				= { 1, 2 };
+	
+	public static void main(String[] args) throws IOException
+	{
+		boolean update = false;
+		double threshold = DEFAULT_THRESHOLD;
+		int size = DEFAULT_SIZE;
+		int nbWorkers = DEFAULT_NB_WORKERS;
+		File baselineFile = new File("engine-baseline.properties");
+		
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-update")) update = true;
+			else if (args[i].equals("-threshold")) threshold = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-size")) size = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-workers")) nbWorkers = Integer.parseInt(args[++i]);
+			else baselineFile = new File(args[i]);
+		}
+		
+		Properties baseline = load(baselineFile);
+		Properties results = new Properties();
+		
+		ConvolutionCL convolutionCL = createConvolutionCL();
+		
+		List<Sequence> kernels = createKernels();
+		
+		int nbFailures = 0, nbRegressions = 0;
+		
+		for (DataType type : DataType.values())
+			for (int sizeC : SIZES_C)
+			{
+				Sequence input;
+				
+				try
+				{
+					input = createInput(type, size, size, sizeC, type.ordinal());
+				}
+				catch (RuntimeException e)
+				{
+					System.out.println("Skipping " + type + " (" + e + ")");
+					continue;
+				}
+				
+				for (Sequence kernel : kernels)
+					for (boolean zeroEdges : new boolean[] { true, false })
+					{
+						double[][] factors = KernelComposition.separate(kernel, KernelComposition.SEPARABILITY_TOLERANCE);
+						
+						// references shared by the engines with the same conventions
+						Map<String, double[][]> references = new HashMap<String, double[][]>();
+						
+						for (Engine engine : Engine.values())
+						{
+							if (isSeparable(engine) && factors == null) continue;
+							if (engine == Engine.SEPARABLE_IN_PLACE && zeroEdges) continue;
+							if (engine == Engine.OPENCL && (convolutionCL == null || kernel.getSizeZ() > 1)) continue;
+							
+							// the classic engines mirror once, and cannot reach beyond the mirrored stack
+							if (!isSeparable(engine) && !zeroEdges && kernel.getSizeZ() / 2 > SIZE_Z - 2) continue;
+							
+							boolean rounded = isRoundedEachIteration(engine, type, kernel, factors);
+							
+							for (int nbIter : new int[] { 1, NB_ITERATIONS })
+							{
+								String key = engine + "." + type + ".C" + sizeC + "." + kernel.getName().replace(' ', '_') + "." + (zeroEdges ? "zero" : "mirror") + (nbIter > 1 ? ".x" + nbIter : "");
+								
+								String referenceKey = isSeparable(engine) + "." + nbIter + "." + rounded;
+								double[][] reference = references.get(referenceKey);
+								
+								if (reference == null)
+								{
+									reference = reference(input, kernel, zeroEdges, isSeparable(engine), nbIter, rounded ? type : null);
+									references.put(referenceKey, reference);
+								}
+								
+								Sequence output = Convolution.createOutput(input, getOutputType(engine, type));
+								
+								try
+								{
+									if (isInPlace(engine)) copy(input, output);
+									run(engine, input, output, kernel, factors, zeroEdges, nbIter, convolutionCL);
+								}
+								catch (RuntimeException e)
+								{
+									System.out.println("FAILED  " + key + ": " + e);
+									nbFailures++;
+									continue;
+								}
+								
+								double error = error(output, reference);
+								double tolerance = getTolerance(engine, type, kernel, nbIter, rounded);
+								
+								String status = error <= tolerance ? "ok" : "FAILED";
+								if (error > tolerance) nbFailures++;
+								
+								if (nbIter > 1)
+								{
+									System.out.println(String.format("%-7s %s: error %.2e", status, key, error));
+									continue;
+								}
+								
+								long best = Long.MAX_VALUE;
+								
+								for (int i = 0; i < NB_RUNS; i++)
+								{
+									if (isInPlace(engine)) copy(input, output);
+									
+									long start = System.nanoTime();
+									run(engine, input, output, kernel, factors, zeroEdges, 1, convolutionCL);
+									best = Math.min(best, System.nanoTime() - start);
+								}
+								
+								double throughput = (double) size * size * SIZE_Z * sizeC / (best / 1e3);
+								results.setProperty(key, String.valueOf(Math.round(throughput * 1000) / 1000.0));
+								
+								String recorded = baseline.getProperty(key);
+								String comparison = "";
+								
+								if (recorded != null)
+								{
+									double expected = Double.parseDouble(recorded);
+									comparison = String.format(" (baseline %.1f)", expected);
+									
+									if (!update && throughput < expected * (1 - threshold))
+									{
+										status = status.equals("ok") ? "SLOWER" : status;
+										nbRegressions++;
+									}
+								}
+								
+								System.out.println(String.format("%-7s %s: error %.2e, %.1f Mvoxels/s", status, key, error, throughput) + comparison);
+							}
+						}
+					}
+			}
+		
+		if (nbWorkers > 1) nbFailures += checkSharded(nbWorkers);
+		
+		if (convolutionCL != null)
+		{
+			convolutionCL.clQueue.release();
+			convolutionCL.clContext.release();
+		}
+		
+		if (update || baseline.isEmpty())
+		{
+			save(results, baselineFile);
+			System.out.println("Baseline recorded in " + baselineFile.getAbsolutePath());
+		}
+		else
+		{
+			TreeSet<String> missing = new TreeSet<String>(results.stringPropertyNames());
+			missing.removeAll(baseline.stringPropertyNames());
+			if (!missing.isEmpty()) System.out.println("Not in the baseline (use -update to record): " + missing);
+		}
+		
+		System.out.println(nbFailures + " wrong result(s), " + nbRegressions + " regression(s) beyond " + (int) Math.round(threshold * 100) + "%");
+		
+		System.exit(nbFailures + nbRegressions > 0 ? 1 : 0);
+	}
+	
+	/**
+	 * Checks the sharded convolution against the single-process one, on stacks split into 2 to
+	 * nbWorkers slabs (some thinner than the kernel radius along Z, such that the halo spans
+	 * several slabs), in-memory and through a raw file
+	 * 
+	 * @return the number of wrong results
+	 */
+	private static int checkSharded(int nbWorkers) throws IOException
+	{
+		int width = 53, height = 37, depth = 7;
+		
+		double[] kernelX = Kernel1D.gaussian(1).getData();
+		double[] kernelY = Kernel1D.GRADIENT.getData();
+		double[] kernelZ = Kernel1D.gaussian(1.5).getData();
+		
+		Random random = new Random(depth);
+		ChunkedDoubleArray[] input = ChunkedDoubleArray.createStack(width, height, depth);
+		
+		for (ChunkedDoubleArray slice : input)
+			for (long i = 0; i < slice.length(); i++)
+				slice.set(i, random.nextDouble() * 1000);
+		
+		int nbFailures = 0;
+		
+		for (int n = 2; n <= nbWorkers; n++)
+			for (boolean zeroEdges : new boolean[] { true, false })
+			{
+				ChunkedDoubleArray[] expected = ChunkedDoubleArray.createStack(width, height, depth);
+				Convolution1D.convolve(input, expected, width, height, kernelX, kernelY, kernelZ, zeroEdges);
+				
+				ShardedConvolution sharded = new ShardedConvolution(n);
+				VarBoolean stopFlag = new VarBoolean("stop", false);
+				
+				for (boolean useFile : new boolean[] { false, true })
+				{
+					String key = "SHARDED." + n + "_workers." + (useFile ? "file" : "memory") + "." + (zeroEdges ? "zero" : "mirror");
+					
+					ChunkedDoubleArray[] output = ChunkedDoubleArray.createStack(width, height, depth);
+					
+					try
+					{
+						if (useFile)
+						{
+							File file = File.createTempFile("stack", ".raw");
+							ShardedConvolution.RawFile stack = new ShardedConvolution.RawFile(file, width, height);
+							double[] row = new double[width];
+							
+							try
+							{
+								for (int z = 0; z < depth; z++)
+									for (int y = 0; y < height; y++)
+									{
+										input[z].get((long) y * width, row, 0, width);
+										stack.write(z, y, row);
+									}
+								
+								// in-place on the file
+								sharded.convolve(stack, stack, width, height, depth, kernelX, kernelY, kernelZ, zeroEdges, stopFlag);
+								
+								for (int z = 0; z < depth; z++)
+									for (int y = 0; y < height; y++)
+									{
+										stack.read(z, y, row);
+										output[z].set((long) y * width, row, 0, width);
+									}
+							}
+							finally
+							{
+								stack.close();
+								file.delete();
+							}
+						}
+						else
+						{
+							sharded.convolve(input, output, width, height, kernelX, kernelY, kernelZ, zeroEdges, stopFlag);
+						}
+					}
+					catch (IOException e)
+					{
+						System.out.println("FAILED  " + key + ": " + e);
+						nbFailures++;
+						continue;
+					}
+					
+					double maxError = 0, maxValue = 0;
+					
+					for (int z = 0; z < depth; z++)
+						for (long i = 0; i < expected[z].length(); i++)
+						{
+							maxError = Math.max(maxError, Math.abs(output[z].get(i) - expected[z].get(i)));
+							maxValue = Math.max(maxValue, Math.abs(expected[z].get(i)));
+						}
+					
+					double error = maxError / Math.max(1, maxValue);
+					
+					if (error > DOUBLE_TOLERANCE) nbFailures++;
+					
+					System.out.println(String.format("%-7s %s: error %.2e", error <= DOUBLE_TOLERANCE ? "ok" : "FAILED", key, error));
+				}
+			}
+		
+		return nbFailures;
+	}
+	
+	/**
+	 * @return the built-in 2D kernels, along with a few wider separable and non-separable kernels,
+	 *         and 3D kernels (separable ones with a Z factor wider than the stacks, and a
+	 *         non-separable 3x3x3 one)
+	 */
+	private static List<Sequence> createKernels()
+	{
+		List<Sequence> kernels = new ArrayList<Sequence>();
+		
+		for (Kernels2D kernel : Kernels2D.values())
+			if (kernel != Kernels2D.CUSTOM && kernel != Kernels2D.CUSTOM_GABOR) kernels.add(Kernel2D.valueOf(kernel).toSequence());
+		
+		kernels.add(Kernel1D.gaussian(2).toSequence());
+		kernels.add(KernelComposition.compose(Kernel1D.gaussian(1.5), Kernel2D.valueOf(Kernels2D.SOBEL_Y)));
+		kernels.add(Kernel2D.gabor(2, 0.5, 0.5, true).toSequence());
+		
+		double[] wideZ = Kernel1D.gaussian(2).getData();
+		kernels.add(createKernel3D("Gaussian_Z", new double[] { 1 }, new double[] { 1 }, wideZ));
+		kernels.add(createKernel3D("Gaussian_X_gradient_Y_Gaussian_Z", Kernel1D.gaussian(1).getData(), Kernel1D.GRADIENT.getData(), wideZ));
+		
+		// integer-valued, asymmetric along each axis, and not separable
+		Sequence kernel = new Sequence("3x3x3");
+		
+		for (int z = 0; z < 3; z++)
+		{
+			IcyBufferedImage image = new IcyBufferedImage(3, 3, 1, DataType.DOUBLE);
+			double[] data = new double[9];
+			
+			for (int xy = 0; xy < 9; xy++)
+				data[xy] = (xy + 3 * z) % 5 - 2;
+			
+			image.setDataXYAsDouble(0, data);
+			kernel.setImage(0, z, image);
+		}
+		
+		kernels.add(kernel);
+		
+		return kernels;
+	}
+	
+	/**
+	 * @return the 3D kernel given by the outer product of the given 1D kernels
+	 */
+	private static Sequence createKernel3D(String name, double[] kernelX, double[] kernelY, double[] kernelZ)
+	{
+		Sequence kernel = new Sequence(name);
+		
+		for (int z = 0; z < kernelZ.length; z++)
+		{
+			IcyBufferedImage image = new IcyBufferedImage(kernelX.length, kernelY.length, 1, DataType.DOUBLE);
+			double[] data = image.getDataXYAsDouble(0);
+			
+			for (int y = 0, xy = 0; y < kernelY.length; y++)
+				for (int x = 0; x < kernelX.length; x++, xy++)
+					data[xy] = kernelX[x] * kernelY[y] * kernelZ[z];
+			
+			image.setDataXYAsDouble(0, data);
+			kernel.setImage(0, z, image);
+		}
+		
+		return kernel;
+	}
+	
+	/**
+	 * @return a new sequence of the given type filled with (reproducible) random values spanning
+	 *         a typical range of the type
+	 */
+	private static Sequence createInput(DataType type, int width, int height, int sizeC, long seed)
+	{
+		Random random = new Random(seed);
+		
+		double min, max;
+		
+		switch (type)
+		{
+			case UBYTE:
+				min = 0;
+				max = 255;
+			break;
+			case BYTE:
+				min = -128;
+				max = 127;
+			break;
+			case USHORT:
+				min = 0;
+				max = 4095;
+			break;
+			case SHORT:
+				min = -2048;
+				max = 2047;
+			break;
+			default:
+				min = type.isSigned() ? -1000 : 0;
+				max = 1000;
+		}
+		
+		boolean integer = !type.isFloat();
+		boolean signed = type.isSigned();
+		
+		Sequence sequence = new Sequence(type.toString());
+		double[] values = new double[width * height];
+		
+		for (int z = 0; z < SIZE_Z; z++)
+		{
+			IcyBufferedImage image = new IcyBufferedImage(width, height, sizeC, type);
+			
+			for (int c = 0; c < sizeC; c++)
+			{
+				for (int i = 0; i < values.length; i++)
+				{
+					double value = min + random.nextDouble() * (max - min);
+					values[i] = integer ? Math.floor(value) : value;
+				}
+				
+				Array1DUtil.doubleArrayToSafeArray(values, image.getDataXY(c), signed);
+			}
+			
+			sequence.setImage(0, z, image);
+		}
+		
+		return sequence;
+	}
+	
+	/**
+	 * @return true if the given engine is one of the separable engines (which use the mirroring
+	 *         convention of {@link Convolution1D#mirror(int, int)})
+	 */
+	private static boolean isSeparable(Engine engine)
+	{
+		switch (engine)
+		{
+			case SEPARABLE:
+			case SEPARABLE_NATIVE:
+			case SEPARABLE_ALIASED:
+			case SEPARABLE_IN_PLACE:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * @return true if the given engine writes its result over its input (which must therefore be
+	 *         a copy of the input sequence)
+	 */
+	private static boolean isInPlace(Engine engine)
+	{
+		switch (engine)
+		{
+			case CLASSIC_ALIASED:
+			case CLASSIC_IN_PLACE:
+			case SEPARABLE_ALIASED:
+			case SEPARABLE_IN_PLACE:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * @return true if the given engine converts the result to the data type after each iteration
+	 *         (i.e. the in-place methods, and the exact integer paths)
+	 */
+	private static boolean isRoundedEachIteration(Engine engine, DataType type, Sequence kernel, double[][] factors)
+	{
+		switch (engine)
+		{
+			case CLASSIC_IN_PLACE:
+			case SEPARABLE_IN_PLACE:
+				return true;
+			
+			case CLASSIC_NATIVE:
+			case CLASSIC_ALIASED:
+				return IntegerConvolution.isSupported(type) && IntegerConvolution.getScale(kernel.getDataXYZAsDouble(0, 0)) != 0;
+			
+			case SEPARABLE_NATIVE:
+			case SEPARABLE_ALIASED:
+			{
+				if (!IntegerConvolution.isSupported(type)) return false;
+				
+				for (double[] factor : factors)
+					if (factor != null && IntegerConvolution.getScale(factor) == 0) return false;
+				
+				return true;
+			}
+			
+			default:
+				return false;
+		}
+	}
+	
+	private static DataType getOutputType(Engine engine, DataType inputType)
+	{
+		switch (engine)
+		{
+			case CLASSIC:
+			case SEPARABLE:
+				return DataType.DOUBLE;
+			case OPENCL:
+				return DataType.FLOAT;
+			default:
+				return inputType;
+		}
+	}
+	
+	private static double getTolerance(Engine engine, DataType inputType, Sequence kernel, int nbIter, boolean rounded)
+	{
+		DataType outputType = getOutputType(engine, inputType);
+		
+		if (outputType == DataType.DOUBLE) return DOUBLE_TOLERANCE;
+		
+		if (outputType.isFloat()) return FLOAT_TOLERANCE;
+		
+		// absolute: one unit of rounding for integer types, amplified by each subsequent iteration
+		// if every iteration is rounded (engines and reference may round differently)
+		if (!rounded) return 1;
+		
+		double gain = 0;
+		for (double[] plane : kernel.getDataXYZAsDouble(0, 0))
+			for (double value : plane)
+				gain += Math.abs(value);
+		gain = Math.max(1, gain);
+		
+		double tolerance = 0;
+		for (int i = 0; i < nbIter; i++)
+			tolerance = tolerance * gain + 1;
+		
+		return tolerance;
+	}
+	
+	private static void run(Engine engine, Sequence input, Sequence output, Sequence kernel, double[][] factors, boolean zeroEdges, int nbIter, ConvolutionCL convolutionCL)
+	{
+		VarBoolean stopFlag = new VarBoolean("stop", false);
+		
+		switch (engine)
+		{
+			case CLASSIC:
+			case CLASSIC_NATIVE:
+				Convolution.convolve(input, output, kernel, zeroEdges, nbIter, stopFlag);
+			break;
+			
+			case CLASSIC_ALIASED:
+				Convolution.convolve(output, output, kernel, zeroEdges, nbIter, stopFlag);
+			break;
+			
+			case CLASSIC_IN_PLACE:
+				Convolution.convolve(output, kernel, zeroEdges, nbIter, stopFlag);
+			break;
+			
+			case SEPARABLE:
+			case SEPARABLE_NATIVE:
+				Convolution1D.convolve(input, output, factors[0], factors[1], factors[2], zeroEdges, nbIter, stopFlag);
+			break;
+			
+			case SEPARABLE_ALIASED:
+				Convolution1D.convolve(output, output, factors[0], factors[1], factors[2], zeroEdges, nbIter, stopFlag);
+			break;
+			
+			case SEPARABLE_IN_PLACE:
+				Convolution1D.convolve(output, toSequence(factors[0]), toSequence(factors[1]), toSequence(factors[2]), nbIter, stopFlag);
+			break;
+			
+			case OPENCL:
+				convolutionCL.convolve(input, output, kernel, zeroEdges, nbIter, stopFlag);
+			break;
+		}
+	}
+	
+	/**
+	 * @return the given 1D kernel as a sequence (or null)
+	 */
+	private static Sequence toSequence(double[] kernel)
+	{
+		if (kernel == null) return null;
+		
+		IcyBufferedImage image = new IcyBufferedImage(kernel.length, 1, 1, DataType.DOUBLE);
+		image.setDataXYAsDouble(0, kernel);
+		
+		return new Sequence(image);
+	}
+	
+	/**
+	 * Copies the data of the input into the output (with the same dimensions and data type)
+	 */
+	private static void copy(Sequence input, Sequence output)
+	{
+		int length = input.getSizeX() * input.getSizeY();
+		
+		for (int t = 0; t < input.getSizeT(); t++)
+			for (int z = 0; z < input.getSizeZ(); z++)
+				for (int c = 0; c < input.getSizeC(); c++)
+					System.arraycopy(input.getDataXY(t, z, c), 0, output.getDataXY(t, z, c), 0, length);
+		
+		output.dataChanged();
+	}
+	
+	/**
+	 * Brute-force convolution (in the sense of the engines, i.e. the kernel is not flipped) of
+	 * each stack of the input, in double precision
+	 * 
+	 * @param separableMirror
+	 *            true to follow the mirroring convention of the separable engines, false for the
+	 *            one of the classic and OpenCL engines
+	 * @param nbIter
+	 *            the number of iterations
+	 * @param roundingType
+	 *            the data type the result is converted to after each iteration (or null)
+	 * @return the reference planes, given as a [T*Z*C][XY] array
+	 */
+	private static double[][] reference(Sequence input, Sequence kernel, boolean zeroEdges, boolean separableMirror, int nbIter, DataType roundingType)
+	{
+		int width = input.getSizeX(), height = input.getSizeY(), depth = input.getSizeZ();
+		int nbChannels = input.getSizeC();
+		int kWidth = kernel.getSizeX(), kHeight = kernel.getSizeY(), kDepth = kernel.getSizeZ();
+		int rX = kWidth >> 1, rY = kHeight >> 1, rZ = kDepth >> 1;
+		double[][] k = kernel.getDataXYZAsDouble(0, 0);
+		
+		Object rounded = roundingType == null ? null : new IcyBufferedImage(width, height, 1, roundingType).getDataXY(0);
+		
+		double[][] planes = new double[input.getSizeT() * depth * nbChannels][];
+		
+		for (int t = 0; t < input.getSizeT(); t++)
+			for (int c = 0; c < nbChannels; c++)
+			{
+				double[][] in = new double[depth][];
+				
+				for (int z = 0; z < depth; z++)
+					in[z] = input.getDataXYAsDouble(t, z, c);
+				
+				for (int i = 0; i < nbIter; i++)
+				{
+					double[][] out = new double[depth][width * height];
+					
+					for (int z = 0; z < depth; z++)
+					{
+						for (int y = 0; y < height; y++)
+							for (int x = 0; x < width; x++)
+							{
+								double sum = 0;
+								
+								for (int kz = 0; kz < kDepth; kz++)
+								{
+									int inZ = z + kz - rZ;
+									
+									if (inZ < 0 || inZ >= depth)
+									{
+										if (zeroEdges) continue;
+										
+										inZ = mirror(inZ, depth, separableMirror);
+									}
+									
+									for (int ky = 0, kxy = 0; ky < kHeight; ky++)
+									{
+										int inY = y + ky - rY;
+										
+										if (inY < 0 || inY >= height)
+										{
+											if (zeroEdges)
+											{
+												kxy += kWidth;
+												continue;
+											}
+											
+											inY = mirror(inY, height, separableMirror);
+										}
+										
+										for (int kx = 0; kx < kWidth; kx++, kxy++)
+										{
+											int inX = x + kx - rX;
+											
+											if (inX < 0 || inX >= width)
+											{
+												if (zeroEdges) continue;
+												
+												inX = mirror(inX, width, separableMirror);
+											}
+											
+											sum += in[inZ][inY * width + inX] * k[kz][kxy];
+										}
+									}
+								}
+								
+								out[z][y * width + x] = sum;
+							}
+						
+						if (rounded != null)
+						{
+							Array1DUtil.doubleArrayToSafeArray(out[z], rounded, roundingType.isSigned());
+							Array1DUtil.arrayToDoubleArray(rounded, out[z], roundingType.isSigned());
+						}
+					}
+					
+					in = out;
+				}
+				
+				for (int z = 0; z < depth; z++)
+					planes[(t * depth + z) * nbChannels + c] = in[z];
+			}
+		
+		return planes;
+	}
+	
+	/**
+	 * @return the mirrored index of i, following the convention of the separable engines or the
+	 *         one of the classic and OpenCL engines
+	 */
+	private static int mirror(int i, int size, boolean separableMirror)
+	{
+		return separableMirror ? Convolution1D.mirror(i, size) : Convolution.mirror(i, size);
+	}
+	
+	/**
+	 * @return the maximum difference between the output and the reference, relative to the
+	 *         largest absolute value of the reference (except for the integer outputs, for which
+	 *         the difference is absolute)
+	 */
+	private static double error(Sequence output, double[][] reference)
+	{
+		int width = output.getSizeX(), height = output.getSizeY();
+		boolean integerOutput = !output.getDataType_().isFloat();
+		boolean signed = output.getDataType_().isSigned();
+		
+		double maxError = 0, maxValue = 0;
+		Object expectedPlane = integerOutput ? new IcyBufferedImage(width, height, 1, output.getDataType_()).getDataXY(0) : null;
+		double[] expected = new double[width * height];
+		
+		for (int t = 0, plane = 0; t < output.getSizeT(); t++)
+			for (int z = 0; z < output.getSizeZ(); z++)
+				for (int c = 0; c < output.getSizeC(); c++, plane++)
+				{
+					double[] actual = output.getDataXYAsDouble(t, z, c);
+					
+					if (integerOutput)
+					{
+						// the reference goes through the same conversion (rounding and clamping)
+						Array1DUtil.doubleArrayToSafeArray(reference[plane], expectedPlane, signed);
+						Array1DUtil.arrayToDoubleArray(expectedPlane, expected, signed);
+					}
+					else
+					{
+						System.arraycopy(reference[plane], 0, expected, 0, expected.length);
+					}
+					
+					for (int xy = 0; xy < expected.length; xy++)
+					{
+						maxError = Math.max(maxError, Math.abs(actual[xy] - expected[xy]));
+						maxValue = Math.max(maxValue, Math.abs(expected[xy]));
+					}
+				}
+		
+		return integerOutput ? maxError : maxError / Math.max(1, maxValue);
+	}
+	
+	/**
+	 * @return an OpenCL engine on the best available device, or null if OpenCL is not available
+	 */
+	private static ConvolutionCL createConvolutionCL()
+	{
+		try
+		{
+			CLContext context = JavaCL.createBestContext();
+			CLQueue queue = context.createDefaultQueue();
+			String programFile = ReadText.readText(ConvolutionCL.class.getResourceAsStream("Convolution.cl"));
+			CLProgram program = ProgramCache.build(context, programFile, ProgramCache.DEFAULT_DIRECTORY);
+			return new ConvolutionCL(context, program, queue);
+		}
+		catch (IOException e)
+		{
+			System.out.println("Warning (EngineHarness): unable to load the OpenCL code. Skipping OpenCL.");
+		}
+		catch (CLException e)
+		{
+			System.out.println("Warning (EngineHarness): unable to create the OpenCL context. Skipping OpenCL.");
+		}
+		catch (CLBuildException e)
+		{
+			System.out.println("Warning (EngineHarness): unable to build the OpenCL program. Skipping OpenCL.");
+		}
+		catch (NoClassDefFoundError e)
+		{
+			System.out.println("Warning (EngineHarness): OpenCL libraries not found. Skipping OpenCL.");
+		}
+		catch (UnsatisfiedLinkError e)
+		{
+			System.out.println("Warning (EngineHarness): OpenCL drivers not found. Skipping OpenCL.");
+		}
+		
+		return null;
+	}
+	
+	private static Properties load(File file) throws IOException
+	{
+		Properties properties = new Properties();
+		
+		if (!file.isFile()) return properties;
+		
+		InputStream stream = new FileInputStream(file);
+		
+		try
+		{
+			properties.load(stream);
+		}
+		finally
+		{
+			stream.close();
+		}
+		
+		return properties;
+	}
+	
+	private static void save(Properties properties, File file) throws IOException
+	{
+		OutputStream stream = new FileOutputStream(file);
+		
+		try
+		{
+			properties.store(stream, "Convolution engine throughputs (millions of voxels per second)");
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+}
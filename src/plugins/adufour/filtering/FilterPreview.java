@@ -0,0 +1,255 @@
+package plugins.adufour.filtering;
+
+import icy.image.IcyBufferedImage;
+import icy.main.Icy;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import plugins.adufour.vars.lang.VarBoolean;
+
+/**
+ * Live preview of a filter on a single plane (t, z) of a sequence, recomputed in the background
+ * whenever the filter parameters change. <br>
+ * Each request is debounced (see {@link #DEBOUNCE_DELAY}) and cancels the preview in progress. The
+ * filter is only applied to the previewed slice and the slices needed to compute it exactly (see
+ * {@link #getHaloZ()}), first on a down-sampled copy of the planes (such that the preview appears
+ * almost immediately, even for very large images), then at full resolution.
+ * 
+ */
+public abstract class FilterPreview
+{
+	/**
+	 * Delay (in milliseconds) between a request and the start of the preview, during which further
+	 * requests replace the pending one
+	 */
+	public static final long				DEBOUNCE_DELAY	= 50;
+	
+	/**
+	 * Maximum width or height of the planes filtered during the coarse preview
+	 */
+	public static final int					COARSE_SIZE		= 256;
+	
+	private final ScheduledExecutorService	executor		= Executors.newSingleThreadScheduledExecutor();
+	
+	private ScheduledFuture<?>				pending;
+	
+	private VarBoolean						pendingStopFlag;
+	
+	private Sequence						preview;
+	
+	/**
+	 * @return the number of slices needed on each side of the previewed slice to compute it
+	 *         exactly
+	 */
+	protected abstract int getHaloZ();
+	
+	/**
+	 * Applies the filter to the given (sub-)stack
+	 * 
+	 * @param input
+	 *            the stack to filter (a single time point)
+	 * @param output
+	 *            the stack receiving the result (same dimensions as the input)
+	 * @param scale
+	 *            the down-sampling factor of the input along X and Y (1 for the full resolution),
+	 *            which kernels defined in physical units should be shrunk by
+	 * @param stopFlag
+	 *            a flag that is set to true when the preview is cancelled
+	 */
+	protected abstract void filter(Sequence input, Sequence output, int scale, VarBoolean stopFlag);
+	
+	/**
+	 * Displays the preview sequence (called when the preview is first created, or re-created after
+	 * it was closed or the input changed)
+	 * 
+	 * @param preview
+	 *            the preview sequence
+	 */
+	protected abstract void display(Sequence preview);
+	
+	/**
+	 * Requests a new preview. The preview in progress (if any) is cancelled
+	 * 
+	 * @param input
+	 *            the sequence to filter
+	 * @param t
+	 *            the time point to preview
+	 * @param z
+	 *            the slice to preview
+	 * @param type
+	 *            the data type of the preview
+	 */
+	public synchronized void request(final Sequence input, final int t, final int z, final DataType type)
+	{
+		cancel();
+		
+		final VarBoolean stopFlag = new VarBoolean("stop", false);
+		
+		pendingStopFlag = stopFlag;
+		pending = executor.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					compute(input, t, z, type, stopFlag);
+				}
+				catch (RuntimeException e)
+				{
+					// parameters may be inconsistent while the user is typing
+					System.out.println("Warning (FilterPreview): " + e.getMessage());
+				}
+			}
+		}, DEBOUNCE_DELAY, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Cancels the pending preview (if any)
+	 */
+	public synchronized void cancel()
+	{
+		if (pending == null) return;
+		
+		pendingStopFlag.setValue(true);
+		pending.cancel(false);
+		pending = null;
+	}
+	
+	/**
+	 * Cancels the pending preview and releases the background thread
+	 */
+	public synchronized void dispose()
+	{
+		cancel();
+		executor.shutdown();
+	}
+	
+	private void compute(Sequence input, int t, int z, DataType type, VarBoolean stopFlag)
+	{
+		int width = input.getSizeX();
+		int height = input.getSizeY();
+		
+		int haloZ = getHaloZ();
+		int zMin = Math.max(0, z - haloZ);
+		int zMax = Math.min(input.getSizeZ() - 1, z + haloZ);
+		
+		int scale = 1;
+		while (Math.max(width, height) > COARSE_SIZE * scale)
+			scale <<= 1;
+		
+		if (scale > 1)
+		{
+			Sequence coarse = extract(input, t, zMin, zMax, scale);
+			Sequence coarseOutput = Convolution.createOutput(coarse, DataType.DOUBLE);
+			
+			filter(coarse, coarseOutput, scale, stopFlag);
+			
+			if (stopFlag.getValue()) return;
+			
+			publish(coarseOutput, z - zMin, scale, input, type, stopFlag);
+		}
+		
+		Sequence fine = extract(input, t, zMin, zMax, 1);
+		Sequence fineOutput = Convolution.createOutput(fine, DataType.DOUBLE);
+		
+		filter(fine, fineOutput, 1, stopFlag);
+		
+		if (stopFlag.getValue()) return;
+		
+		publish(fineOutput, z - zMin, 1, input, type, stopFlag);
+	}
+	
+	/**
+	 * Copies the given slices of a time point, down-sampled by the given factor (in double precision)
+	 */
+	private static Sequence extract(Sequence input, int t, int zMin, int zMax, int scale)
+	{
+		int width = input.getSizeX(), height = input.getSizeY();
+		int subWidth = (width + scale - 1) / scale, subHeight = (height + scale - 1) / scale;
+		boolean signed = input.getDataType_().isSigned();
+		
+		Sequence sub = new Sequence();
+		double[] row = new double[width];
+		
+		for (int z = zMin; z <= zMax; z++)
+		{
+			// full resolution copies keep the input type (e.g. for the 8/16-bit rank filters)
+			IcyBufferedImage image = new IcyBufferedImage(subWidth, subHeight, input.getSizeC(), scale == 1 ? input.getDataType_() : DataType.DOUBLE);
+			
+			for (int c = 0; c < input.getSizeC(); c++)
+			{
+				Object in = input.getDataXY(t, z, c);
+				
+				if (scale == 1)
+				{
+					System.arraycopy(in, 0, image.getDataXY(c), 0, width * height);
+					continue;
+				}
+				
+				double[] out = (double[]) image.getDataXY(c);
+				
+				// point sampling at the center of each block (only the sampled rows are read)
+				for (int subY = 0, subXY = 0; subY < subHeight; subY++)
+				{
+					int y = Math.min(height - 1, subY * scale + scale / 2);
+					
+					Array1DUtil.arrayToDoubleArray(in, y * width, row, 0, width, signed);
+					
+					for (int subX = 0; subX < subWidth; subX++, subXY++)
+						out[subXY] = row[Math.min(width - 1, subX * scale + scale / 2)];
+				}
+			}
+			
+			sub.setImage(0, z - zMin, image);
+		}
+		
+		return sub;
+	}
+	
+	/**
+	 * Writes the given slice of the filtered stack (up-sampled if necessary) into the preview
+	 */
+	private synchronized void publish(Sequence filtered, int slice, int scale, Sequence input, DataType type, VarBoolean stopFlag)
+	{
+		// a newer preview may have been requested in the meantime
+		if (stopFlag.getValue()) return;
+		
+		int width = input.getSizeX(), height = input.getSizeY(), nbChannels = input.getSizeC();
+		
+		if (preview == null || !Icy.getMainInterface().isOpened(preview) || preview.getSizeX() != width || preview.getSizeY() != height || preview.getSizeC() != nbChannels || preview.getDataType_() != type)
+		{
+			preview = new Sequence(input.getName() + " (preview)", new IcyBufferedImage(width, height, nbChannels, type));
+			display(preview);
+		}
+		
+		int subWidth = filtered.getSizeX();
+		boolean signed = type.isSigned();
+		double[] row = new double[width];
+		
+		for (int c = 0; c < nbChannels; c++)
+		{
+			double[] in = (double[]) filtered.getDataXY(0, slice, c);
+			Object out = preview.getDataXY(0, 0, c);
+			
+			for (int y = 0; y < height; y++)
+			{
+				int subOffset = (y / scale) * subWidth;
+				
+				for (int x = 0; x < width; x++)
+					row[x] = in[subOffset + x / scale];
+				
+				Array1DUtil.doubleArrayToSafeArray(row, 0, out, y * width, width, signed);
+			}
+		}
+		
+		preview.dataChanged();
+		preview.updateComponentsBounds(true);
+	}
+}
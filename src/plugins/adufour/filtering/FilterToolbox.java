@@ -1,10 +1,16 @@
 package plugins.adufour.filtering;
 
+import icy.gui.viewer.Viewer;
 import icy.image.IcyBufferedImage;
+import icy.main.Icy;
 import icy.sequence.Sequence;
+import icy.system.thread.ThreadUtil;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import plugins.adufour.ezplug.EzGroup;
 import plugins.adufour.ezplug.EzPlug;
@@ -17,6 +23,8 @@ import plugins.adufour.ezplug.EzVarFloatArray;
 import plugins.adufour.ezplug.EzVarInteger;
 import plugins.adufour.ezplug.EzVarListener;
 import plugins.adufour.ezplug.EzVarSequence;
+import plugins.adufour.filtering.IntegralImage.Statistic;
+import plugins.adufour.filtering.Morphology.Operation;
 import plugins.adufour.vars.lang.VarBoolean;
 
 import com.nativelibs4java.opencl.CLBuildException;
@@ -33,12 +41,17 @@ public class FilterToolbox extends EzPlug implements EzStoppable
 	
 	public enum Axis
 	{
-		X, Y, Z
+		X, Y, Z, T
 	}
 	
 	public enum FilterType
 	{
-		CLASSIC, SEPARABLE
+		CLASSIC, SEPARABLE, LOCAL_STATISTICS, RANK, MORPHOLOGY, BILATERAL
+	}
+	
+	public enum OutputType
+	{
+		SAME_AS_INPUT, FLOAT, DOUBLE
 	}
 	
 	public EzVarSequence				input				= new EzVarSequence("input");
@@ -48,10 +61,13 @@ public class FilterToolbox extends EzPlug implements EzStoppable
 	public EzVarBoolean					linearX				= new EzVarBoolean("Along X", true);
 	public EzVarBoolean					linearY				= new EzVarBoolean("Along Y", true);
 	public EzVarBoolean					linearZ				= new EzVarBoolean("Along Z", true);
+	public EzVarBoolean					linearT				= new EzVarBoolean("Along T", false);
 	
 	public EzVarDouble					gaussianX			= new EzVarDouble("Sigma X", 1, 0, 100, 0.1);
 	public EzVarDouble					gaussianY			= new EzVarDouble("Sigma Y", 1, 0, 100, 0.1);
 	public EzVarDouble					gaussianZ			= new EzVarDouble("Sigma Z", 1, 0, 100, 0.1);
+	public EzVarDouble					gaussianT			= new EzVarDouble("Sigma T", 1, 0, 100, 0.1);
+	public EzVarDouble					gaussianMaxError	= new EzVarDouble("Pyramid max. error", 0, 0, 0.1, 0.001);
 	
 	public EzVarEnum<Kernels2D>			kernel2D			= new EzVarEnum<Kernels2D>("2D Kernels", Kernels2D.values());
 	
@@ -60,17 +76,75 @@ public class FilterToolbox extends EzPlug implements EzStoppable
 	public EzVarDouble					gaborKy				= new EzVarDouble("Ky", 0, 100, 0.1);
 	public EzVarBoolean					gaborSymmetric		= new EzVarBoolean("Symmertric", true);
 	
+	public EzVarEnum<Statistic>			statistic			= new EzVarEnum<Statistic>("Statistic", Statistic.values(), Statistic.MEAN);
+	public EzVarInteger					boxRadiusX			= new EzVarInteger("Radius X", 5, 0, 10000, 1);
+	public EzVarInteger					boxRadiusY			= new EzVarInteger("Radius Y", 5, 0, 10000, 1);
+	public EzVarInteger					boxRadiusZ			= new EzVarInteger("Radius Z", 0, 0, 10000, 1);
+	
+	public EzVarDouble					rankPercentile		= new EzVarDouble("Percentile (50 = median)", 50, 0, 100, 1);
+	public EzVarInteger					rankRadiusX			= new EzVarInteger("Window radius X", 1, 0, 10000, 1);
+	public EzVarInteger					rankRadiusY			= new EzVarInteger("Window radius Y", 1, 0, 10000, 1);
+	
+	public EzVarEnum<Operation>			morphology			= new EzVarEnum<Operation>("Operation", Operation.values(), Operation.OPENING);
+	public EzVarInteger					morphoRadiusX		= new EzVarInteger("Element radius X", 5, 0, 10000, 1);
+	public EzVarInteger					morphoRadiusY		= new EzVarInteger("Element radius Y", 5, 0, 10000, 1);
+	public EzVarInteger					morphoRadiusZ		= new EzVarInteger("Element radius Z", 0, 0, 10000, 1);
+	
+	public EzVarDouble					bilateralSpatial	= new EzVarDouble("Spatial sigma", 4, 0.1, 1000, 0.5);
+	public EzVarDouble					bilateralRange		= new EzVarDouble("Range sigma", 50, 0.001, 1000000, 1);
+	
 	public EzVarBoolean					zeroEdge			= new EzVarBoolean("Zero on edge", false);
 	
+	public EzVarEnum<OutputType>		outputType			= new EzVarEnum<OutputType>("Output type", OutputType.values());
+	
 	public EzVarInteger					userKernelWidth		= new EzVarInteger("kernel width", 3, MAX_KERNEL_SIZE, 2);
 	public EzVarInteger					userKernelHeight	= new EzVarInteger("kernel height", 1, MAX_KERNEL_SIZE, 2);
 	public ArrayList<EzVarFloatArray>	kernelLines			= new ArrayList<EzVarFloatArray>(1);
 	public EzVarInteger					iterations			= new EzVarInteger("nb. iterations", 1, 1, 10000, 1);
 	
+	public EzVarBoolean					incremental			= new EzVarBoolean("Incremental update", false);
+	
+	public EzVarBoolean					cacheResults		= new EzVarBoolean("Cache results", false);
+	public EzVarBoolean					spillCache			= new EzVarBoolean("Spill cache to disk", false);
+	
+	/**
+	 * Maximum number of bytes of results spilled to disk by the result cache
+	 */
+	private static final long			MAX_SPILL_BYTES		= 4L << 30;
+	
+	private final ResultCache			resultCache			= new ResultCache();
+	
+	public EzVarBoolean					livePreview			= new EzVarBoolean("Live preview", false);
+	
+	private final FilterPreview			preview				= new FilterPreview()
+																{
+																	@Override
+																	protected int getHaloZ()
+																	{
+																		return getPreviewHaloZ();
+																	}
+																	
+																	@Override
+																	protected void filter(Sequence in, Sequence out, int scale, VarBoolean stop)
+																	{
+																		filterPreview(in, out, scale, stop);
+																	}
+																	
+																	@Override
+																	protected void display(Sequence previewSequence)
+																	{
+																		addSequence(previewSequence);
+																	}
+																};
+	
+	private IncrementalFilter			incrementalFilter;
+	private Object[]					incrementalKey;
+	
 	private ConvolutionCL				convolutionCL;
 	private CLContext					context;
 	private CLQueue						queue;
 	private CLProgram					program;
+	private boolean						openCLReleased;
 	
 	public EzVarBoolean					useOpenCL			= new EzVarBoolean("Use OpenCL", false);
 	
@@ -91,6 +165,12 @@ public class FilterToolbox extends EzPlug implements EzStoppable
 				linearZ.setValue(is3D);
 				linearZ.setVisible(is3D);
 				gaussianZ.setVisible(is3D);
+				
+				boolean isTimeLapse = newValue.getSizeT() > 1;
+				
+				linearT.setValue(false);
+				linearT.setVisible(isTimeLapse);
+				gaussianT.setVisible(isTimeLapse);
 			}
 		});
 		
@@ -98,65 +178,41 @@ public class FilterToolbox extends EzPlug implements EzStoppable
 		
 		addEzComponent(iterations);
 		
-		try
+		useOpenCL.addVarChangeListener(new EzVarListener<Boolean>()
 		{
-			useOpenCL.addVarChangeListener(new EzVarListener<Boolean>()
+			@Override
+			public void variableChanged(EzVar<Boolean> source, Boolean newValue)
 			{
-				@Override
-				public void variableChanged(EzVar<Boolean> source, Boolean newValue)
-				{
-					linearZ.setValue(!newValue);
-					linearZ.setVisible(!newValue);
-					gaussianZ.setVisible(!newValue);
-				}
-			});
-			
-			addEzComponent(useOpenCL);
-			useOpenCL.setVisible(false);
-			context = JavaCL.createBestContext();
-			queue = context.createDefaultQueue();
-			String programFile = ReadText.readText(ConvolutionCL.class.getResourceAsStream("Convolution.cl"));
-			program = context.createProgram(programFile).build();
-			convolutionCL = new ConvolutionCL(context, program, queue);
-			useOpenCL.setValue(true);
-			useOpenCL.setVisible(true);
-		}
-		catch (IOException e)
-		{
-			System.out.println("Warning (FilterToolbox): unable to load the OpenCL code. Continuing in pure Java mode.");
-			e.printStackTrace();
-		}
-		catch (CLException e)
-		{
-			System.out.println("Warning (FilterToolbox): unable to create the OpenCL context. Continuing in pure Java mode.");
-			e.printStackTrace();
-		}
-		catch (CLBuildException e)
-		{
-			System.out.println("Warning (FilterToolbox): unable to create the OpenCL context. Continuing in pure Java mode.");
-			e.printStackTrace();
-		}
-		catch (NoClassDefFoundError e)
-		{
-			System.out.println("Warning (FilterToolbox): unable to create the OpenCL context. Continuing in pure Java mode.");
-			e.printStackTrace();
-		}
-		catch (UnsatisfiedLinkError linkError)
+				linearZ.setValue(!newValue);
+				linearZ.setVisible(!newValue);
+				gaussianZ.setVisible(!newValue);
+			}
+		});
+		
+		addEzComponent(useOpenCL);
+		useOpenCL.setVisible(false);
+		
+		// the driver may take several seconds to compile the OpenCL program: the plug-in opens in
+		// pure Java mode, and the OpenCL option appears (unchecked) once the program is ready
+		ThreadUtil.bgRun(new Runnable()
 		{
-			// throw new EzException("Unable to load OpenCL drivers on this system", true);
-			System.out.println("Warning (FilterToolbox): OpenCL drivers not found. Using basic Java implementation.");
-		}
+			@Override
+			public void run()
+			{
+				initializeOpenCL();
+			}
+		});
 		
 		addEzComponent(filterType);
 		
 		addEzComponent(kernel1D);
 		filterType.addVisibilityTriggerTo(kernel1D, FilterType.SEPARABLE);
 		
-		EzGroup groupLinear = new EzGroup("Directions", linearX, linearY, linearZ);
+		EzGroup groupLinear = new EzGroup("Directions", linearX, linearY, linearZ, linearT);
 		addEzComponent(groupLinear);
 		filterType.addVisibilityTriggerTo(groupLinear, FilterType.SEPARABLE);
 		
-		EzGroup groupGaussian = new EzGroup("Gaussian filter", gaussianX, gaussianY, gaussianZ);
+		EzGroup groupGaussian = new EzGroup("Gaussian filter", gaussianX, gaussianY, gaussianZ, gaussianT, gaussianMaxError);
 		addEzComponent(groupGaussian);
 		kernel1D.addVisibilityTriggerTo(groupGaussian, Kernels1D.CUSTOM_GAUSSIAN);
 		
@@ -167,7 +223,43 @@ public class FilterToolbox extends EzPlug implements EzStoppable
 		addEzComponent(gaborGroup);
 		kernel2D.addVisibilityTriggerTo(gaborGroup, Kernels2D.CUSTOM_GABOR);
 		
+		EzGroup statisticsGroup = new EzGroup("Local statistics", statistic, boxRadiusX, boxRadiusY, boxRadiusZ);
+		addEzComponent(statisticsGroup);
+		filterType.addVisibilityTriggerTo(statisticsGroup, FilterType.LOCAL_STATISTICS);
+		
+		EzGroup rankGroup = new EzGroup("Rank filter", rankPercentile, rankRadiusX, rankRadiusY);
+		addEzComponent(rankGroup);
+		filterType.addVisibilityTriggerTo(rankGroup, FilterType.RANK);
+		
+		EzGroup morphologyGroup = new EzGroup("Morphology (box element)", morphology, morphoRadiusX, morphoRadiusY, morphoRadiusZ);
+		addEzComponent(morphologyGroup);
+		filterType.addVisibilityTriggerTo(morphologyGroup, FilterType.MORPHOLOGY);
+		
+		EzGroup bilateralGroup = new EzGroup("Bilateral filter", bilateralSpatial, bilateralRange);
+		addEzComponent(bilateralGroup);
+		filterType.addVisibilityTriggerTo(bilateralGroup, FilterType.BILATERAL);
+		
 		addEzComponent(zeroEdge);
+		filterType.addVisibilityTriggerTo(zeroEdge, FilterType.CLASSIC, FilterType.SEPARABLE);
+		
+		addEzComponent(outputType);
+		
+		addEzComponent(incremental);
+		
+		spillCache.addVarChangeListener(new EzVarListener<Boolean>()
+		{
+			@Override
+			public void variableChanged(EzVar<Boolean> source, Boolean newValue)
+			{
+				resultCache.setSpillDirectory(newValue ? ResultCache.DEFAULT_SPILL_DIRECTORY : null, MAX_SPILL_BYTES);
+			}
+		});
+		
+		EzGroup groupCache = new EzGroup("Result cache", cacheResults, spillCache);
+		addEzComponent(groupCache);
+		cacheResults.addVisibilityTriggerTo(spillCache, true);
+		
+		addEzComponent(livePreview);
 		
 		addEzComponent(userKernelWidth);
 		kernel1D.addVisibilityTriggerTo(userKernelWidth, Kernels1D.CUSTOM);
@@ -199,6 +291,7 @@ public class FilterToolbox extends EzPlug implements EzStoppable
 						kernelLines.add(newLine);
 						kernel2D.addVisibilityTriggerTo(newLine, Kernels2D.CUSTOM);
 						addEzComponent(newLine);
+						addPreviewTrigger(newLine);
 					}
 				}
 				else
@@ -210,9 +303,112 @@ public class FilterToolbox extends EzPlug implements EzStoppable
 			}
 		});
 		
+		// any parameter change refreshes the live preview
+		addPreviewTrigger(input);
+		addPreviewTrigger(iterations);
+		addPreviewTrigger(filterType);
+		addPreviewTrigger(kernel1D);
+		addPreviewTrigger(linearX);
+		addPreviewTrigger(linearY);
+		addPreviewTrigger(linearZ);
+		addPreviewTrigger(gaussianX);
+		addPreviewTrigger(gaussianY);
+		addPreviewTrigger(gaussianZ);
+		addPreviewTrigger(kernel2D);
+		addPreviewTrigger(gaborSigma);
+		addPreviewTrigger(gaborKx);
+		addPreviewTrigger(gaborKy);
+		addPreviewTrigger(gaborSymmetric);
+		addPreviewTrigger(statistic);
+		addPreviewTrigger(boxRadiusX);
+		addPreviewTrigger(boxRadiusY);
+		addPreviewTrigger(boxRadiusZ);
+		addPreviewTrigger(rankPercentile);
+		addPreviewTrigger(rankRadiusX);
+		addPreviewTrigger(rankRadiusY);
+		addPreviewTrigger(morphology);
+		addPreviewTrigger(morphoRadiusX);
+		addPreviewTrigger(morphoRadiusY);
+		addPreviewTrigger(morphoRadiusZ);
+		addPreviewTrigger(bilateralSpatial);
+		addPreviewTrigger(bilateralRange);
+		addPreviewTrigger(zeroEdge);
+		addPreviewTrigger(outputType);
+		addPreviewTrigger(userKernelWidth);
+		addPreviewTrigger(userKernelHeight);
+		addPreviewTrigger(firstKernelLine);
+		addPreviewTrigger(livePreview);
+		
 		setTimeDisplay(true);
 	}
 	
+	/**
+	 * Creates the OpenCL context and builds the OpenCL program (from the binaries cached by a
+	 * previous session if possible, see {@link ProgramCache}). Called in the background
+	 */
+	private void initializeOpenCL()
+	{
+		try
+		{
+			CLContext clContext = JavaCL.createBestContext();
+			CLQueue clQueue = clContext.createDefaultQueue();
+			String programFile = ReadText.readText(ConvolutionCL.class.getResourceAsStream("Convolution.cl"));
+			CLProgram clProgram = ProgramCache.build(clContext, programFile, ProgramCache.DEFAULT_DIRECTORY);
+			
+			synchronized (this)
+			{
+				// the plug-in may have been closed in the meantime
+				if (openCLReleased)
+				{
+					clQueue.release();
+					clContext.release();
+					return;
+				}
+				
+				context = clContext;
+				queue = clQueue;
+				program = clProgram;
+				convolutionCL = new ConvolutionCL(context, program, queue);
+			}
+			
+			ThreadUtil.invokeLater(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					// left unchecked: checking it would switch engines (and disable filtering along Z)
+					// behind the user's back
+					useOpenCL.setVisible(true);
+				}
+			});
+		}
+		catch (IOException e)
+		{
+			System.out.println("Warning (FilterToolbox): unable to load the OpenCL code. Continuing in pure Java mode.");
+			e.printStackTrace();
+		}
+		catch (CLException e)
+		{
+			System.out.println("Warning (FilterToolbox): unable to create the OpenCL context. Continuing in pure Java mode.");
+			e.printStackTrace();
+		}
+		catch (CLBuildException e)
+		{
+			System.out.println("Warning (FilterToolbox): unable to create the OpenCL context. Continuing in pure Java mode.");
+			e.printStackTrace();
+		}
+		catch (NoClassDefFoundError e)
+		{
+			System.out.println("Warning (FilterToolbox): unable to create the OpenCL context. Continuing in pure Java mode.");
+			e.printStackTrace();
+		}
+		catch (UnsatisfiedLinkError linkError)
+		{
+			// throw new EzException("Unable to load OpenCL drivers on this system", true);
+			System.out.println("Warning (FilterToolbox): OpenCL drivers not found. Using basic Java implementation.");
+		}
+	}
+	
 	@Override
 	public void execute()
 	{
@@ -232,49 +428,181 @@ public class FilterToolbox extends EzPlug implements EzStoppable
 				executeClassic(inSeq);
 				break;
 			}
+			case LOCAL_STATISTICS:
+			{
+				executeLocalStatistics(inSeq);
+				break;
+			}
+			case RANK:
+			{
+				executeRank(inSeq);
+				break;
+			}
+			case MORPHOLOGY:
+			{
+				executeMorphology(inSeq);
+				break;
+			}
+			case BILATERAL:
+			{
+				executeBilateral(inSeq);
+				break;
+			}
 		}
 	}
 	
+	private void executeBilateral(final Sequence inSeq)
+	{
+		final double sigmaSpatial = bilateralSpatial.getValue(), sigmaRange = bilateralRange.getValue();
+		
+		String name = inSeq.getName() + " bilateral (" + sigmaSpatial + ", " + sigmaRange + ")";
+		
+		executeOutOfPlace(inSeq, name, new Object[] { FilterType.BILATERAL, sigmaSpatial, sigmaRange, outputType.getValue() }, new OutOfPlaceFilter()
+		{
+			@Override
+			public void filter(Sequence output)
+			{
+				BilateralFilter.filter(inSeq, output, sigmaSpatial, sigmaRange, stopFlag);
+			}
+		});
+	}
+	
+	private void executeMorphology(final Sequence inSeq)
+	{
+		final int rX = morphoRadiusX.getValue(), rY = morphoRadiusY.getValue(), rZ = morphoRadiusZ.getValue();
+		final Operation operation = morphology.getValue();
+		
+		String name = inSeq.getName() + " " + operation + " (" + (2 * rX + 1) + "x" + (2 * rY + 1) + "x" + (2 * rZ + 1) + ")";
+		
+		executeOutOfPlace(inSeq, name, new Object[] { FilterType.MORPHOLOGY, operation, rX, rY, rZ, outputType.getValue() }, new OutOfPlaceFilter()
+		{
+			@Override
+			public void filter(Sequence output)
+			{
+				Morphology.filter(inSeq, output, rX, rY, rZ, operation, stopFlag);
+			}
+		});
+	}
+	
+	private void executeRank(final Sequence inSeq)
+	{
+		final int rX = rankRadiusX.getValue(), rY = rankRadiusY.getValue();
+		final double percentile = rankPercentile.getValue();
+		
+		String name = inSeq.getName() + " " + (percentile == 50 ? "median" : percentile + "th percentile") + " (" + (2 * rX + 1) + "x" + (2 * rY + 1) + ")";
+		
+		executeOutOfPlace(inSeq, name, new Object[] { FilterType.RANK, percentile, rX, rY, outputType.getValue() }, new OutOfPlaceFilter()
+		{
+			@Override
+			public void filter(Sequence output)
+			{
+				RankFilter.filter(inSeq, output, rX, rY, percentile, stopFlag);
+			}
+		});
+	}
+	
+	private void executeLocalStatistics(final Sequence inSeq)
+	{
+		final int rX = boxRadiusX.getValue(), rY = boxRadiusY.getValue(), rZ = boxRadiusZ.getValue();
+		final Statistic stat = statistic.getValue();
+		
+		String name = inSeq.getName() + " " + stat + " (" + (2 * rX + 1) + "x" + (2 * rY + 1) + "x" + (2 * rZ + 1) + ")";
+		
+		// box statistics are computed in constant time per voxel, whatever the radius
+		executeOutOfPlace(inSeq, name, new Object[] { FilterType.LOCAL_STATISTICS, stat, rX, rY, rZ, outputType.getValue() }, new OutOfPlaceFilter()
+		{
+			@Override
+			public void filter(Sequence output)
+			{
+				IntegralImage.filter(inSeq, output, rX, rY, rZ, stat, stopFlag);
+			}
+		});
+	}
+	
+	/**
+	 * A filter writing its result into a given output sequence
+	 */
+	private interface OutOfPlaceFilter
+	{
+		void filter(Sequence output);
+	}
+	
+	/**
+	 * Runs a filter that writes its result directly into a new output sequence (no copy of the
+	 * input), using and filling the result cache if requested, and displays the result
+	 * 
+	 * @param inSeq
+	 *            the input sequence
+	 * @param name
+	 *            the name of the output sequence
+	 * @param parameters
+	 *            the filter parameters identifying the result in the cache (see
+	 *            {@link ResultCache#key(Sequence, Object...)})
+	 * @param filter
+	 *            the filter to run
+	 */
+	private void executeOutOfPlace(Sequence inSeq, String name, Object[] parameters, OutOfPlaceFilter filter)
+	{
+		Sequence output = Convolution.createOutput(inSeq, getOutputType(inSeq));
+		output.setName(name);
+		
+		String cacheKey = null;
+		
+		if (cacheResults.getValue())
+		{
+			cacheKey = ResultCache.key(inSeq, parameters);
+			
+			if (addCachedResult(cacheKey, output)) return;
+		}
+		
+		filter.filter(output);
+		
+		// the output bounds are updated during the write-back
+		if (cacheKey != null && !stopFlag.getValue()) resultCache.put(cacheKey, output);
+		addSequence(output);
+	}
+	
 	private void executeClassic(Sequence inSeq)
 	{
-		Kernels2D k2d = kernel2D.getValue();
+		Sequence kernel = createKernel2D(1).toSequence();
 		
-		switch (kernel2D.getValue())
+		if (incremental.getValue() && !useOpenCL.getValue() && iterations.getValue() == 1)
 		{
-			case CUSTOM_GABOR:
-				k2d.createGaborKernel2D(gaborSigma.getValue(), gaborKx.getValue(), gaborKy.getValue(), gaborSymmetric.getValue());
-			break;
+			Object[] key = { inSeq, kernel.getDataXY(0, 0, 0), kernel.getSizeX(), zeroEdge.getValue() };
 			
-			case CUSTOM:
+			if (!updateIncremental(key))
 			{
-				ArrayList<Float> kernel1D = new ArrayList<Float>();
-				for (int i = 0; i < userKernelHeight.getValue(); i++)
-					for (Float f : kernelLines.get(i).getValue())
-						kernel1D.add(f);
-				
-				double[] values = new double[kernel1D.size()];
-				for (int i = 0; i < kernel1D.size(); i++)
-					values[i] = kernel1D.get(i);
-				
-				k2d.createCustomKernel2D(values, userKernelWidth.getValue(), userKernelHeight.getValue(), false);
+				Sequence output = Convolution.createOutput(inSeq, getOutputType(inSeq));
+				output.setName(inSeq.getName() + " * " + kernel.getName());
+				startIncremental(key, new IncrementalFilter(inSeq, output, kernel, zeroEdge.getValue()));
 			}
-			break;
+			return;
 		}
 		
-		Sequence kernel = k2d.toSequence();
-		Sequence output = inSeq.getCopy();
+		// the result is written directly into the output (no copy of the input)
+		Sequence output = Convolution.createOutput(inSeq, getOutputType(inSeq));
+		output.setName(inSeq.getName() + " * " + kernel.getName());
+		
+		String cacheKey = null;
+		
+		if (cacheResults.getValue())
+		{
+			cacheKey = ResultCache.key(inSeq, FilterType.CLASSIC, kernel.getSizeX(), kernel.getSizeY(), kernel.getDataXYZAsDouble(0, 0), zeroEdge.getValue(), iterations.getValue(), outputType.getValue(), useOpenCL.getValue());
+			
+			if (addCachedResult(cacheKey, output)) return;
+		}
 		
 		if (useOpenCL.getValue())
 		{
-			convolutionCL.convolve(output, kernel, zeroEdge.getValue(), iterations.getValue(), stopFlag);
+			convolutionCL.convolve(inSeq, output, kernel, zeroEdge.getValue(), iterations.getValue(), stopFlag);
 		}
 		else
 		{
-			Convolution.convolve(output, kernel, zeroEdge.getValue(), iterations.getValue(), stopFlag);
+			Convolution.convolve(inSeq, output, kernel, zeroEdge.getValue(), iterations.getValue(), stopFlag);
 		}
 		
-		output.setName(inSeq.getName() + " * " + kernel.getName());
-		output.updateComponentsBounds(true);
+		// the engines have already updated the output bounds
+		if (cacheKey != null && !stopFlag.getValue()) resultCache.put(cacheKey, output);
 		addSequence(output);
 	}
 	
@@ -282,73 +610,422 @@ public class FilterToolbox extends EzPlug implements EzStoppable
 	{
 		Kernels1D k1d = kernel1D.getValue();
 		
-		Sequence kernelX, kernelY, kernelZ;
+		Sequence[] kernels = createKernels1D(1);
+		Sequence kernelX = kernels[0], kernelY = kernels[1], kernelZ = kernels[2], kernelT = kernels[3];
 		
-		switch (kernel1D.getValue())
+		String directions = " along ";
+		if (linearX.getValue()) directions += "X";
+		if (linearY.getValue()) directions += "Y";
+		if (linearZ.getValue()) directions += "Z";
+		
+		boolean alongT = linearT.getValue() && inSeq.getSizeT() > 1;
+		if (alongT) directions += "T";
+		
+		boolean pyramid = k1d == Kernels1D.CUSTOM_GAUSSIAN && gaussianMaxError.getValue() > 0;
+		
+		if (incremental.getValue() && !useOpenCL.getValue() && !pyramid && !alongT && iterations.getValue() == 1 && (linearX.getValue() || linearY.getValue() || linearZ.getValue()))
 		{
-			case CUSTOM_GAUSSIAN:
-				kernelX = k1d.createGaussianKernel1D(gaussianX.getValue()).toSequence();
-				kernelY = k1d.createGaussianKernel1D(gaussianY.getValue()).toSequence();
-				kernelZ = k1d.createGaussianKernel1D(gaussianZ.getValue()).toSequence();
-			break;
+			double[] kX = linearX.getValue() ? (double[]) kernelX.getDataXY(0, 0, 0) : null;
+			double[] kY = linearY.getValue() ? (double[]) kernelY.getDataXY(0, 0, 0) : null;
+			double[] kZ = linearZ.getValue() ? (double[]) kernelZ.getDataXY(0, 0, 0) : null;
 			
-			case CUSTOM:
+			Object[] key = { inSeq, kX, kY, kZ, zeroEdge.getValue() };
+			
+			if (!updateIncremental(key))
 			{
-				Float[] kernel1D = kernelLines.get(0).getValue();
-				double[] values = new double[kernel1D.length];
-				for (int i = 0; i < kernel1D.length; i++)
-					values[i] = kernel1D[i];
-				
-				kernelX = kernelY = kernelZ = k1d.createCustomKernel1D(values, false).toSequence();
+				Sequence output = Convolution.createOutput(inSeq, getOutputType(inSeq));
+				output.setName(inSeq.getName() + " * " + kernelX.getName() + directions);
+				startIncremental(key, new IncrementalFilter(inSeq, output, kX, kY, kZ, zeroEdge.getValue()));
 			}
-			break;
-			
-			default:
-				kernelX = kernelY = kernelZ = k1d.toSequence();
+			return;
 		}
 		
-		Sequence output = inSeq.getCopy();
+		// the result is written directly into the output (no copy of the input)
+		Sequence output = Convolution.createOutput(inSeq, getOutputType(inSeq));
+		output.setName(inSeq.getName() + " * " + kernelX.getName() + directions);
+		
+		String cacheKey = null;
 		
-		String directions = " along ";
-		if (linearX.getValue()) directions += "X";
-		if (linearY.getValue()) directions += "Y";
-		if (linearZ.getValue()) directions += "Z";
+		if (cacheResults.getValue())
+		{
+			double[] kX = linearX.getValue() ? (double[]) kernelX.getDataXY(0, 0, 0) : null;
+			double[] kY = linearY.getValue() ? (double[]) kernelY.getDataXY(0, 0, 0) : null;
+			double[] kZ = linearZ.getValue() ? (double[]) kernelZ.getDataXY(0, 0, 0) : null;
+			double[] kT = alongT ? (double[]) kernelT.getDataXY(0, 0, 0) : null;
+			double[] pyramidError = pyramid ? new double[] { gaussianMaxError.getValue() } : null;
+			
+			cacheKey = ResultCache.key(inSeq, FilterType.SEPARABLE, kX, kY, kZ, kT, pyramidError, zeroEdge.getValue(), iterations.getValue(), outputType.getValue(), useOpenCL.getValue());
+			
+			if (addCachedResult(cacheKey, output)) return;
+		}
+		
+		// the out-of-place engines update the output bounds during the write-back
+		boolean boundsUpdated = true;
 		
 		if (useOpenCL.getValue())
 		{
+			Sequence source = inSeq;
+			
 			// the kernel along X is ready
-			if (linearX.getValue()) convolutionCL.convolve(output, kernelX, zeroEdge.getValue(), iterations.getValue(), stopFlag);
+			if (linearX.getValue())
+			{
+				convolutionCL.convolve(source, output, kernelX, zeroEdge.getValue(), iterations.getValue(), stopFlag);
+				source = output;
+			}
 			
 			if (linearY.getValue())
 			{
 				// the kernel along Y must be rotated from X
 				Sequence kernelY_vertical = new Sequence(new IcyBufferedImage(1, kernelY.getSizeX(), 1, kernelY.getDataType_()));
 				System.arraycopy(kernelY.getDataXY(0, 0, 0), 0, kernelY_vertical.getDataXY(0, 0, 0), 0, kernelY.getSizeX());
-				convolutionCL.convolve(output, kernelY_vertical, zeroEdge.getValue(), iterations.getValue(), stopFlag);
+				convolutionCL.convolve(source, output, kernelY_vertical, zeroEdge.getValue(), iterations.getValue(), stopFlag);
+				source = output;
+			}
+			
+			if (source == inSeq)
+			{
+				copyData(inSeq, output);
+				boundsUpdated = false;
 			}
 			
 			// no convolution along Z yet.
 		}
+		else if (pyramid)
+		{
+			copyData(inSeq, output);
+			boundsUpdated = false;
+			
+			// large Gaussians: decimate wherever the tolerated error allows it
+			double sigmaX = linearX.getValue() ? gaussianX.getValue() : 0;
+			double sigmaY = linearY.getValue() ? gaussianY.getValue() : 0;
+			double sigmaZ = linearZ.getValue() ? gaussianZ.getValue() : 0;
+			
+			PyramidGaussian.convolve(output, sigmaX, sigmaY, sigmaZ, gaussianMaxError.getValue(), zeroEdge.getValue(), iterations.getValue(), stopFlag);
+		}
 		else
 		{
 			if (linearX.getValue() || linearY.getValue() || linearZ.getValue())
 			{
-				Convolution1D.convolve(output, linearX.getValue() ? kernelX : null, linearY.getValue() ? kernelY : null, linearZ.getValue() ? kernelZ : null, iterations.getValue(), stopFlag);
+				double[] kX = linearX.getValue() ? (double[]) kernelX.getDataXY(0, 0, 0) : null;
+				double[] kY = linearY.getValue() ? (double[]) kernelY.getDataXY(0, 0, 0) : null;
+				double[] kZ = linearZ.getValue() ? (double[]) kernelZ.getDataXY(0, 0, 0) : null;
+				
+				Convolution1D.convolve(inSeq, output, kX, kY, kZ, zeroEdge.getValue(), iterations.getValue(), stopFlag);
+			}
+			else
+			{
+				copyData(inSeq, output);
+				boundsUpdated = false;
 			}
 		}
 		
-		output.setName(inSeq.getName() + " * " + kernelX.getName() + directions);
+		if (alongT)
+		{
+			// streamed along time, after the spatial passes
+			TemporalConvolution.convolve(output, null, null, null, (double[]) kernelT.getDataXY(0, 0, 0), zeroEdge.getValue(), iterations.getValue(), stopFlag);
+			boundsUpdated = false;
+		}
+		
+		if (!boundsUpdated) output.updateComponentsBounds(true);
+		if (cacheKey != null && !stopFlag.getValue()) resultCache.put(cacheKey, output);
+		addSequence(output);
+	}
+	
+	private <T> void addPreviewTrigger(EzVar<T> var)
+	{
+		var.addVarChangeListener(new EzVarListener<T>()
+		{
+			@Override
+			public void variableChanged(EzVar<T> source, T newValue)
+			{
+				updatePreview();
+			}
+		});
+	}
+	
+	/**
+	 * Requests a new live preview of the plane displayed in the active viewer (if it shows the
+	 * input sequence, or the central slice of the first time point otherwise)
+	 */
+	private void updatePreview()
+	{
+		Sequence inSeq = input.getValue();
+		
+		if (!livePreview.getValue() || inSeq == null)
+		{
+			preview.cancel();
+			return;
+		}
+		
+		int t = 0, z = inSeq.getSizeZ() / 2;
+		
+		Viewer viewer = Icy.getMainInterface().getActiveViewer();
+		
+		if (viewer != null && viewer.getSequence() == inSeq)
+		{
+			t = viewer.getPositionT();
+			z = viewer.getPositionZ();
+		}
+		
+		preview.request(inSeq, t, z, getOutputType(inSeq));
+	}
+	
+	/**
+	 * @return the number of slices on each side of a plane needed to preview it
+	 */
+	private int getPreviewHaloZ()
+	{
+		if (filterType.getValue() == FilterType.LOCAL_STATISTICS) return boxRadiusZ.getValue();
+		
+		// an opening or closing reads twice as far
+		if (filterType.getValue() == FilterType.MORPHOLOGY) return 2 * morphoRadiusZ.getValue();
+		
+		if (filterType.getValue() != FilterType.SEPARABLE || !linearZ.getValue()) return 0;
+		
+		return (createKernels1D(1)[2].getSizeX() / 2) * iterations.getValue();
+	}
+	
+	/**
+	 * Applies the current filter to the planes of a preview, in pure Java. The pyramid
+	 * approximation and the convolution along T are not previewed
+	 */
+	private void filterPreview(Sequence in, Sequence out, int scale, VarBoolean stop)
+	{
+		if (filterType.getValue() == FilterType.LOCAL_STATISTICS)
+		{
+			int rX = Math.round(boxRadiusX.getValue() / (float) scale);
+			int rY = Math.round(boxRadiusY.getValue() / (float) scale);
+			IntegralImage.filter(in, out, rX, rY, boxRadiusZ.getValue(), statistic.getValue(), stop);
+			return;
+		}
+		
+		if (filterType.getValue() == FilterType.BILATERAL)
+		{
+			BilateralFilter.filter(in, out, bilateralSpatial.getValue() / scale, bilateralRange.getValue(), stop);
+			return;
+		}
+		
+		if (filterType.getValue() == FilterType.MORPHOLOGY)
+		{
+			int rX = Math.round(morphoRadiusX.getValue() / (float) scale);
+			int rY = Math.round(morphoRadiusY.getValue() / (float) scale);
+			Morphology.filter(in, out, rX, rY, morphoRadiusZ.getValue(), morphology.getValue(), stop);
+			return;
+		}
+		
+		if (filterType.getValue() == FilterType.RANK)
+		{
+			int rX = Math.round(rankRadiusX.getValue() / (float) scale);
+			int rY = Math.round(rankRadiusY.getValue() / (float) scale);
+			RankFilter.filter(in, out, rX, rY, rankPercentile.getValue(), stop);
+			return;
+		}
+		
+		if (filterType.getValue() == FilterType.CLASSIC)
+		{
+			Convolution.convolve(in, out, createKernel2D(scale).toSequence(), zeroEdge.getValue(), iterations.getValue(), stop);
+			return;
+		}
+		
+		Sequence[] kernels = createKernels1D(scale);
+		
+		double[] kX = linearX.getValue() ? (double[]) kernels[0].getDataXY(0, 0, 0) : null;
+		double[] kY = linearY.getValue() ? (double[]) kernels[1].getDataXY(0, 0, 0) : null;
+		double[] kZ = linearZ.getValue() ? (double[]) kernels[2].getDataXY(0, 0, 0) : null;
+		
+		if (kX == null && kY == null && kZ == null)
+		{
+			copyData(in, out);
+		}
+		else
+		{
+			Convolution1D.convolve(in, out, kX, kY, kZ, zeroEdge.getValue(), iterations.getValue(), stop);
+		}
+	}
+	
+	/**
+	 * Fills the given output with the cached result of a previous run (if any) and displays it
+	 * 
+	 * @param cacheKey
+	 *            the input and filter parameters (see {@link ResultCache#key(Sequence, Object...)})
+	 * @param output
+	 *            the output sequence
+	 * @return true if the result was found in the cache, false if it must be computed
+	 */
+	private boolean addCachedResult(String cacheKey, Sequence output)
+	{
+		if (!resultCache.get(cacheKey, output)) return false;
+		
 		output.updateComponentsBounds(true);
 		addSequence(output);
+		return true;
+	}
+	
+	/**
+	 * Creates the 2D kernel defined by the current parameters
+	 * 
+	 * @param scale
+	 *            the down-sampling factor of the data to filter (1 for the full resolution), which
+	 *            the parametric kernels are shrunk by
+	 * @return the kernel
+	 */
+	private IKernel createKernel2D(double scale)
+	{
+		IKernel k2d;
+		
+		switch (kernel2D.getValue())
+		{
+			case CUSTOM_GABOR:
+				k2d = Kernel2D.gabor(gaborSigma.getValue() / scale, gaborKx.getValue() * scale, gaborKy.getValue() * scale, gaborSymmetric.getValue());
+			break;
+			
+			case CUSTOM:
+			{
+				ArrayList<Float> kernel1D = new ArrayList<Float>();
+				for (int i = 0; i < userKernelHeight.getValue(); i++)
+					for (Float f : kernelLines.get(i).getValue())
+						kernel1D.add(f);
+				
+				double[] values = new double[kernel1D.size()];
+				for (int i = 0; i < kernel1D.size(); i++)
+					values[i] = kernel1D.get(i);
+				
+				k2d = Kernel2D.custom(values, userKernelWidth.getValue(), userKernelHeight.getValue(), false);
+			}
+			break;
+			
+			default:
+				k2d = Kernel2D.valueOf(kernel2D.getValue());
+		}
+		
+		return k2d;
+	}
+	
+	/**
+	 * Creates the 1D kernels defined by the current parameters
+	 * 
+	 * @param scale
+	 *            the down-sampling factor of the data to filter along X and Y (1 for the full
+	 *            resolution), which the Gaussian kernels are shrunk by
+	 * @return the kernels along X, Y, Z and T
+	 */
+	private Sequence[] createKernels1D(double scale)
+	{
+		Sequence kernelX, kernelY, kernelZ, kernelT;
+		
+		switch (kernel1D.getValue())
+		{
+			case CUSTOM_GAUSSIAN:
+				kernelX = Kernel1D.gaussian(gaussianX.getValue() / scale).toSequence();
+				kernelY = Kernel1D.gaussian(gaussianY.getValue() / scale).toSequence();
+				kernelZ = Kernel1D.gaussian(gaussianZ.getValue()).toSequence();
+				kernelT = Kernel1D.gaussian(gaussianT.getValue()).toSequence();
+			break;
+			
+			case CUSTOM:
+			{
+				Float[] kernel1D = kernelLines.get(0).getValue();
+				double[] values = new double[kernel1D.length];
+				for (int i = 0; i < kernel1D.length; i++)
+					values[i] = kernel1D[i];
+				
+				kernelX = kernelY = kernelZ = kernelT = Kernel1D.custom(values, false).toSequence();
+			}
+			break;
+			
+			default:
+				kernelX = kernelY = kernelZ = kernelT = kernel1D.getValue().toSequence();
+		}
+		
+		return new Sequence[] { kernelX, kernelY, kernelZ, kernelT };
+	}
+	
+	private DataType getOutputType(Sequence inSeq)
+	{
+		switch (outputType.getValue())
+		{
+			case FLOAT:
+				return DataType.FLOAT;
+			case DOUBLE:
+				return DataType.DOUBLE;
+			default:
+				return inSeq.getDataType_();
+		}
+	}
+	
+	/**
+	 * Copies (and converts if necessary) the input data into the output, for the filters that
+	 * operate in-place
+	 */
+	private static void copyData(Sequence inSeq, Sequence output)
+	{
+		boolean signed = output.getDataType_().isSigned();
+		
+		for (int t = 0; t < inSeq.getSizeT(); t++)
+			for (int z = 0; z < inSeq.getSizeZ(); z++)
+				for (int c = 0; c < inSeq.getSizeC(); c++)
+					Array1DUtil.doubleArrayToSafeArray(inSeq.getDataXYAsDouble(t, z, c), output.getDataXY(t, z, c), signed);
+	}
+	
+	/**
+	 * Updates the output of the previous incremental run, if it was obtained with the same input
+	 * and filter parameters (and if the output is still opened)
+	 * 
+	 * @param key
+	 *            the input and filter parameters
+	 * @return true if the previous output was updated, false if a new output is needed
+	 */
+	private boolean updateIncremental(Object[] key)
+	{
+		if (incrementalFilter == null) return false;
+		
+		Sequence output = incrementalFilter.getOutput();
+		
+		if (!Arrays.deepEquals(key, incrementalKey) || !Icy.getMainInterface().isOpened(output))
+		{
+			incrementalFilter.dispose();
+			incrementalFilter = null;
+			return false;
+		}
+		
+		// only the parts of the input modified since the last run are recomputed
+		if (incrementalFilter.update() > 0) output.updateComponentsBounds(true);
+		
+		return true;
+	}
+	
+	private void startIncremental(Object[] key, IncrementalFilter filter)
+	{
+		incrementalFilter = filter;
+		incrementalKey = key;
+		
+		filter.update();
+		filter.getOutput().updateComponentsBounds(true);
+		addSequence(filter.getOutput());
 	}
 	
 	@Override
 	public void clean()
 	{
-		if (useOpenCL.getValue())
+		preview.dispose();
+		
+		if (incrementalFilter != null)
+		{
+			incrementalFilter.dispose();
+			incrementalFilter = null;
+		}
+		
+		resultCache.clear();
+		
+		synchronized (this)
 		{
-			queue.release();
-			context.release();
+			openCLReleased = true;
+			
+			if (context != null)
+			{
+				queue.release();
+				context.release();
+			}
 		}
 	}
 	
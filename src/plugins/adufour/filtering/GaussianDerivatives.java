@@ -0,0 +1,424 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import plugins.adufour.filtering.FilterToolbox.Axis;
+import plugins.adufour.vars.lang.VarBoolean;
+
+/**
+ * Fused computation of Gaussian derivatives (gradient, Hessian, structure tensor) at a given
+ * scale. <br>
+ * All requested derivatives are computed in a single scheduled sweep: the separable passes are
+ * organized as a tree (X, then Y, then Z) such that intermediate 1D results shared by several
+ * derivatives are computed only once. For instance, the 6 components of a 3D Hessian require 15
+ * axis passes instead of 18, and the 9 components of the gradient and Hessian require 18 passes
+ * instead of 27.
+ * 
+ */
+public class GaussianDerivatives
+{
+	/** Index of the XX component in Hessian and structure tensor arrays */
+	public static final int	XX	= 0;
+	
+	/** Index of the YY component in Hessian and structure tensor arrays */
+	public static final int	YY	= 1;
+	
+	/** Index of the ZZ component in Hessian and structure tensor arrays */
+	public static final int	ZZ	= 2;
+	
+	/** Index of the XY component in Hessian and structure tensor arrays */
+	public static final int	XY	= 3;
+	
+	/** Index of the XZ component in Hessian and structure tensor arrays */
+	public static final int	XZ	= 4;
+	
+	/** Index of the YZ component in Hessian and structure tensor arrays */
+	public static final int	YZ	= 5;
+	
+	/** Derivative orders (along X, Y, Z) of the Hessian components, in component index order */
+	private static final int[][]	HESSIAN_ORDERS	= { { 2, 0, 0 }, { 0, 2, 0 }, { 0, 0, 2 }, { 1, 1, 0 }, { 1, 0, 1 }, { 0, 1, 1 } };
+	
+	/** Derivative orders (along X, Y, Z) of the gradient components */
+	private static final int[][]	GRADIENT_ORDERS	= { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+	
+	/**
+	 * Computes the Hessian matrix of each (t,c) stack of the input sequence at the given scale.
+	 * 
+	 * @param input
+	 *            the input sequence
+	 * @param sigmaX
+	 *            the Gaussian scale along X
+	 * @param sigmaY
+	 *            the Gaussian scale along Y
+	 * @param sigmaZ
+	 *            the Gaussian scale along Z (ignored for 2D sequences)
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param hessian
+	 *            a preallocated array of sequences (of same dimensions as the input, but of any
+	 *            data type) receiving the Hessian components in the order {@link #XX},
+	 *            {@link #YY}, {@link #ZZ}, {@link #XY}, {@link #XZ}, {@link #YZ}. For 2D
+	 *            sequences, the Z-related components may be null
+	 * @param stopFlag
+	 *            a flag that interrupts the computation when set to true
+	 */
+	public static void hessian(Sequence input, double sigmaX, double sigmaY, double sigmaZ, boolean zeroEdges, Sequence[] hessian, VarBoolean stopFlag)
+	{
+		boolean is3D = input.getSizeZ() > 1;
+		
+		int nbComponents = is3D ? 6 : 3;
+		int[][] orders = new int[nbComponents][];
+		Sequence[] outputs = new Sequence[nbComponents];
+		
+		for (int i = 0, n = 0; i < HESSIAN_ORDERS.length; i++)
+		{
+			if (!is3D && HESSIAN_ORDERS[i][2] > 0) continue;
+			
+			orders[n] = HESSIAN_ORDERS[i];
+			outputs[n] = hessian[i];
+			n++;
+		}
+		
+		compute(input, new double[] { sigmaX, sigmaY, sigmaZ }, orders, outputs, zeroEdges, stopFlag);
+	}
+	
+	/**
+	 * Computes the structure tensor of each (t,c) stack of the input sequence, i.e. the outer
+	 * product of the Gaussian gradient (at scale sigma) smoothed by a Gaussian of scale rho.
+	 * 
+	 * @param input
+	 *            the input sequence
+	 * @param sigma
+	 *            the derivation scale (identical along all axes)
+	 * @param rho
+	 *            the integration scale (identical along all axes)
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param tensor
+	 *            a preallocated array of sequences (of same dimensions as the input, but of any
+	 *            data type) receiving the tensor components in the order {@link #XX},
+	 *            {@link #YY}, {@link #ZZ}, {@link #XY}, {@link #XZ}, {@link #YZ}. For 2D
+	 *            sequences, the Z-related components may be null
+	 * @param stopFlag
+	 *            a flag that interrupts the computation when set to true
+	 */
+	public static void structureTensor(Sequence input, double sigma, double rho, boolean zeroEdges, Sequence[] tensor, VarBoolean stopFlag)
+	{
+		DataType type = input.getDataType_();
+		
+		int width = input.getSizeX();
+		int height = input.getSizeY();
+		int depth = input.getSizeZ();
+		int sliceSize = width * height;
+		
+		double[][] in = new double[depth][sliceSize];
+		double[][][] out = new double[6][depth][sliceSize];
+		
+		computation: for (int t = 0; t < input.getSizeT(); t++)
+			for (int c = 0; c < input.getSizeC(); c++)
+			{
+				for (int z = 0; z < depth; z++)
+					Array1DUtil.arrayToDoubleArray(input.getDataXY(t, z, c), in[z], type.isSigned());
+				
+				structureTensor(in, width, height, sigma, rho, zeroEdges, out);
+				
+				for (int i = 0; i < 6; i++)
+				{
+					if (tensor[i] == null) continue;
+					
+					boolean signed = tensor[i].getDataType_().isSigned();
+					
+					for (int z = 0; z < depth; z++)
+						Array1DUtil.doubleArrayToSafeArray(out[i][z], tensor[i].getDataXY(t, z, c), signed);
+				}
+				
+				if (stopFlag.getValue())
+					break computation;
+			}
+		
+		for (Sequence s : tensor)
+			if (s != null) s.dataChanged();
+	}
+	
+	/**
+	 * Low-level Hessian computation. <br>
+	 * Warning: this is a low-level method. No check is performed on the input arguments, and the
+	 * method may return successfully though with incorrect results. Make sure your arguments follow
+	 * the indicated constraints.
+	 * 
+	 * @param input
+	 *            the input data buffer, given as a [Z (slice)][XY (1D offset)] double array
+	 * @param width
+	 *            the image width
+	 * @param height
+	 *            the image height
+	 * @param sigmaX
+	 *            the Gaussian scale along X
+	 * @param sigmaY
+	 *            the Gaussian scale along Y
+	 * @param sigmaZ
+	 *            the Gaussian scale along Z (ignored if the input has a single slice)
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param hessian
+	 *            the preallocated output buffers, given as a [component][Z][XY] double array (see
+	 *            {@link #XX} etc. for the component order). For 2D data, only {@link #XX},
+	 *            {@link #YY} and {@link #XY} are filled
+	 */
+	public static void hessian(double[][] input, int width, int height, double sigmaX, double sigmaY, double sigmaZ, boolean zeroEdges, double[][][] hessian)
+	{
+		boolean is3D = input.length > 1;
+		
+		int nbComponents = is3D ? 6 : 3;
+		int[][] orders = new int[nbComponents][];
+		double[][][] outputs = new double[nbComponents][][];
+		
+		for (int i = 0, n = 0; i < HESSIAN_ORDERS.length; i++)
+		{
+			if (!is3D && HESSIAN_ORDERS[i][2] > 0) continue;
+			
+			orders[n] = HESSIAN_ORDERS[i];
+			outputs[n] = hessian[i];
+			n++;
+		}
+		
+		compute(input, width, height, new double[] { sigmaX, sigmaY, sigmaZ }, orders, outputs, zeroEdges);
+	}
+	
+	/**
+	 * Low-level structure tensor computation. <br>
+	 * Warning: this is a low-level method. No check is performed on the input arguments, and the
+	 * method may return successfully though with incorrect results. Make sure your arguments follow
+	 * the indicated constraints.
+	 * 
+	 * @param input
+	 *            the input data buffer, given as a [Z (slice)][XY (1D offset)] double array
+	 * @param width
+	 *            the image width
+	 * @param height
+	 *            the image height
+	 * @param sigma
+	 *            the derivation scale
+	 * @param rho
+	 *            the integration scale
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param tensor
+	 *            the preallocated output buffers, given as a [component][Z][XY] double array (see
+	 *            {@link #XX} etc. for the component order). For 2D data, only {@link #XX},
+	 *            {@link #YY} and {@link #XY} are filled
+	 */
+	public static void structureTensor(double[][] input, int width, int height, double sigma, double rho, boolean zeroEdges, double[][][] tensor)
+	{
+		boolean is3D = input.length > 1;
+		int sliceSize = input[0].length;
+		
+		int nbAxes = is3D ? 3 : 2;
+		int[][] orders = new int[nbAxes][];
+		double[][][] gradient = new double[nbAxes][input.length][sliceSize];
+		System.arraycopy(GRADIENT_ORDERS, 0, orders, 0, nbAxes);
+		
+		compute(input, width, height, new double[] { sigma, sigma, sigma }, orders, gradient, zeroEdges);
+		
+		// outer product of the gradient, written into the tensor buffers
+		
+		for (int z = 0; z < input.length; z++)
+		{
+			double[] gx = gradient[0][z];
+			double[] gy = gradient[1][z];
+			double[] gz = is3D ? gradient[2][z] : null;
+			
+			double[] xx = tensor[XX][z], yy = tensor[YY][z], xy = tensor[XY][z];
+			double[] zz = is3D ? tensor[ZZ][z] : null;
+			double[] xz = is3D ? tensor[XZ][z] : null;
+			double[] yz = is3D ? tensor[YZ][z] : null;
+			
+			for (int i = 0; i < sliceSize; i++)
+			{
+				double dx = gx[i], dy = gy[i];
+				
+				xx[i] = dx * dx;
+				yy[i] = dy * dy;
+				xy[i] = dx * dy;
+				
+				if (is3D)
+				{
+					double dz = gz[i];
+					zz[i] = dz * dz;
+					xz[i] = dx * dz;
+					yz[i] = dy * dz;
+				}
+			}
+		}
+		
+		// integration
+		
+		double[] kernel = Kernel1D.gaussianDerivative(rho, 0).data();
+		
+		for (int i = 0; i < tensor.length; i++)
+		{
+			if (!is3D && (i == ZZ || i == XZ || i == YZ)) continue;
+			
+			// reuse the gradient buffers as temporary storage
+			double[][] temp = gradient[0];
+			
+			Convolution1D.convolve1D(tensor[i], temp, width, height, 1, kernel, Axis.X, zeroEdges);
+			Convolution1D.convolve1D(temp, tensor[i], width, height, 1, kernel, Axis.Y, zeroEdges);
+			
+			if (is3D)
+			{
+				Convolution1D.convolve1D(tensor[i], temp, width, height, 1, kernel, Axis.Z, zeroEdges);
+				
+				for (int z = 0; z < input.length; z++)
+					System.arraycopy(temp[z], 0, tensor[i][z], 0, sliceSize);
+			}
+		}
+	}
+	
+	/**
+	 * Computes a set of Gaussian derivatives of each (t,c) stack of the input sequence
+	 * 
+	 * @param input
+	 *            the input sequence
+	 * @param sigma
+	 *            the Gaussian scale along X, Y and Z
+	 * @param orders
+	 *            the derivative orders along X, Y and Z for each output
+	 * @param outputs
+	 *            the preallocated output sequences (one per derivative)
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param stopFlag
+	 *            a flag that interrupts the computation when set to true
+	 */
+	private static void compute(Sequence input, double[] sigma, int[][] orders, Sequence[] outputs, boolean zeroEdges, VarBoolean stopFlag)
+	{
+		DataType type = input.getDataType_();
+		
+		int width = input.getSizeX();
+		int height = input.getSizeY();
+		int depth = input.getSizeZ();
+		int sliceSize = width * height;
+		
+		double[][] in = new double[depth][sliceSize];
+		double[][][] out = new double[orders.length][depth][sliceSize];
+		
+		computation: for (int t = 0; t < input.getSizeT(); t++)
+			for (int c = 0; c < input.getSizeC(); c++)
+			{
+				for (int z = 0; z < depth; z++)
+					Array1DUtil.arrayToDoubleArray(input.getDataXY(t, z, c), in[z], type.isSigned());
+				
+				compute(in, width, height, sigma, orders, out, zeroEdges);
+				
+				for (int i = 0; i < orders.length; i++)
+				{
+					if (outputs[i] == null) continue;
+					
+					boolean signed = outputs[i].getDataType_().isSigned();
+					
+					for (int z = 0; z < depth; z++)
+						Array1DUtil.doubleArrayToSafeArray(out[i][z], outputs[i].getDataXY(t, z, c), signed);
+				}
+				
+				if (stopFlag.getValue())
+					break computation;
+			}
+		
+		for (Sequence s : outputs)
+			if (s != null) s.dataChanged();
+	}
+	
+	/**
+	 * Computes a set of Gaussian derivatives in a single scheduled sweep. The passes are organized
+	 * as a tree: one X pass per distinct X order, then one Y pass per distinct (X,Y) order pair,
+	 * and finally one Z pass per requested derivative (written directly into its output buffer).
+	 * 
+	 * @param input
+	 *            the input data buffer, given as a [Z (slice)][XY (1D offset)] double array
+	 * @param width
+	 *            the image width
+	 * @param height
+	 *            the image height
+	 * @param sigma
+	 *            the Gaussian scale along X, Y and Z
+	 * @param orders
+	 *            the derivative orders along X, Y and Z for each output (no duplicates allowed)
+	 * @param outputs
+	 *            the preallocated output buffers, given as a [derivative][Z][XY] double array
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @throws IllegalArgumentException
+	 *             if a derivative along Z is requested on 2D data
+	 */
+	static void compute(double[][] input, int width, int height, double[] sigma, int[][] orders, double[][][] outputs, boolean zeroEdges) throws IllegalArgumentException
+	{
+		boolean is3D = input.length > 1;
+		int sliceSize = input[0].length;
+		
+		// prepare the kernels once for all
+		double[][][] kernels = new double[3][3][];
+		
+		for (int[] order : orders)
+			for (int axis = 0; axis < 3; axis++)
+			{
+				if (axis == 2 && !is3D)
+				{
+					if (order[2] > 0)
+						throw new IllegalArgumentException("Invalid argument: cannot derive along Z on 2D data");
+					continue;
+				}
+				
+				if (kernels[axis][order[axis]] == null)
+					kernels[axis][order[axis]] = Kernel1D.gaussianDerivative(sigma[axis], order[axis]).data();
+			}
+		
+		double[][] bufferX = new double[input.length][sliceSize];
+		double[][] bufferXY = is3D ? new double[input.length][sliceSize] : null;
+		
+		for (int ox = 0; ox < 3; ox++)
+		{
+			if (!hasOrder(orders, ox, -1)) continue;
+			
+			Convolution1D.convolve1D(input, bufferX, width, height, 1, kernels[0][ox], Axis.X, zeroEdges);
+			
+			for (int oy = 0; oy < 3; oy++)
+			{
+				if (!hasOrder(orders, ox, oy)) continue;
+				
+				if (!is3D)
+				{
+					for (int i = 0; i < orders.length; i++)
+						if (orders[i][0] == ox && orders[i][1] == oy)
+							Convolution1D.convolve1D(bufferX, outputs[i], width, height, 1, kernels[1][oy], Axis.Y, zeroEdges);
+					continue;
+				}
+				
+				Convolution1D.convolve1D(bufferX, bufferXY, width, height, 1, kernels[1][oy], Axis.Y, zeroEdges);
+				
+				for (int i = 0; i < orders.length; i++)
+					if (orders[i][0] == ox && orders[i][1] == oy)
+						Convolution1D.convolve1D(bufferXY, outputs[i], width, height, 1, kernels[2][orders[i][2]], Axis.Z, zeroEdges);
+			}
+		}
+	}
+	
+	/**
+	 * @return true if at least one of the given derivatives has the specified X order and Y order
+	 *         (or any Y order if oy is negative)
+	 */
+	private static boolean hasOrder(int[][] orders, int ox, int oy)
+	{
+		for (int[] order : orders)
+			if (order[0] == ox && (oy < 0 || order[1] == oy)) return true;
+		
+		return false;
+	}
+}
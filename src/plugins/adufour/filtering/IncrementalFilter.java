@@ -0,0 +1,343 @@
+package plugins.adufour.filtering;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.sequence.SequenceEvent;
+import icy.sequence.SequenceEvent.SequenceEventSourceType;
+import icy.sequence.SequenceListener;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Incremental convolution of a sequence. <br>
+ * The filter keeps an output sequence up-to-date with its input, and tracks the parts of the input
+ * that have changed since the last update (the "dirty" regions). Upon {@link #update()}, only the
+ * output tiles whose kernel footprint overlaps a change are recomputed, while the rest of the
+ * output is reused as is. <br>
+ * Changes are reported either explicitly (see {@link #markDirty(int, Rectangle, int, int)}), or
+ * automatically through the sequence change events of the input (in which case the entire
+ * modified plane is considered dirty).
+ * 
+ */
+public class IncrementalFilter implements SequenceListener
+{
+	/**
+	 * Size (in pixels) of the output tiles along X and Y
+	 */
+	public static final int	TILE_SIZE	= 64;
+	
+	private final Sequence	input;
+	
+	private final Sequence	output;
+	
+	private final double[]	kernelX, kernelY, kernelZ;
+	
+	private final Sequence	kernel;
+	
+	private final boolean	zeroEdges;
+	
+	private final int		haloX, haloY, haloZ;
+	
+	private int				nbTilesX, nbTilesY;
+	
+	/**
+	 * Dirty output tiles, given as a [T][Z][tile] array
+	 */
+	private boolean[][][]	dirty;
+	
+	/**
+	 * Creates a new incremental filter for separable kernels. The entire output is initially dirty
+	 * 
+	 * @param input
+	 *            the sequence to filter (listened to for changes)
+	 * @param output
+	 *            the sequence receiving the result (must be different from the input, with the same
+	 *            dimensions)
+	 * @param kernelX
+	 *            the kernel to use for convolution along X (or null)
+	 * @param kernelY
+	 *            the kernel to use for convolution along Y (or null)
+	 * @param kernelZ
+	 *            the kernel to use for convolution along Z (or null)
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 */
+	public IncrementalFilter(Sequence input, Sequence output, double[] kernelX, double[] kernelY, double[] kernelZ, boolean zeroEdges)
+	{
+		this(input, output, kernelX, kernelY, kernelZ, null, zeroEdges);
+	}
+	
+	/**
+	 * Creates a new incremental filter for classic (non-separable) kernels. The entire output is
+	 * initially dirty
+	 * 
+	 * @param input
+	 *            the sequence to filter (listened to for changes)
+	 * @param output
+	 *            the sequence receiving the result (must be different from the input, with the same
+	 *            dimensions)
+	 * @param kernel
+	 *            the convolution kernel (1D, 2D or 3D), assumed to be already normalized
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 */
+	public IncrementalFilter(Sequence input, Sequence output, Sequence kernel, boolean zeroEdges)
+	{
+		this(input, output, null, null, null, kernel, zeroEdges);
+	}
+	
+	private IncrementalFilter(Sequence input, Sequence output, double[] kernelX, double[] kernelY, double[] kernelZ, Sequence kernel, boolean zeroEdges)
+	{
+		if (input == output)
+			throw new IllegalArgumentException("Invalid argument: the output must be different from the input");
+		if (kernel == null && kernelX == null && kernelY == null && kernelZ == null)
+			throw new IllegalArgumentException("Invalid argument: provide at least one non-null kernel");
+		
+		this.input = input;
+		this.output = output;
+		this.kernelX = kernelX;
+		this.kernelY = kernelY;
+		this.kernelZ = kernelZ;
+		this.kernel = kernel;
+		this.zeroEdges = zeroEdges;
+		
+		// one extra voxel covers the asymmetric mirroring condition of the classic engine
+		if (kernel != null)
+		{
+			haloX = kernel.getSizeX() == 1 ? 0 : (kernel.getSizeX() >> 1) + 1;
+			haloY = kernel.getSizeY() == 1 ? 0 : (kernel.getSizeY() >> 1) + 1;
+			haloZ = kernel.getSizeZ() == 1 ? 0 : (kernel.getSizeZ() >> 1) + 1;
+		}
+		else
+		{
+			haloX = kernelX == null ? 0 : kernelX.length >> 1;
+			haloY = kernelY == null ? 0 : kernelY.length >> 1;
+			haloZ = kernelZ == null ? 0 : kernelZ.length >> 1;
+		}
+		
+		markAllDirty();
+		
+		input.addListener(this);
+	}
+	
+	/**
+	 * @return the output sequence
+	 */
+	public Sequence getOutput()
+	{
+		return output;
+	}
+	
+	/**
+	 * Marks the entire output as dirty (e.g. after a change of the input dimensions)
+	 */
+	public synchronized void markAllDirty()
+	{
+		nbTilesX = (input.getSizeX() + TILE_SIZE - 1) / TILE_SIZE;
+		nbTilesY = (input.getSizeY() + TILE_SIZE - 1) / TILE_SIZE;
+		
+		dirty = new boolean[input.getSizeT()][input.getSizeZ()][nbTilesX * nbTilesY];
+		
+		for (boolean[][] dirtyT : dirty)
+			for (boolean[] dirtyZ : dirtyT)
+				Arrays.fill(dirtyZ, true);
+	}
+	
+	/**
+	 * Marks an entire plane of the input as modified
+	 * 
+	 * @param t
+	 *            the time point of the modified plane
+	 * @param z
+	 *            the slice of the modified plane
+	 */
+	public void markDirty(int t, int z)
+	{
+		markDirty(t, new Rectangle(0, 0, input.getSizeX(), input.getSizeY()), z, z);
+	}
+	
+	/**
+	 * Marks a region of the input as modified. All the output tiles whose kernel footprint
+	 * overlaps this region will be recomputed upon the next {@link #update()}
+	 * 
+	 * @param t
+	 *            the time point of the modified region
+	 * @param bounds
+	 *            the XY bounds of the modified region
+	 * @param zMin
+	 *            the first modified slice
+	 * @param zMax
+	 *            the last modified slice (inclusive)
+	 */
+	public synchronized void markDirty(int t, Rectangle bounds, int zMin, int zMax)
+	{
+		if (t < 0 || t >= dirty.length) return;
+		
+		// the output voxels affected by the change are those within reach of the kernel
+		int x0 = Math.max(0, bounds.x - haloX) / TILE_SIZE;
+		int y0 = Math.max(0, bounds.y - haloY) / TILE_SIZE;
+		int x1 = Math.min(nbTilesX * TILE_SIZE, bounds.x + bounds.width + haloX) - 1;
+		int y1 = Math.min(nbTilesY * TILE_SIZE, bounds.y + bounds.height + haloY) - 1;
+		
+		if (x1 < 0 || y1 < 0) return;
+		
+		x1 /= TILE_SIZE;
+		y1 /= TILE_SIZE;
+		
+		int z0 = Math.max(0, zMin - haloZ);
+		int z1 = Math.min(dirty[t].length - 1, zMax + haloZ);
+		
+		for (int z = z0; z <= z1; z++)
+			for (int tileY = y0; tileY <= y1; tileY++)
+				for (int tileX = x0; tileX <= x1; tileX++)
+					dirty[t][z][tileY * nbTilesX + tileX] = true;
+	}
+	
+	/**
+	 * @return true if at least one output tile must be recomputed
+	 */
+	public synchronized boolean isDirty()
+	{
+		for (boolean[][] dirtyT : dirty)
+			for (boolean[] dirtyZ : dirtyT)
+				for (boolean tile : dirtyZ)
+					if (tile) return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Recomputes the dirty parts of the output. Changes reported while the update is running are
+	 * kept for the next update
+	 * 
+	 * @return the number of recomputed tiles (one tile per slice)
+	 * @throws IllegalStateException
+	 *             if the input and output dimensions differ
+	 */
+	public int update() throws IllegalStateException
+	{
+		if (output.getSizeX() != input.getSizeX() || output.getSizeY() != input.getSizeY() || output.getSizeZ() != input.getSizeZ() || output.getSizeT() != input.getSizeT() || output.getSizeC() != input.getSizeC())
+			throw new IllegalStateException("The output dimensions differ from the input dimensions");
+		
+		boolean[][][] tiles;
+		int tilesX, tilesY;
+		
+		// take the current dirty tiles, such that new changes can be reported meanwhile
+		synchronized (this)
+		{
+			tiles = dirty;
+			tilesX = nbTilesX;
+			tilesY = nbTilesY;
+			dirty = new boolean[tiles.length][input.getSizeZ()][tilesX * tilesY];
+		}
+		
+		int nbTiles = 0;
+		
+		output.beginUpdate();
+		
+		try
+		{
+			for (int t = 0; t < tiles.length; t++)
+			{
+				int nbDirty = 0;
+				for (boolean[] dirtyZ : tiles[t])
+					for (boolean tile : dirtyZ)
+						if (tile) nbDirty++;
+				
+				if (nbDirty == 0) continue;
+				
+				nbTiles += nbDirty;
+				
+				if (nbDirty == tiles[t].length * tilesX * tilesY)
+				{
+					// everything is dirty: process the stack at once
+					convolve(new ConvolutionRegion(0, 0, 0, input.getSizeX(), input.getSizeY(), input.getSizeZ()), t);
+					continue;
+				}
+				
+				// process each tile column, grouping consecutive dirty slices
+				for (int tile = 0; tile < tilesX * tilesY; tile++)
+				{
+					int x = (tile % tilesX) * TILE_SIZE;
+					int y = (tile / tilesX) * TILE_SIZE;
+					
+					for (int z = 0; z < tiles[t].length; z++)
+					{
+						if (!tiles[t][z][tile]) continue;
+						
+						int zMin = z;
+						while (z + 1 < tiles[t].length && tiles[t][z + 1][tile])
+							z++;
+						
+						convolve(new ConvolutionRegion(x, y, zMin, TILE_SIZE, TILE_SIZE, z - zMin + 1), t);
+					}
+				}
+			}
+		}
+		finally
+		{
+			output.endUpdate();
+		}
+		
+		return nbTiles;
+	}
+	
+	private void convolve(ConvolutionRegion region, int t)
+	{
+		if (kernel != null)
+		{
+			Convolution.convolve(input, output, kernel, zeroEdges, region, t, t + 1);
+		}
+		else
+		{
+			Convolution1D.convolve(input, output, kernelX, kernelY, kernelZ, zeroEdges, region, t, t + 1);
+		}
+	}
+	
+	/**
+	 * Stops listening to the input sequence
+	 */
+	public void dispose()
+	{
+		input.removeListener(this);
+	}
+	
+	@Override
+	public synchronized void sequenceChanged(SequenceEvent sequenceEvent)
+	{
+		SequenceEventSourceType sourceType = sequenceEvent.getSourceType();
+		
+		if (sourceType == SequenceEventSourceType.SEQUENCE_TYPE)
+		{
+			markAllDirty();
+		}
+		else if (sourceType == SequenceEventSourceType.SEQUENCE_DATA)
+		{
+			Object source = sequenceEvent.getSource();
+			
+			if (source instanceof IcyBufferedImage && input.getSizeT() == dirty.length && input.getSizeZ() == dirty[0].length)
+			{
+				// find the modified plane
+				for (int t = 0; t < input.getSizeT(); t++)
+					for (int z = 0; z < input.getSizeZ(); z++)
+						if (input.getImage(t, z) == source)
+						{
+							markDirty(t, z);
+							return;
+						}
+			}
+			
+			// unknown (or multiple) planes
+			markAllDirty();
+		}
+	}
+	
+	@Override
+	public void sequenceClosed(Sequence sequence)
+	{
+		dispose();
+	}
+}
@@ -0,0 +1,562 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import plugins.adufour.vars.lang.VarBoolean;
+
+/**
+ * Exact fixed-point convolution for 8-bit and 16-bit sequences. <br>
+ * When all kernel values are integer multiples of a common (small) fraction, as is the case for
+ * most derivative kernels (Laplace, Sobel, Prewitt, Kirsch, gradient...), the convolution is
+ * performed directly on the byte[] or short[] image data with integer accumulators. There is no
+ * conversion to double precision, and the result is exact up to the final (truncating)
+ * conversion back to the sequence data type.
+ * 
+ */
+public class IntegerConvolution
+{
+	/**
+	 * Largest denominator tested when looking for an integer representation of a kernel
+	 */
+	private static final int	MAX_SCALE	= 1024;
+	
+	/**
+	 * @param type
+	 *            a data type
+	 * @return true if the integer path can handle data of the given type
+	 */
+	public static boolean isSupported(DataType type)
+	{
+		switch (type)
+		{
+			case UBYTE:
+			case BYTE:
+			case USHORT:
+			case SHORT:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * Computes the smallest integer factor that turns all the kernel values into integers
+	 * 
+	 * @param kernel
+	 *            the kernel values (in any order)
+	 * @return the scale factor, or 0 if the kernel has no (small) integer representation
+	 */
+	public static int getScale(double[]... kernel)
+	{
+		scales: for (int scale = 1; scale <= MAX_SCALE; scale++)
+		{
+			for (double[] values : kernel)
+				for (double value : values)
+				{
+					double scaled = value * scale;
+					if (Math.abs(scaled - Math.rint(scaled)) > 1.0e-9 * Math.max(1.0, Math.abs(scaled))) continue scales;
+				}
+			
+			return scale;
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * @return the integer taps of the given kernel multiplied by the given scale, or null if a tap
+	 *         does not fit in an int
+	 */
+	private static int[] toTaps(double[] kernel, int scale)
+	{
+		int[] taps = new int[kernel.length];
+		
+		for (int i = 0; i < taps.length; i++)
+		{
+			double tap = Math.rint(kernel[i] * scale);
+			if (Math.abs(tap) > Integer.MAX_VALUE) return null;
+			taps[i] = (int) tap;
+		}
+		
+		return taps;
+	}
+	
+	/**
+	 * Convolve the input sequence with the given kernel with the specified edge condition, using
+	 * the same conventions as {@link Convolution#convolve(Sequence, Sequence, boolean, int, VarBoolean)}
+	 * 
+	 * @param input
+	 *            the input sequence (must be of a {@link #isSupported(DataType) supported} type)
+	 * @param kernel
+	 *            the convolution kernel, given as a [Z][XY] array
+	 * @param kWidth
+	 *            the kernel half-width
+	 * @param kHeight
+	 *            the kernel half-height
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param nbIter
+	 *            the number of filter iterations
+	 * @param stopFlag
+	 *            a flag that interrupts the computation when set to true
+	 * @return false if the kernel has no integer representation, or if the accumulated values
+	 *         could overflow (nothing is done in this case)
+	 */
+	public static boolean convolve(Sequence input, double[][] kernel, int kWidth, int kHeight, boolean zeroEdges, int nbIter, VarBoolean stopFlag)
+	{
+		return convolve(input, kernel, kWidth, kHeight, zeroEdges, nbIter, stopFlag, null);
+	}
+	
+	/**
+	 * Same as {@link #convolve(Sequence, double[][], int, int, boolean, int, VarBoolean)}, and
+	 * records the bounds of the written values
+	 * 
+	 * @param bounds
+	 *            the bounds to update (or null)
+	 */
+	static boolean convolve(Sequence input, double[][] kernel, int kWidth, int kHeight, boolean zeroEdges, int nbIter, VarBoolean stopFlag, OutputBounds bounds)
+	{
+		int scale = getScale(kernel);
+		
+		if (scale == 0) return false;
+		
+		// check that the integer representation exists and cannot overflow
+		
+		int[][] taps = new int[kernel.length][];
+		double maxAbs = 1 << 16;
+		double sum = 0;
+		
+		for (int z = 0; z < kernel.length; z++)
+		{
+			taps[z] = toTaps(kernel[z], scale);
+			if (taps[z] == null) return false;
+			
+			for (int tap : taps[z])
+				sum += Math.abs(tap);
+		}
+		
+		if (maxAbs * sum >= Long.MAX_VALUE / 2) return false;
+		
+		DataType type = input.getDataType_();
+		int mask = getMask(type);
+		
+		int width = input.getSizeX();
+		int height = input.getSizeY();
+		int depth = input.getSizeZ();
+		int kDepth = kernel.length >> 1;
+		
+		// copies of the original planes (same type, no conversion)
+		Object[] in = new Object[depth];
+		long[] out = new long[width * height];
+		
+		convolution: for (int t = 0; t < input.getSizeT(); t++)
+		{
+			for (int c = 0; c < input.getSizeC(); c++)
+			{
+				for (int i = 0; i < nbIter; i++)
+				{
+					for (int z = 0; z < depth; z++)
+						in[z] = copy(input.getDataXY(t, z, c), in[z]);
+					
+					for (int z = 0; z < depth; z++)
+					{
+						int outXY = 0;
+						
+						for (int y = 0; y < height; y++)
+						{
+							for (int x = 0; x < width; x++, outXY++)
+							{
+								long conv = 0;
+								
+								for (int kZ = -kDepth; kZ <= kDepth; kZ++)
+								{
+									int inZ = z + kZ;
+									
+									if (inZ < 0 || inZ >= depth)
+									{
+										if (zeroEdges) continue;
+										
+										inZ = Convolution.mirror(inZ, depth);
+									}
+									
+									int[] kPlane = taps[kZ + kDepth];
+									
+									for (int kY = -kHeight, kXY = 0; kY <= kHeight; kY++, kXY += 2 * kWidth + 1)
+									{
+										int inY = y + kY;
+										
+										if (inY < 0 || inY >= height)
+										{
+											if (zeroEdges) continue;
+											
+											inY = Convolution.mirror(inY, height);
+										}
+										
+										conv += accumulateRow(in[inZ], mask, inY * width, x, width, kPlane, kXY, kWidth, zeroEdges);
+									}
+								}
+								
+								out[outXY] = conv;
+							}
+						}
+						
+						write(out, scale, input.getDataXY(t, z, c), type, bounds, t, z, c);
+					}
+					
+					if (stopFlag.getValue()) break convolution;
+				}
+			}
+		}
+		
+		input.dataChanged();
+		
+		return true;
+	}
+	
+	/**
+	 * Accumulates the contribution of one kernel row
+	 */
+	private static long accumulateRow(Object plane, int mask, int rowOffset, int x, int width, int[] taps, int tapOffset, int kWidth, boolean zeroEdges)
+	{
+		long sum = 0;
+		
+		if (x >= kWidth && x < width - kWidth)
+		{
+			// no border check needed
+			int inXY = rowOffset + x - kWidth;
+			int end = tapOffset + 2 * kWidth + 1;
+			
+			if (plane instanceof byte[])
+			{
+				byte[] data = (byte[]) plane;
+				for (int k = tapOffset; k < end; k++, inXY++)
+					sum += (long) (data[inXY] & mask) * taps[k];
+			}
+			else
+			{
+				short[] data = (short[]) plane;
+				for (int k = tapOffset; k < end; k++, inXY++)
+					sum += (long) (data[inXY] & mask) * taps[k];
+			}
+			
+			return sum;
+		}
+		
+		for (int kX = -kWidth, k = tapOffset; kX <= kWidth; kX++, k++)
+		{
+			int inX = x + kX;
+			
+			if (inX < 0 || inX >= width)
+			{
+				if (zeroEdges) continue;
+				
+				inX = Convolution.mirror(inX, width);
+			}
+			
+			if (plane instanceof byte[])
+				sum += (long) (((byte[]) plane)[rowOffset + inX] & mask) * taps[k];
+			else
+				sum += (long) (((short[]) plane)[rowOffset + inX] & mask) * taps[k];
+		}
+		
+		return sum;
+	}
+	
+	/**
+	 * Separable convolution of each (t,c) stack of the sequence, using the same conventions as
+	 * {@link Convolution1D#convolve(Sequence, Sequence, Sequence, Sequence, int, VarBoolean)}
+	 * 
+	 * @param sequence
+	 *            the sequence to convolve (must be of a {@link #isSupported(DataType) supported}
+	 *            type)
+	 * @param t
+	 *            the time point to convolve
+	 * @param c
+	 *            the channel to convolve
+	 * @param kernelX
+	 *            the kernel along X (or null)
+	 * @param kernelY
+	 *            the kernel along Y (or null)
+	 * @param kernelZ
+	 *            the kernel along Z (or null)
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @return false if the kernels have no integer representation, or if the accumulated values
+	 *         could overflow (nothing is done in this case)
+	 */
+	public static boolean convolve(Sequence sequence, int t, int c, double[] kernelX, double[] kernelY, double[] kernelZ, boolean zeroEdges)
+	{
+		return convolve(sequence, t, c, kernelX, kernelY, kernelZ, zeroEdges, null);
+	}
+	
+	/**
+	 * Same as
+	 * {@link #convolve(Sequence, int, int, double[], double[], double[], boolean)}, and records
+	 * the bounds of the written values
+	 * 
+	 * @param bounds
+	 *            the bounds to update (or null)
+	 */
+	static boolean convolve(Sequence sequence, int t, int c, double[] kernelX, double[] kernelY, double[] kernelZ, boolean zeroEdges, OutputBounds bounds)
+	{
+		DataType type = sequence.getDataType_();
+		int depth = sequence.getSizeZ();
+		
+		double[][] kernels = { kernelX, kernelY, depth > 1 ? kernelZ : null };
+		int[][] taps = new int[3][];
+		int[] scales = new int[3];
+		
+		// check that the integer representation exists and cannot overflow
+		
+		long scale = 1;
+		double maxAbs = 1 << 16;
+		
+		for (int axis = 0; axis < 3; axis++)
+		{
+			if (kernels[axis] == null) continue;
+			
+			scales[axis] = getScale(kernels[axis]);
+			if (scales[axis] == 0) return false;
+			
+			taps[axis] = toTaps(kernels[axis], scales[axis]);
+			if (taps[axis] == null) return false;
+			
+			scale *= scales[axis];
+			
+			long sum = 0;
+			for (int tap : taps[axis])
+				sum += Math.abs(tap);
+			maxAbs *= sum;
+		}
+		
+		if (maxAbs >= Long.MAX_VALUE / 2) return false;
+		
+		int width = sequence.getSizeX();
+		int height = sequence.getSizeY();
+		int sliceSize = width * height;
+		
+		Object[] source = new Object[depth];
+		for (int z = 0; z < depth; z++)
+			source[z] = sequence.getDataXY(t, z, c);
+		
+		long[][] buffer = null;
+		long[][] temp = null;
+		int mask = getMask(type);
+		
+		int[] size = { width, height, depth };
+		
+		for (int axis = 0; axis < 3; axis++)
+		{
+			if (taps[axis] == null) continue;
+			
+			if (buffer == null)
+			{
+				buffer = new long[depth][sliceSize];
+			}
+			else
+			{
+				if (temp == null) temp = new long[depth][sliceSize];
+				
+				for (int z = 0; z < depth; z++)
+				{
+					long[] swap = temp[z];
+					temp[z] = buffer[z];
+					buffer[z] = swap;
+					source[z] = temp[z];
+				}
+			}
+			
+			convolve1D(source, mask, buffer, size, taps[axis], axis, zeroEdges);
+		}
+		
+		if (buffer == null) return true;
+		
+		for (int z = 0; z < depth; z++)
+			write(buffer[z], scale, sequence.getDataXY(t, z, c), type, bounds, t, z, c);
+		
+		return true;
+	}
+	
+	/**
+	 * Low-level 1D integer convolution along a given axis, using a padded line buffer
+	 * 
+	 * @param input
+	 *            the input slices (byte[], short[] or long[] arrays)
+	 * @param mask
+	 *            the mask to apply to byte or short values
+	 * @param output
+	 *            the output slices
+	 * @param size
+	 *            the data dimensions
+	 * @param taps
+	 *            an odd-length integer kernel
+	 * @param axis
+	 *            the axis index (0: X, 1: Y, 2: Z)
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 */
+	private static void convolve1D(Object[] input, int mask, long[][] output, int[] size, int[] taps, int axis, boolean zeroEdges)
+	{
+		int width = size[0], height = size[1], depth = size[2];
+		int kRadius = taps.length >> 1;
+		
+		int length = size[axis];
+		long[] line = new long[length + 2 * kRadius];
+		
+		int nbLines = width * height * depth / length;
+		
+		for (int l = 0; l < nbLines; l++)
+		{
+			// compute the position of the first element and the stride along the line
+			int z, offset, stride;
+			
+			switch (axis)
+			{
+				case 0:
+					z = l / height;
+					offset = (l % height) * width;
+					stride = 1;
+				break;
+				case 1:
+					z = l / width;
+					offset = l % width;
+					stride = width;
+				break;
+				default:
+					z = 0;
+					offset = l;
+					stride = 0;
+			}
+			
+			// gather
+			
+			for (int i = 0; i < length; i++)
+			{
+				Object slice = input[axis == 2 ? i : z];
+				int index = offset + i * stride;
+				
+				long value;
+				if (slice instanceof long[])
+					value = ((long[]) slice)[index];
+				else if (slice instanceof short[])
+					value = ((short[]) slice)[index] & mask;
+				else
+					value = ((byte[]) slice)[index] & mask;
+				
+				line[i + kRadius] = value;
+			}
+			
+			for (int i = 1; i <= kRadius; i++)
+			{
+				line[kRadius - i] = zeroEdges ? 0 : line[kRadius + Convolution1D.mirror(-i, length)];
+				line[kRadius + length - 1 + i] = zeroEdges ? 0 : line[kRadius + Convolution1D.mirror(length - 1 + i, length)];
+			}
+			
+			// convolve and scatter
+			
+			for (int i = 0; i < length; i++)
+			{
+				long sum = 0;
+				
+				for (int k = 0; k < taps.length; k++)
+					sum += line[i + k] * taps[k];
+				
+				output[axis == 2 ? i : z][offset + i * stride] = sum;
+			}
+		}
+	}
+	
+	/**
+	 * Divides the accumulated values by the kernel scale, and stores the result (truncated and
+	 * clamped to the type bounds) into the given array
+	 */
+	private static void write(long[] values, long scale, Object array, DataType type, OutputBounds bounds, int t, int z, int c)
+	{
+		long min, max;
+		
+		switch (type)
+		{
+			case UBYTE:
+				min = 0;
+				max = 0xFF;
+			break;
+			case BYTE:
+				min = Byte.MIN_VALUE;
+				max = Byte.MAX_VALUE;
+			break;
+			case USHORT:
+				min = 0;
+				max = 0xFFFF;
+			break;
+			default:
+				min = Short.MIN_VALUE;
+				max = Short.MAX_VALUE;
+		}
+		
+		// bounds of the written values
+		long lo = max, hi = min;
+		
+		if (array instanceof byte[])
+		{
+			byte[] out = (byte[]) array;
+			for (int i = 0; i < out.length; i++)
+			{
+				long value = Math.max(min, Math.min(max, values[i] / scale));
+				if (value < lo) lo = value;
+				if (value > hi) hi = value;
+				out[i] = (byte) value;
+			}
+		}
+		else
+		{
+			short[] out = (short[]) array;
+			for (int i = 0; i < out.length; i++)
+			{
+				long value = Math.max(min, Math.min(max, values[i] / scale));
+				if (value < lo) lo = value;
+				if (value > hi) hi = value;
+				out[i] = (short) value;
+			}
+		}
+		
+		if (bounds != null) bounds.set(t, z, c, lo, hi);
+	}
+	
+	/**
+	 * @return the mask to apply to the raw (signed) Java values to obtain the actual pixel values
+	 */
+	private static int getMask(DataType type)
+	{
+		switch (type)
+		{
+			case UBYTE:
+				return 0xFF;
+			case USHORT:
+				return 0xFFFF;
+			default:
+				return -1;
+		}
+	}
+	
+	/**
+	 * Copies a byte[] or short[] array into the given buffer (allocated if null)
+	 */
+	private static Object copy(Object array, Object buffer)
+	{
+		if (array instanceof byte[])
+		{
+			byte[] in = (byte[]) array;
+			byte[] out = buffer == null ? new byte[in.length] : (byte[]) buffer;
+			System.arraycopy(in, 0, out, 0, in.length);
+			return out;
+		}
+		
+		short[] in = (short[]) array;
+		short[] out = buffer == null ? new short[in.length] : (short[]) buffer;
+		System.arraycopy(in, 0, out, 0, in.length);
+		return out;
+	}
+}
@@ -0,0 +1,342 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+import plugins.adufour.vars.lang.VarBoolean;
+
+/**
+ * Summed-area table (integral image in 2D, integral volume in 3D) of a stack, answering the sum
+ * (and the sum of squares) of the values within any box in constant time, whatever its size. <br>
+ * Tables of 8/16-bit data are accumulated in long integers, such that sums (and sums of squares)
+ * are exact; tables of other data types are accumulated in double precision. <br>
+ * The static {@link #filter(Sequence, Sequence, int, int, int, Statistic, VarBoolean)} method
+ * uses these tables to compute local box statistics (sum, mean, variance, standard deviation) of
+ * arbitrary radius, e.g. for adaptive thresholding.
+ * 
+ */
+public class IntegralImage
+{
+	/**
+	 * Local statistics computed by {@link IntegralImage#filter(Sequence, Sequence, int, int, int, Statistic, VarBoolean)}
+	 */
+	public enum Statistic
+	{
+		SUM, MEAN, VARIANCE, STANDARD_DEVIATION
+	}
+	
+	/**
+	 * Number of elements per row of the tables (width + 1)
+	 */
+	private final int		rowLength;
+	
+	/**
+	 * Exact tables (8/16-bit data), given as [Z+1][(Y+1)(X+1)] arrays (null if not exact)
+	 */
+	private final long[][]	longSums, longSquares;
+	
+	/**
+	 * Double precision tables (other data types), given as [Z+1][(Y+1)(X+1)] arrays (null if
+	 * exact)
+	 */
+	private final double[][]	sums, squares;
+	
+	/**
+	 * Creates the summed-area tables of the given stack
+	 * 
+	 * @param stack
+	 *            the stack, given as a [Z][XY] array
+	 * @param width
+	 *            the stack width
+	 * @param height
+	 *            the stack height
+	 * @param exact
+	 *            true if the values are (small) integers, which should be accumulated exactly in
+	 *            long integers (i.e. if the stack was read from 8/16-bit data)
+	 * @param withSquares
+	 *            true to also create the table of the squared values (needed for
+	 *            {@link #sumOfSquares(int, int, int, int, int, int)})
+	 */
+	public IntegralImage(double[][] stack, int width, int height, boolean exact, boolean withSquares)
+	{
+		int depth = stack.length;
+		this.rowLength = width + 1;
+		
+		int tableSize = rowLength * (height + 1);
+		
+		if (exact)
+		{
+			longSums = new long[depth + 1][tableSize];
+			longSquares = withSquares ? new long[depth + 1][tableSize] : null;
+			sums = squares = null;
+		}
+		else
+		{
+			sums = new double[depth + 1][tableSize];
+			squares = withSquares ? new double[depth + 1][tableSize] : null;
+			longSums = longSquares = null;
+		}
+		
+		for (int z = 0; z < depth; z++)
+		{
+			double[] slice = stack[z];
+			
+			for (int y = 0, xy = 0; y < height; y++)
+			{
+				// T[z+1](x+1, y+1) = row sum + T[z+1](x+1, y) + T[z](x+1, y+1) - T[z](x+1, y)
+				int above = y * rowLength + 1;
+				int current = above + rowLength;
+				
+				if (exact)
+				{
+					long rowSum = 0, rowSquares = 0;
+					long[] prev = longSums[z], next = longSums[z + 1];
+					
+					for (int x = 0; x < width; x++, xy++, above++, current++)
+					{
+						long value = (long) slice[xy];
+						rowSum += value;
+						next[current] = rowSum + next[above] + prev[current] - prev[above];
+						
+						if (withSquares)
+						{
+							rowSquares += value * value;
+							longSquares[z + 1][current] = rowSquares + longSquares[z + 1][above] + longSquares[z][current] - longSquares[z][above];
+						}
+					}
+				}
+				else
+				{
+					double rowSum = 0, rowSquares = 0;
+					double[] prev = sums[z], next = sums[z + 1];
+					
+					for (int x = 0; x < width; x++, xy++, above++, current++)
+					{
+						double value = slice[xy];
+						rowSum += value;
+						next[current] = rowSum + next[above] + prev[current] - prev[above];
+						
+						if (withSquares)
+						{
+							rowSquares += value * value;
+							squares[z + 1][current] = rowSquares + squares[z + 1][above] + squares[z][current] - squares[z][above];
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Creates the summed-area tables of a stack of the given sequence
+	 * 
+	 * @param sequence
+	 *            the sequence
+	 * @param t
+	 *            the time point of the stack
+	 * @param c
+	 *            the channel of the stack
+	 * @param withSquares
+	 *            true to also create the table of the squared values
+	 * @return the summed-area tables
+	 */
+	public static IntegralImage create(Sequence sequence, int t, int c, boolean withSquares)
+	{
+		DataType type = sequence.getDataType_();
+		double[][] stack = new double[sequence.getSizeZ()][];
+		
+		for (int z = 0; z < stack.length; z++)
+			stack[z] = sequence.getDataXYAsDouble(t, z, c);
+		
+		return new IntegralImage(stack, sequence.getSizeX(), sequence.getSizeY(), IntegerConvolution.isSupported(type), withSquares);
+	}
+	
+	/**
+	 * @return true if the tables are accumulated exactly in long integers
+	 */
+	public boolean isExact()
+	{
+		return longSums != null;
+	}
+	
+	/**
+	 * Computes the sum of the values within a box (the bounds must be within the stack)
+	 * 
+	 * @param x0
+	 *            the first column of the box
+	 * @param y0
+	 *            the first row of the box
+	 * @param z0
+	 *            the first slice of the box
+	 * @param x1
+	 *            the column after the last column of the box
+	 * @param y1
+	 *            the row after the last row of the box
+	 * @param z1
+	 *            the slice after the last slice of the box
+	 * @return the sum of the values
+	 */
+	public double sum(int x0, int y0, int z0, int x1, int y1, int z1)
+	{
+		if (longSums != null) return boxSum(longSums, x0, y0, z0, x1, y1, z1);
+		
+		return boxSum(sums, x0, y0, z0, x1, y1, z1);
+	}
+	
+	/**
+	 * Computes the sum of the squared values within a box (the bounds must be within the stack)
+	 * 
+	 * @param x0
+	 *            the first column of the box
+	 * @param y0
+	 *            the first row of the box
+	 * @param z0
+	 *            the first slice of the box
+	 * @param x1
+	 *            the column after the last column of the box
+	 * @param y1
+	 *            the row after the last row of the box
+	 * @param z1
+	 *            the slice after the last slice of the box
+	 * @return the sum of the squared values
+	 * @throws IllegalStateException
+	 *             if the table of squared values was not created
+	 */
+	public double sumOfSquares(int x0, int y0, int z0, int x1, int y1, int z1) throws IllegalStateException
+	{
+		if (longSums != null)
+		{
+			if (longSquares == null) throw new IllegalStateException("The table of squared values was not created");
+			return boxSum(longSquares, x0, y0, z0, x1, y1, z1);
+		}
+		
+		if (squares == null) throw new IllegalStateException("The table of squared values was not created");
+		return boxSum(squares, x0, y0, z0, x1, y1, z1);
+	}
+	
+	private long boxSum(long[][] table, int x0, int y0, int z0, int x1, int y1, int z1)
+	{
+		int i00 = y0 * rowLength + x0, i01 = y0 * rowLength + x1;
+		int i10 = y1 * rowLength + x0, i11 = y1 * rowLength + x1;
+		
+		long[] front = table[z0], back = table[z1];
+		
+		return (back[i11] - back[i01] - back[i10] + back[i00]) - (front[i11] - front[i01] - front[i10] + front[i00]);
+	}
+	
+	private double boxSum(double[][] table, int x0, int y0, int z0, int x1, int y1, int z1)
+	{
+		int i00 = y0 * rowLength + x0, i01 = y0 * rowLength + x1;
+		int i10 = y1 * rowLength + x0, i11 = y1 * rowLength + x1;
+		
+		double[] front = table[z0], back = table[z1];
+		
+		return (back[i11] - back[i01] - back[i10] + back[i00]) - (front[i11] - front[i01] - front[i10] + front[i00]);
+	}
+	
+	/**
+	 * Computes the given statistic of the values within the box of the given radius centered on
+	 * each voxel, and writes the result into the output sequence (out-of-place). Boxes are clipped
+	 * to the sequence bounds, i.e. statistics near the edges are computed over the voxels inside
+	 * the sequence only. The cost per voxel does not depend on the radius
+	 * 
+	 * @param input
+	 *            the input sequence (unchanged)
+	 * @param output
+	 *            the output sequence, with the same dimensions as the input (see
+	 *            {@link Convolution#createOutput(Sequence, DataType)}), ideally of type
+	 *            {@link DataType#FLOAT} or {@link DataType#DOUBLE}. Can be the input itself
+	 * @param radiusX
+	 *            the box half-width (the box width is 2 * radiusX + 1)
+	 * @param radiusY
+	 *            the box half-height
+	 * @param radiusZ
+	 *            the box half-depth
+	 * @param statistic
+	 *            the statistic to compute
+	 * @param stopFlag
+	 *            a flag that stops the process when set to true
+	 */
+	public static void filter(Sequence input, Sequence output, int radiusX, int radiusY, int radiusZ, Statistic statistic, VarBoolean stopFlag)
+	{
+		int width = input.getSizeX();
+		int height = input.getSizeY();
+		int depth = input.getSizeZ();
+		
+		boolean withSquares = statistic == Statistic.VARIANCE || statistic == Statistic.STANDARD_DEVIATION;
+		
+		OutputBounds bounds = new OutputBounds(output);
+		double[] _outXY = new double[width * height];
+		
+		output.beginUpdate();
+		
+		try
+		{
+			for (int t = 0; t < input.getSizeT(); t++)
+				for (int c = 0; c < input.getSizeC(); c++)
+				{
+					// the tables hold the entire input stack, hence the output can be the input
+					IntegralImage table = create(input, t, c, withSquares);
+					
+					for (int z = 0; z < depth; z++)
+					{
+						int z0 = Math.max(0, z - radiusZ), z1 = Math.min(depth, z + radiusZ + 1);
+						
+						for (int y = 0, xy = 0; y < height; y++)
+						{
+							int y0 = Math.max(0, y - radiusY), y1 = Math.min(height, y + radiusY + 1);
+							
+							for (int x = 0; x < width; x++, xy++)
+							{
+								int x0 = Math.max(0, x - radiusX), x1 = Math.min(width, x + radiusX + 1);
+								
+								double sum = table.sum(x0, y0, z0, x1, y1, z1);
+								
+								if (statistic == Statistic.SUM)
+								{
+									_outXY[xy] = sum;
+									continue;
+								}
+								
+								double n = (double) (x1 - x0) * (y1 - y0) * (z1 - z0);
+								double mean = sum / n;
+								
+								if (statistic == Statistic.MEAN)
+								{
+									_outXY[xy] = mean;
+									continue;
+								}
+								
+								double variance;
+								long nbVoxels = (long) n;
+								long longSquares = table.isExact() ? table.boxSum(table.longSquares, x0, y0, z0, x1, y1, z1) : 0;
+								
+								if (table.isExact() && longSquares <= Long.MAX_VALUE / nbVoxels)
+								{
+									// exact numerator (0 <= n.sumSq - sum^2 <= n.sumSq), divided once
+									long longSum = table.boxSum(table.longSums, x0, y0, z0, x1, y1, z1);
+									variance = (nbVoxels * longSquares - longSum * longSum) / (n * n);
+								}
+								else
+								{
+									// rounding errors may produce slightly negative variances
+									variance = Math.max(0, table.sumOfSquares(x0, y0, z0, x1, y1, z1) / n - mean * mean);
+								}
+								
+								_outXY[xy] = statistic == Statistic.VARIANCE ? variance : Math.sqrt(variance);
+							}
+						}
+						
+						bounds.write(_outXY, output, t, z, c);
+					}
+					
+					if (stopFlag.getValue()) return;
+				}
+		}
+		finally
+		{
+			output.endUpdate();
+			bounds.apply(output);
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package plugins.adufour.filtering;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+/**
+ * Immutable (and therefore thread-safe) 1D kernel. <br>
+ * Instances are obtained from the static factory methods, which share prepared instances through
+ * the {@link KernelCache}. Contrary to {@link Kernels1D}, creating a kernel never modifies a
+ * shared object, hence several filters may be built and run concurrently.
+ * 
+ */
+public final class Kernel1D implements IKernel
+{
+	/** Gradient */
+	public static final Kernel1D	GRADIENT	= new Kernel1D(Kernels1D.GRADIENT.toString(), new double[] { -0.5, 0, 0.5 });
+	
+	private final String			name;
+	
+	private final double[]			data;
+	
+	private Kernel1D(String name, double[] data)
+	{
+		this.name = name;
+		this.data = data;
+	}
+	
+	/**
+	 * Creates (or retrieves from the cache) a 1D Gaussian kernel with given standard deviation
+	 * (kernel size is automatically computed to fit three standard deviations away from the mean)
+	 * 
+	 * @param sigma
+	 *            the standard deviation of the gaussian
+	 * @return the kernel
+	 */
+	public static Kernel1D gaussian(double sigma)
+	{
+		return gaussianDerivative(sigma, 0);
+	}
+	
+	/**
+	 * Creates (or retrieves from the cache) a 1D Gaussian derivative kernel of given order. The
+	 * kernel is normalized such that it returns the exact derivative of a polynomial of the same
+	 * order
+	 * 
+	 * @param sigma
+	 *            the standard deviation of the gaussian
+	 * @param order
+	 *            the derivative order (0: smoothing, 1: first derivative, 2: second derivative)
+	 * @return the kernel
+	 * @throws IllegalArgumentException
+	 *             if the order is not 0, 1 or 2
+	 */
+	public static Kernel1D gaussianDerivative(double sigma, int order) throws IllegalArgumentException
+	{
+		if (order < 0 || order > 2)
+			throw new IllegalArgumentException("Invalid argument: derivative order must be 0, 1 or 2");
+		
+		if (sigma < 1.0e-10) sigma = 0;
+		
+		String key = "gaussian " + order + " " + sigma;
+		
+		Kernel1D kernel = (Kernel1D) KernelCache.get(key);
+		
+		if (kernel == null)
+		{
+			kernel = new Kernel1D(Kernels1D.CUSTOM_GAUSSIAN.toString(), computeGaussianDerivative(sigma, order));
+			kernel = (Kernel1D) KernelCache.put(key, kernel);
+		}
+		
+		return kernel;
+	}
+	
+	/**
+	 * Creates (or retrieves from the cache) a kernel with user-defined values
+	 * 
+	 * @param values
+	 *            the kernel values (the array is copied)
+	 * @param isNormalized
+	 *            true if the given values are already normalized to [0-1]
+	 * @return the kernel
+	 */
+	public static Kernel1D custom(double[] values, boolean isNormalized)
+	{
+		StringBuilder key = new StringBuilder("custom ").append(isNormalized);
+		for (double value : values)
+			key.append(' ').append(value);
+		
+		Kernel1D kernel = (Kernel1D) KernelCache.get(key.toString());
+		
+		if (kernel == null)
+		{
+			double[] data = values.clone();
+			if (!isNormalized) Kernels1D.normalize(data);
+			
+			kernel = new Kernel1D(Kernels1D.CUSTOM.toString(), data);
+			kernel = (Kernel1D) KernelCache.put(key.toString(), kernel);
+		}
+		
+		return kernel;
+	}
+	
+	private static double[] computeGaussianDerivative(double sigma, int order)
+	{
+		if (sigma == 0)
+		{
+			switch (order)
+			{
+				case 0:
+					return new double[] { 1 };
+				case 1:
+					return new double[] { -0.5, 0, 0.5 };
+				default:
+					return new double[] { 1, -2, 1 };
+			}
+		}
+		
+		double sigma2 = sigma * sigma;
+		int k = (int) Math.ceil(sigma * 3.0f) + order;
+		
+		double[] data = new double[2 * k + 1];
+		
+		for (int i = -k; i <= k; i++)
+		{
+			double g = Math.exp(-0.5 * i * i / sigma2);
+			
+			switch (order)
+			{
+				case 0:
+					data[i + k] = g;
+				break;
+				case 1:
+					data[i + k] = i * g / sigma2;
+				break;
+				case 2:
+					data[i + k] = (i * i / sigma2 - 1.0) * g / sigma2;
+				break;
+			}
+		}
+		
+		if (order == 0)
+			return Kernels1D.normalize(data);
+		
+		if (order == 2)
+		{
+			// remove the (truncation-induced) DC component
+			double mean = 0;
+			for (double d : data)
+				mean += d;
+			mean /= data.length;
+			for (int i = 0; i < data.length; i++)
+				data[i] -= mean;
+		}
+		
+		// normalize the kernel moment such that x^order / order! has a unit response
+		double moment = 0;
+		for (int i = -k; i <= k; i++)
+			moment += (order == 1 ? i : i * i * 0.5) * data[i + k];
+		
+		for (int i = 0; i < data.length; i++)
+			data[i] /= moment;
+		
+		return data;
+	}
+	
+	/**
+	 * @return the kernel size (always odd)
+	 */
+	public int getSize()
+	{
+		return data.length;
+	}
+	
+	/**
+	 * @return the kernel radius, i.e. (size - 1) / 2
+	 */
+	public int getRadius()
+	{
+		return data.length >> 1;
+	}
+	
+	@Override
+	public Sequence toSequence()
+	{
+		IcyBufferedImage kernelImage = new IcyBufferedImage(data.length, 1, 1, DataType.DOUBLE);
+		kernelImage.setDataXYAsDouble(0, data);
+		Sequence kernel = new Sequence(kernelImage);
+		kernel.setName(name);
+		return kernel;
+	}
+	
+	/**
+	 * Returns a copy of the internal data of this kernel (the kernel itself cannot be modified)
+	 */
+	@Override
+	public double[] getData()
+	{
+		return data.clone();
+	}
+	
+	/**
+	 * Internal (unsafe) access to the kernel data for the convolution engines. The returned array
+	 * must not be modified
+	 */
+	double[] data()
+	{
+		return data;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
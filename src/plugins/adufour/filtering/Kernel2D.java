@@ -0,0 +1,186 @@
+package plugins.adufour.filtering;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+/**
+ * Immutable (and therefore thread-safe) 2D kernel. <br>
+ * Instances are obtained from the static factory methods, which share prepared instances through
+ * the {@link KernelCache}. Contrary to {@link Kernels2D}, creating a kernel never modifies a
+ * shared object, hence several filters may be built and run concurrently.
+ * 
+ */
+public final class Kernel2D implements IKernel
+{
+	private final String	name;
+	
+	private final int		width;
+	
+	private final int		height;
+	
+	private final double[]	data;
+	
+	private Kernel2D(String name, int width, int height, double[] data)
+	{
+		this.name = name;
+		this.width = width;
+		this.height = height;
+		this.data = data;
+	}
+	
+	/**
+	 * Retrieves the immutable version of a built-in kernel
+	 * 
+	 * @param kernel
+	 *            a built-in kernel (custom kernels are not supported)
+	 * @return the kernel
+	 * @throws IllegalArgumentException
+	 *             if the kernel is {@link Kernels2D#CUSTOM} or {@link Kernels2D#CUSTOM_GABOR}
+	 */
+	public static Kernel2D valueOf(Kernels2D kernel) throws IllegalArgumentException
+	{
+		if (kernel == Kernels2D.CUSTOM || kernel == Kernels2D.CUSTOM_GABOR)
+			throw new IllegalArgumentException("Invalid argument: " + kernel + " has no predefined values");
+		
+		String key = "builtin " + kernel.name();
+		
+		Kernel2D k2d = (Kernel2D) KernelCache.get(key);
+		
+		if (k2d == null)
+		{
+			// built-in kernels are never modified, their data is safe to read
+			k2d = new Kernel2D(kernel.toString(), kernel.getWidth(), kernel.getHeight(), kernel.getData().clone());
+			k2d = (Kernel2D) KernelCache.put(key, k2d);
+		}
+		
+		return k2d;
+	}
+	
+	/**
+	 * Creates (or retrieves from the cache) an isotropic 2D Gabor kernel
+	 * 
+	 * @param sigma
+	 *            Gaussian std (final kernel diameter is 2 * (3*sigma) + 1)
+	 * @param k_x
+	 *            gabor radius along X
+	 * @param k_y
+	 *            gabor radius along Y
+	 * @param isSymmetric
+	 *            true if the values are symmetric (cosine), anti-symmetric (sine) otherwise
+	 * @return the kernel
+	 */
+	public static Kernel2D gabor(double sigma, double k_x, double k_y, boolean isSymmetric)
+	{
+		String key = "gabor " + sigma + " " + k_x + " " + k_y + " " + isSymmetric;
+		
+		Kernel2D kernel = (Kernel2D) KernelCache.get(key);
+		
+		if (kernel == null)
+		{
+			int k = (int) Math.floor(sigma * 3.0);
+			int size = 2 * k + 1;
+			
+			double[] data = new double[size * size];
+			
+			for (int i = -k; i <= k; i++)
+				for (int j = -k; j <= k; j++)
+				{
+					double phase = k_x * i + k_y * j;
+					double envelope = Math.exp(-0.5f * (i * i + j * j) / (sigma * sigma));
+					data[(i + k) + (j + k) * size] = (isSymmetric ? Math.cos(phase) : Math.sin(phase)) * envelope;
+				}
+			
+			Kernels1D.normalize(data);
+			
+			kernel = new Kernel2D(Kernels2D.CUSTOM_GABOR.toString(), size, size, data);
+			kernel = (Kernel2D) KernelCache.put(key, kernel);
+		}
+		
+		return kernel;
+	}
+	
+	/**
+	 * Creates (or retrieves from the cache) a kernel with user-defined values
+	 * 
+	 * @param values
+	 *            the kernel values in XY order (the array is copied)
+	 * @param width
+	 *            the kernel width
+	 * @param height
+	 *            the kernel height
+	 * @param isNormalized
+	 *            true if the given values are already normalized to [0-1]
+	 * @return the kernel
+	 */
+	public static Kernel2D custom(double[] values, int width, int height, boolean isNormalized)
+	{
+		StringBuilder key = new StringBuilder("custom ").append(width).append('x').append(height).append(' ').append(isNormalized);
+		for (double value : values)
+			key.append(' ').append(value);
+		
+		Kernel2D kernel = (Kernel2D) KernelCache.get(key.toString());
+		
+		if (kernel == null)
+		{
+			double[] data = new double[width * height];
+			System.arraycopy(values, 0, data, 0, Math.min(values.length, data.length));
+			if (!isNormalized) Kernels1D.normalize(data);
+			
+			kernel = new Kernel2D(Kernels2D.CUSTOM.toString(), width, height, data);
+			kernel = (Kernel2D) KernelCache.put(key.toString(), kernel);
+		}
+		
+		return kernel;
+	}
+	
+	/**
+	 * @return the kernel width
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	/**
+	 * @return the kernel height
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+	
+	@Override
+	public Sequence toSequence()
+	{
+		IcyBufferedImage kernelImage = new IcyBufferedImage(width, height, 1, DataType.DOUBLE);
+		kernelImage.setDataXYAsDouble(0, data);
+		Sequence kernel = new Sequence(kernelImage);
+		kernel.setName(name);
+		return kernel;
+	}
+	
+	/**
+	 * Returns a copy of the internal data of this kernel (the kernel itself cannot be modified)
+	 */
+	@Override
+	public double[] getData()
+	{
+		return data.clone();
+	}
+	
+	/**
+	 * Internal (unsafe) access to the kernel data for the convolution engines. The returned array
+	 * must not be modified
+	 */
+	double[] data()
+	{
+		return data;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
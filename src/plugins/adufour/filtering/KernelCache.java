@@ -0,0 +1,75 @@
+package plugins.adufour.filtering;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, thread-safe LRU cache of immutable kernels ({@link Kernel1D}, {@link Kernel2D}), keyed
+ * by kernel type and parameters. Repeated requests for the same kernel return the same (already
+ * prepared) instance.
+ * 
+ */
+public class KernelCache
+{
+	/**
+	 * Maximum number of kernels kept in the cache
+	 */
+	public static final int							MAX_SIZE	= 64;
+	
+	private static final Map<String, IKernel>	cache		= new LinkedHashMap<String, IKernel>(MAX_SIZE, 0.75f, true)
+																{
+																	private static final long	serialVersionUID	= 1L;
+																	
+																	@Override
+																	protected boolean removeEldestEntry(Map.Entry<String, IKernel> eldest)
+																	{
+																		return size() > MAX_SIZE;
+																	}
+																};
+	
+	/**
+	 * @param key
+	 *            the kernel key (type and parameters)
+	 * @return the cached kernel, or null if the key is not in the cache
+	 */
+	static synchronized IKernel get(String key)
+	{
+		return cache.get(key);
+	}
+	
+	/**
+	 * Stores the given kernel in the cache, unless another thread has already stored a kernel with
+	 * the same key
+	 * 
+	 * @param key
+	 *            the kernel key (type and parameters)
+	 * @param kernel
+	 *            the kernel to store
+	 * @return the cached kernel (i.e. the given kernel, or the one already in the cache)
+	 */
+	static synchronized IKernel put(String key, IKernel kernel)
+	{
+		IKernel cached = cache.get(key);
+		
+		if (cached != null) return cached;
+		
+		cache.put(key, kernel);
+		return kernel;
+	}
+	
+	/**
+	 * Removes all the kernels from the cache
+	 */
+	public static synchronized void clear()
+	{
+		cache.clear();
+	}
+	
+	/**
+	 * @return the number of kernels currently in the cache
+	 */
+	public static synchronized int size()
+	{
+		return cache.size();
+	}
+}
@@ -0,0 +1,271 @@
+package plugins.adufour.filtering;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+import plugins.adufour.vars.lang.VarBoolean;
+
+/**
+ * Composition of chained linear filters. <br>
+ * Convolving by several kernels in a row is equivalent to convolving once by their composition
+ * (the convolution of the kernels with each other), hence a chain of N filters (e.g. a Gaussian,
+ * then a Laplacian, then a gradient) can be applied in a single sweep over the data instead of N
+ * sweeps, each with its own copy and conversion. If the composed kernel is separable (i.e. the
+ * product of a kernel along X, a kernel along Y and a kernel along Z, as is the case when all
+ * kernels of the chain are separable), it is factorized and applied by the separable engine.
+ * <br>
+ * Note: the composed filter is strictly equivalent to the chain away from the edges. Within half
+ * the composed kernel size of the edges, the chain treats the data outside of the sequence at
+ * every step (after each intermediate result), whereas the composed filter treats it only once,
+ * hence results may differ slightly there (except with zero edges when no kernel is truncated).
+ * 
+ */
+public class KernelComposition
+{
+	/**
+	 * Maximum relative error (with respect to the largest absolute kernel value) accepted when
+	 * factorizing a kernel into separable factors
+	 */
+	public static final double	SEPARABILITY_TOLERANCE	= 1e-12;
+	
+	/**
+	 * Composes the given kernels into a single equivalent kernel
+	 * 
+	 * @param kernels
+	 *            the kernels to compose, in the order they would be applied (1D kernels are
+	 *            oriented along X)
+	 * @return the composed kernel (the size along each axis is the sum of the kernel sizes minus
+	 *         the number of kernels plus one)
+	 * @throws IllegalArgumentException
+	 *             if no kernel is given
+	 */
+	public static Sequence compose(IKernel... kernels) throws IllegalArgumentException
+	{
+		Sequence[] sequences = new Sequence[kernels.length];
+		
+		for (int i = 0; i < kernels.length; i++)
+			sequences[i] = kernels[i].toSequence();
+		
+		return compose(sequences);
+	}
+	
+	/**
+	 * Composes the given kernels into a single equivalent kernel. If a kernel has more than one
+	 * channel or time point, only the first c,t are used
+	 * 
+	 * @param kernels
+	 *            the kernels (1D, 2D or 3D) to compose, in the order they would be applied
+	 * @return the composed kernel (the size along each axis is the sum of the kernel sizes minus
+	 *         the number of kernels plus one)
+	 * @throws IllegalArgumentException
+	 *             if no kernel is given, or if a kernel has an even size
+	 */
+	public static Sequence compose(Sequence... kernels) throws IllegalArgumentException
+	{
+		if (kernels.length == 0) throw new IllegalArgumentException("Invalid argument: provide at least one kernel");
+		
+		double[][] composed = null;
+		int width = 0, height = 0;
+		StringBuilder name = new StringBuilder();
+		
+		for (Sequence kernel : kernels)
+		{
+			int kWidth = kernel.getSizeX(), kHeight = kernel.getSizeY(), kDepth = kernel.getSizeZ();
+			
+			if (kWidth % 2 == 0 || kHeight % 2 == 0 || kDepth % 2 == 0)
+				throw new IllegalArgumentException("Invalid argument: kernels must have odd size");
+			
+			double[][] data = kernel.getDataXYZAsDouble(0, 0);
+			
+			if (composed == null)
+			{
+				composed = new double[kDepth][];
+				for (int z = 0; z < kDepth; z++)
+					composed[z] = data[z].clone();
+				
+				width = kWidth;
+				height = kHeight;
+				name.append(kernel.getName());
+				continue;
+			}
+			
+			composed = convolveFull(composed, width, height, data, kWidth, kHeight);
+			width += kWidth - 1;
+			height += kHeight - 1;
+			name.append(" * ").append(kernel.getName());
+		}
+		
+		Sequence result = new Sequence();
+		
+		for (int z = 0; z < composed.length; z++)
+		{
+			IcyBufferedImage plane = new IcyBufferedImage(width, height, 1, DataType.DOUBLE);
+			plane.setDataXYAsDouble(0, composed[z]);
+			result.setImage(0, z, plane);
+		}
+		
+		result.setName(name.toString());
+		return result;
+	}
+	
+	/**
+	 * Computes the full convolution of two kernels, i.e. over all the offsets where they overlap
+	 */
+	private static double[][] convolveFull(double[][] a, int aWidth, int aHeight, double[][] b, int bWidth, int bHeight)
+	{
+		int width = aWidth + bWidth - 1;
+		int height = aHeight + bHeight - 1;
+		
+		double[][] result = new double[a.length + b.length - 1][width * height];
+		
+		for (int az = 0; az < a.length; az++)
+			for (int axy = 0; axy < a[az].length; axy++)
+			{
+				double aValue = a[az][axy];
+				
+				// kernels are often sparse (e.g. gradients, Laplacians)
+				if (aValue == 0) continue;
+				
+				int ax = axy % aWidth, ay = axy / aWidth;
+				
+				for (int bz = 0; bz < b.length; bz++)
+				{
+					double[] bPlane = b[bz], out = result[az + bz];
+					
+					for (int by = 0, bxy = 0; by < bHeight; by++)
+					{
+						int offset = (ay + by) * width + ax;
+						
+						for (int bx = 0; bx < bWidth; bx++, bxy++)
+							out[offset + bx] += aValue * bPlane[bxy];
+					}
+				}
+			}
+		
+		return result;
+	}
+	
+	/**
+	 * Factorizes the given kernel into a product of 1D kernels along X, Y and Z (a kernel is
+	 * separable if and only if it is the outer product of its row, column and line through its
+	 * largest value, up to a scaling factor)
+	 * 
+	 * @param kernel
+	 *            the kernel (1D, 2D or 3D) to factorize
+	 * @param tolerance
+	 *            the maximum error of the factorization, relative to the largest absolute value of
+	 *            the kernel
+	 * @return an array containing the kernels along X, Y and Z (each kernel is null if the kernel
+	 *         has a size of 1 along the corresponding axis, and at least one kernel is not null),
+	 *         or null if the kernel is not separable
+	 */
+	public static double[][] separate(Sequence kernel, double tolerance)
+	{
+		int width = kernel.getSizeX(), height = kernel.getSizeY();
+		double[][] data = kernel.getDataXYZAsDouble(0, 0);
+		
+		// pivot: the largest absolute value
+		int pivotX = 0, pivotY = 0, pivotZ = 0;
+		double pivot = 0;
+		
+		for (int z = 0; z < data.length; z++)
+			for (int xy = 0; xy < data[z].length; xy++)
+				if (Math.abs(data[z][xy]) > Math.abs(pivot))
+				{
+					pivot = data[z][xy];
+					pivotX = xy % width;
+					pivotY = xy / width;
+					pivotZ = z;
+				}
+		
+		if (pivot == 0) return null;
+		
+		double[] kX = new double[width];
+		double[] kY = new double[height];
+		double[] kZ = new double[data.length];
+		
+		// K(x, y, z) = K(x, py, pz) * K(px, y, pz) * K(px, py, z) / pivot^2
+		for (int x = 0; x < width; x++)
+			kX[x] = data[pivotZ][pivotY * width + x] / pivot;
+		for (int y = 0; y < height; y++)
+			kY[y] = data[pivotZ][y * width + pivotX];
+		for (int z = 0; z < data.length; z++)
+			kZ[z] = data[z][pivotY * width + pivotX] / pivot;
+		
+		double maxError = tolerance * Math.abs(pivot);
+		
+		for (int z = 0; z < data.length; z++)
+			for (int y = 0, xy = 0; y < height; y++)
+			{
+				double kYZ = kY[y] * kZ[z];
+				
+				for (int x = 0; x < width; x++, xy++)
+					if (Math.abs(data[z][xy] - kX[x] * kYZ) > maxError) return null;
+			}
+		
+		// drop the factors of size 1, and move their (scalar) value into the remaining factors
+		double scalar = 1;
+		double[][] factors = { kX, kY, kZ };
+		
+		for (int i = 0; i < factors.length; i++)
+			if (factors[i].length == 1)
+			{
+				scalar *= factors[i][0];
+				factors[i] = null;
+			}
+		
+		// a 1x1x1 kernel is a scaling along X
+		if (factors[0] == null && factors[1] == null && factors[2] == null)
+		{
+			factors[0] = new double[] { scalar };
+		}
+		else if (scalar != 1)
+		{
+			double[] factor = factors[0] != null ? factors[0] : factors[1] != null ? factors[1] : factors[2];
+			for (int i = 0; i < factor.length; i++)
+				factor[i] *= scalar;
+		}
+		
+		return factors;
+	}
+	
+	/**
+	 * Applies the given chain of kernels in a single pass (see {@link #compose(IKernel...)}), and
+	 * writes the result into the output sequence (out-of-place). If the composed kernel is
+	 * separable, it is applied by
+	 * {@link Convolution1D#convolve(Sequence, Sequence, double[], double[], double[], boolean, int, VarBoolean)}
+	 * , otherwise by
+	 * {@link Convolution#convolve(Sequence, Sequence, Sequence, boolean, int, VarBoolean)}
+	 * 
+	 * @param input
+	 *            the input sequence (unchanged)
+	 * @param output
+	 *            the output sequence, with the same dimensions as the input (see
+	 *            {@link Convolution#createOutput(Sequence, DataType)}). Can be the input itself
+	 * @param kernels
+	 *            the kernels to apply, in order
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param stopFlag
+	 *            a flag that stops the process when set to true
+	 * @throws IllegalArgumentException
+	 *             if no kernel is given
+	 */
+	public static void convolve(Sequence input, Sequence output, IKernel[] kernels, boolean zeroEdges, VarBoolean stopFlag) throws IllegalArgumentException
+	{
+		Sequence composed = compose(kernels);
+		
+		double[][] factors = separate(composed, SEPARABILITY_TOLERANCE);
+		
+		if (factors != null)
+		{
+			Convolution1D.convolve(input, output, factors[0], factors[1], factors[2], zeroEdges, 1, stopFlag);
+		}
+		else
+		{
+			Convolution.convolve(input, output, composed, zeroEdges, 1, stopFlag);
+		}
+	}
+}
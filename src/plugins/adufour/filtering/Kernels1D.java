@@ -57,42 +57,45 @@ public enum Kernels1D implements IKernel
 	 * @param sigma
 	 *            the standard deviation of the gaussian
 	 * @return the kernel as a sequence, or null if sigma is 0
+	 * @see Kernel1D#gaussian(double) for a thread-safe alternative (this method modifies a shared
+	 *      enumeration constant)
 	 */
 	public Kernels1D createGaussianKernel1D(double sigma)
 	{
-		if (sigma < 1.0e-10)
-		{
-			this.data = new double[] { 1 };
-			return this;
-		}
-		
-		double sigma2 = sigma * sigma;
-		int k = (int) Math.ceil(sigma * 3.0f);
-		
-		int width = 2 * k + 1;
-		
-		this.data = new double[width];
-		
-		for (int i = -k; i <= k; i++)
-			data[i + k] = 1.0 / (Math.sqrt(2 * Math.PI) * sigma * Math.exp(((i * i) / sigma2) * 0.5f));
-		
-		normalize(data);
+		this.data = Kernel1D.gaussian(sigma).getData();
 		return this;
 	}
 	
+	/**
+	 * Creates a 1D Gaussian derivative kernel of given order (useful for separable differential
+	 * operators such as gradients or Hessians). The kernel is normalized such that it returns the
+	 * exact derivative of a polynomial of the same order
+	 * 
+	 * @param sigma
+	 *            the standard deviation of the gaussian
+	 * @param order
+	 *            the derivative order (0: smoothing, 1: first derivative, 2: second derivative)
+	 * @return the kernel values
+	 * @throws IllegalArgumentException
+	 *             if the order is not 0, 1 or 2
+	 */
+	public static double[] createGaussianDerivativeKernel1D(double sigma, int order) throws IllegalArgumentException
+	{
+		return Kernel1D.gaussianDerivative(sigma, order).getData();
+	}
+	
 	/**
 	 * Sets the kernel values
 	 * 
 	 * @param data
 	 * @param isNormalized
 	 *            true if the given values are already normalized to [0-1]
+	 * @see Kernel1D#custom(double[], boolean) for a thread-safe alternative (this method modifies a
+	 *      shared enumeration constant)
 	 */
 	public Kernels1D createCustomKernel1D(double data[], boolean isNormalized)
 	{
-		this.data = new double[data.length];
-		System.arraycopy(data, 0, this.data, 0, data.length);
-		if (!isNormalized)
-			normalize(this.data);
+		this.data = Kernel1D.custom(data, isNormalized).getData();
 		return this;
 	}
 	
@@ -103,7 +106,7 @@ public enum Kernels1D implements IKernel
 	 *            the kernel data in Z-XY order
 	 * @return
 	 */
-	private static double[] normalize(double[] data)
+	static double[] normalize(double[] data)
 	{
 		double accu = 0;
 		
@@ -84,29 +84,16 @@ public enum Kernels2D implements IKernel
 	 * @param isSymmetric
 	 *            true if the values are symmetric (cosine), anti-symmetric (sine) otherwise
 	 * @return
+	 * @see Kernel2D#gabor(double, double, double, boolean) for a thread-safe alternative (this
+	 *      method modifies a shared enumeration constant)
 	 */
 	public Kernels2D createGaborKernel2D(double sigma, double k_x, double k_y, boolean isSymmetric)
 	{
-		int k = (int) Math.floor(sigma * 3.0);
+		Kernel2D kernel = Kernel2D.gabor(sigma, k_x, k_y, isSymmetric);
 		
-		this.width = 2 * k + 1;
-		this.height = 2 * k + 1;
-		this.data = new double[width * height];
-		
-		if (isSymmetric)
-		{
-			for (int i = -k; i <= k; i++)
-				for (int j = -k; j <= k; j++)
-					data[(i + k) + (j + k) * width] = (double) (Math.cos(k_x * i + k_y * j) * Math.exp(-0.5f * (i * i + j * j) / (sigma * sigma)));
-		}
-		else
-		{
-			for (int i = -k; i <= k; i++)
-				for (int j = -k; j <= k; j++)
-					data[(i + k) + (j + k) * width] = (double) (Math.sin(k_x * i + k_y * j) * Math.exp(-0.5f * (i * i + j * j) / (sigma * sigma)));
-		}
-		
-		normalize(data);
+		this.width = kernel.getWidth();
+		this.height = kernel.getHeight();
+		this.data = kernel.getData();
 		
 		return this;
 	}
@@ -145,10 +132,7 @@ public enum Kernels2D implements IKernel
 	{
 		this.width = width;
 		this.height = height;
-		this.data = new double[width * height];
-		System.arraycopy(kernel, 0, this.data, 0, kernel.length);
-		if (!isNormalized)
-			normalize(this.data);
+		this.data = Kernel2D.custom(kernel, width, height, isNormalized).getData();
 		return this;
 	}
 	
@@ -190,4 +174,20 @@ public enum Kernels2D implements IKernel
 		return data;
 	}
 	
+	/**
+	 * @return the kernel width
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	/**
+	 * @return the kernel height
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+	
 }
@@ -0,0 +1,349 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+
+import java.util.Arrays;
+
+import plugins.adufour.filtering.FilterToolbox.Axis;
+import plugins.adufour.vars.lang.VarBoolean;
+
+/**
+ * Grey-level morphology with box-shaped structuring elements. <br>
+ * Boxes are separable, hence erosions (minimum filters) and dilations (maximum filters) are
+ * computed as successive passes along X, Y and Z, following the structure of
+ * {@link Convolution1D#convolve1D(double[][], double[][], int, int, int, double[], Axis, boolean)}.
+ * Each pass uses the algorithm of van Herk and Gil-Werman: the line is split into blocks of the
+ * window length, and the extremum of any window is obtained from a prefix extremum and a suffix
+ * extremum of two consecutive blocks, i.e. about 3 comparisons per voxel whatever the window
+ * length. <br>
+ * Structuring elements are clipped to the image bounds (i.e. data outside the image is ignored).
+ * 
+ */
+public class Morphology
+{
+	public enum Operation
+	{
+		EROSION, DILATION, OPENING, CLOSING, WHITE_TOP_HAT, BLACK_TOP_HAT
+	}
+	
+	/**
+	 * Maximum number of values per position processed at once along Y and Z
+	 */
+	private static final int	CHUNK_SIZE		= 4096;
+	
+	/**
+	 * Maximum number of values of each temporary buffer along Y and Z (i.e. 8MB), such that the
+	 * chunks get narrower as the lines get longer
+	 */
+	private static final int	SCRATCH_SIZE	= 1 << 20;
+	
+	/**
+	 * Applies the given morphological operation with a box-shaped structuring element of the given
+	 * radii, and writes the result into the output sequence (out-of-place)
+	 * 
+	 * @param input
+	 *            the input sequence (unchanged)
+	 * @param output
+	 *            the output sequence, with the same dimensions as the input (see
+	 *            {@link Convolution#createOutput(Sequence, DataType)}). Can be the input itself
+	 * @param radiusX
+	 *            the half-width of the structuring element (its width is 2 * radiusX + 1)
+	 * @param radiusY
+	 *            the half-height of the structuring element
+	 * @param radiusZ
+	 *            the half-depth of the structuring element
+	 * @param operation
+	 *            the operation to apply
+	 * @param stopFlag
+	 *            a flag that stops the process when set to true
+	 */
+	public static void filter(Sequence input, Sequence output, int radiusX, int radiusY, int radiusZ, Operation operation, VarBoolean stopFlag)
+	{
+		int width = input.getSizeX();
+		int height = input.getSizeY();
+		boolean signed = input.getDataType_().isSigned();
+		
+		// channel bounds are collected while writing the result
+		OutputBounds bounds = new OutputBounds(output);
+		
+		output.beginUpdate();
+		
+		try
+		{
+			for (int t = 0; t < input.getSizeT(); t++)
+				for (int c = 0; c < input.getSizeC(); c++)
+				{
+					// copied, since the stack is filtered in-place
+					double[][] stack = new double[input.getSizeZ()][width * height];
+					for (int z = 0; z < stack.length; z++)
+						Array1DUtil.arrayToDoubleArray(input.getDataXY(t, z, c), stack[z], signed);
+					
+					apply(stack, width, height, radiusX, radiusY, radiusZ, operation);
+					
+					for (int z = 0; z < stack.length; z++)
+						bounds.write(stack[z], output, t, z, c);
+					
+					if (stopFlag.getValue()) return;
+				}
+		}
+		finally
+		{
+			output.endUpdate();
+			bounds.apply(output);
+		}
+	}
+	
+	/**
+	 * Applies the given morphological operation to a stack (in-place)
+	 * 
+	 * @param stack
+	 *            the stack, given as a [Z][XY] array
+	 * @param width
+	 *            the stack width
+	 * @param height
+	 *            the stack height
+	 * @param radiusX
+	 *            the half-width of the structuring element
+	 * @param radiusY
+	 *            the half-height of the structuring element
+	 * @param radiusZ
+	 *            the half-depth of the structuring element
+	 * @param operation
+	 *            the operation to apply
+	 */
+	public static void apply(double[][] stack, int width, int height, int radiusX, int radiusY, int radiusZ, Operation operation)
+	{
+		switch (operation)
+		{
+			case EROSION:
+				minMax(stack, width, height, radiusX, radiusY, radiusZ, false);
+			break;
+			
+			case DILATION:
+				minMax(stack, width, height, radiusX, radiusY, radiusZ, true);
+			break;
+			
+			case OPENING:
+				minMax(stack, width, height, radiusX, radiusY, radiusZ, false);
+				minMax(stack, width, height, radiusX, radiusY, radiusZ, true);
+			break;
+			
+			case CLOSING:
+				minMax(stack, width, height, radiusX, radiusY, radiusZ, true);
+				minMax(stack, width, height, radiusX, radiusY, radiusZ, false);
+			break;
+			
+			case WHITE_TOP_HAT:
+			case BLACK_TOP_HAT:
+			{
+				double[][] original = new double[stack.length][];
+				for (int z = 0; z < stack.length; z++)
+					original[z] = stack[z].clone();
+				
+				boolean white = operation == Operation.WHITE_TOP_HAT;
+				
+				// white: input - opening (bright details), black: closing - input (dark details)
+				minMax(stack, width, height, radiusX, radiusY, radiusZ, !white);
+				minMax(stack, width, height, radiusX, radiusY, radiusZ, white);
+				
+				for (int z = 0; z < stack.length; z++)
+				{
+					double[] slice = stack[z], in = original[z];
+					
+					for (int i = 0; i < slice.length; i++)
+						slice[i] = white ? in[i] - slice[i] : slice[i] - in[i];
+				}
+			}
+			break;
+		}
+	}
+	
+	private static void minMax(double[][] stack, int width, int height, int radiusX, int radiusY, int radiusZ, boolean max)
+	{
+		if (radiusX > 0) minMax1D(stack, stack, width, height, radiusX, Axis.X, max);
+		if (radiusY > 0) minMax1D(stack, stack, width, height, radiusY, Axis.Y, max);
+		if (radiusZ > 0 && stack.length > 1) minMax1D(stack, stack, width, height, radiusZ, Axis.Z, max);
+	}
+	
+	/**
+	 * Low-level 1D minimum or maximum filter (van Herk/Gil-Werman). <br>
+	 * Warning: this is a low-level method. No check is performed on the input arguments.
+	 * 
+	 * @param input
+	 *            the input data buffer, given as a [Z (slice)][XY (1D offset)] double array
+	 * @param output
+	 *            the output data buffer, given as a [Z (slice)][XY (1D offset)] double array (can
+	 *            be the input itself)
+	 * @param width
+	 *            the image width
+	 * @param height
+	 *            the image height
+	 * @param radius
+	 *            the half-length of the window (the window length is 2 * radius + 1)
+	 * @param axis
+	 *            the axis along which to filter
+	 * @param max
+	 *            true for a maximum filter (dilation), false for a minimum filter (erosion)
+	 */
+	public static void minMax1D(double[][] input, double[][] output, int width, int height, int radius, Axis axis, boolean max)
+	{
+		switch (axis)
+		{
+			case X:
+			{
+				double[] g = new double[paddedLength(width, radius)];
+				double[] h = new double[g.length];
+				
+				for (int z = 0; z < input.length; z++)
+					for (int lineOffset = 0; lineOffset < width * height; lineOffset += width)
+						minMaxLine(input[z], output[z], lineOffset, width, radius, max, g, h);
+			}
+			break;
+			
+			case Y:
+			{
+				// entire rows are processed at once
+				double[][] in = new double[height][], out = new double[height][];
+				int[] offsets = new int[height];
+				int padded = paddedLength(height, radius);
+				double[][] g = new double[padded][chunkSize(padded, width)];
+				double[][] h = new double[g.length][g[0].length];
+				
+				for (int z = 0; z < input.length; z++)
+				{
+					for (int y = 0; y < height; y++)
+					{
+						in[y] = input[z];
+						out[y] = output[z];
+						offsets[y] = y * width;
+					}
+					
+					minMaxVectors(in, out, offsets, width, radius, max, g, h);
+				}
+			}
+			break;
+			
+			case Z:
+			{
+				// entire slices are processed at once
+				int[] offsets = new int[input.length];
+				int padded = paddedLength(input.length, radius);
+				double[][] g = new double[padded][chunkSize(padded, width * height)];
+				double[][] h = new double[g.length][g[0].length];
+				
+				minMaxVectors(input, output, offsets, width * height, radius, max, g, h);
+			}
+			break;
+			
+			default:
+				throw new IllegalArgumentException("Invalid argument: cannot filter along " + axis);
+		}
+	}
+	
+	/**
+	 * @return the length of a line of n values padded by the radius on both sides, rounded up to a
+	 *         multiple of the window length
+	 */
+	private static int paddedLength(int n, int radius)
+	{
+		int k = 2 * radius + 1;
+		return (n + 2 * radius + k - 1) / k * k;
+	}
+	
+	/**
+	 * @return the number of values per position processed at once along a padded line of vectors
+	 *         of the given length, such that each temporary buffer holds at most
+	 *         {@link #SCRATCH_SIZE} values
+	 */
+	private static int chunkSize(int paddedLength, int length)
+	{
+		return Math.max(1, Math.min(Math.min(length, CHUNK_SIZE), SCRATCH_SIZE / paddedLength));
+	}
+	
+	/**
+	 * Filters a line of consecutive values (the line is entirely read before being written)
+	 */
+	private static void minMaxLine(double[] in, double[] out, int offset, int n, int radius, boolean max, double[] g, double[] h)
+	{
+		int k = 2 * radius + 1;
+		double identity = max ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+		
+		// padded position p corresponds to line position p - radius
+		for (int p = 0; p < g.length; p++)
+		{
+			int i = p - radius;
+			h[p] = i >= 0 && i < n ? in[offset + i] : identity;
+		}
+		
+		for (int block = 0; block < g.length; block += k)
+		{
+			// prefix extremum (g) and suffix extremum (h) of each block
+			g[block] = h[block];
+			for (int p = block + 1; p < block + k; p++)
+				g[p] = max ? Math.max(g[p - 1], h[p]) : Math.min(g[p - 1], h[p]);
+			
+			for (int p = block + k - 2; p >= block; p--)
+				h[p] = max ? Math.max(h[p + 1], h[p]) : Math.min(h[p + 1], h[p]);
+		}
+		
+		// window [i - r, i + r] = padded [i, i + 2r], spanning at most two blocks
+		for (int i = 0; i < n; i++)
+			out[offset + i] = max ? Math.max(h[i], g[i + 2 * radius]) : Math.min(h[i], g[i + 2 * radius]);
+	}
+	
+	/**
+	 * Filters a line of vectors (rows or slices), i.e. position p holds the values
+	 * in[p][offsets[p]] to in[p][offsets[p] + length - 1]. The vectors are processed by chunks of
+	 * the width of the temporary buffers, each chunk being entirely read before being written
+	 */
+	private static void minMaxVectors(double[][] in, double[][] out, int[] offsets, int length, int radius, boolean max, double[][] g, double[][] h)
+	{
+		int n = in.length;
+		int k = 2 * radius + 1;
+		int chunk = g[0].length;
+		double identity = max ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+		
+		for (int from = 0; from < length; from += chunk)
+		{
+			int size = Math.min(chunk, length - from);
+			
+			for (int p = 0; p < g.length; p++)
+			{
+				int i = p - radius;
+				
+				if (i >= 0 && i < n) System.arraycopy(in[i], offsets[i] + from, h[p], 0, size);
+				else Arrays.fill(h[p], 0, size, identity);
+			}
+			
+			for (int block = 0; block < g.length; block += k)
+			{
+				System.arraycopy(h[block], 0, g[block], 0, size);
+				
+				for (int p = block + 1; p < block + k; p++)
+				{
+					double[] prev = g[p - 1], cur = g[p], val = h[p];
+					for (int j = 0; j < size; j++)
+						cur[j] = max ? Math.max(prev[j], val[j]) : Math.min(prev[j], val[j]);
+				}
+				
+				for (int p = block + k - 2; p >= block; p--)
+				{
+					double[] next = h[p + 1], cur = h[p];
+					for (int j = 0; j < size; j++)
+						cur[j] = max ? Math.max(next[j], cur[j]) : Math.min(next[j], cur[j]);
+				}
+			}
+			
+			for (int i = 0; i < n; i++)
+			{
+				double[] hi = h[i], gi = g[i + 2 * radius], o = out[i];
+				int offset = offsets[i] + from;
+				
+				for (int j = 0; j < size; j++)
+					o[offset + j] = max ? Math.max(hi[j], gi[j]) : Math.min(hi[j], gi[j]);
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package plugins.adufour.filtering;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.collection.array.Array1DUtil;
+
+/**
+ * Per-plane and per-channel bounds of a filter output, collected while the convolution engines
+ * write their results back into the output sequence. <br>
+ * Handing these bounds to the sequence (see {@link #apply(Sequence)}) avoids the extra sweep of
+ * the entire output performed by {@link Sequence#updateComponentsBounds(boolean)}.
+ * 
+ */
+public class OutputBounds
+{
+	private final int		sizeZ, sizeC;
+	
+	private final boolean	signed;
+	
+	private final double[]	min, max;
+	
+	private final boolean[]	written;
+	
+	/**
+	 * Creates new (empty) bounds for the given output sequence
+	 * 
+	 * @param output
+	 *            the output sequence
+	 */
+	public OutputBounds(Sequence output)
+	{
+		sizeZ = output.getSizeZ();
+		sizeC = output.getSizeC();
+		signed = output.getDataType_().isSigned();
+		
+		int nbPlanes = output.getSizeT() * sizeZ * sizeC;
+		min = new double[nbPlanes];
+		max = new double[nbPlanes];
+		written = new boolean[nbPlanes];
+	}
+	
+	/**
+	 * Converts the given values into the output data type, writes them into the specified plane
+	 * and records the bounds of the written values
+	 * 
+	 * @param values
+	 *            the plane values
+	 * @param output
+	 *            the output sequence
+	 * @param t
+	 *            the time point
+	 * @param z
+	 *            the slice
+	 * @param c
+	 *            the channel
+	 */
+	public void write(double[] values, Sequence output, int t, int z, int c)
+	{
+		int iMin = 0, iMax = 0;
+		double vMin = values[0], vMax = values[0];
+		
+		for (int i = 1; i < values.length; i++)
+		{
+			double v = values[i];
+			
+			if (v < vMin)
+			{
+				vMin = v;
+				iMin = i;
+			}
+			else if (v > vMax)
+			{
+				vMax = v;
+				iMax = i;
+			}
+		}
+		
+		Object plane = output.getDataXY(t, z, c);
+		
+		Array1DUtil.doubleArrayToSafeArray(values, plane, signed);
+		
+		store(plane, iMin, iMax, t, z, c);
+	}
+	
+	/**
+	 * Converts the given values into the output data type, writes them into the specified plane
+	 * and records the bounds of the written values
+	 * 
+	 * @param values
+	 *            the plane values
+	 * @param output
+	 *            the output sequence
+	 * @param t
+	 *            the time point
+	 * @param z
+	 *            the slice
+	 * @param c
+	 *            the channel
+	 */
+	public void write(float[] values, Sequence output, int t, int z, int c)
+	{
+		int iMin = 0, iMax = 0;
+		float vMin = values[0], vMax = values[0];
+		
+		for (int i = 1; i < values.length; i++)
+		{
+			float v = values[i];
+			
+			if (v < vMin)
+			{
+				vMin = v;
+				iMin = i;
+			}
+			else if (v > vMax)
+			{
+				vMax = v;
+				iMax = i;
+			}
+		}
+		
+		Object plane = output.getDataXY(t, z, c);
+		
+		Array1DUtil.floatArrayToSafeArray(values, plane, signed);
+		
+		store(plane, iMin, iMax, t, z, c);
+	}
+	
+	/**
+	 * Records the bounds of a plane from the stored (i.e. converted and clamped) extreme values.
+	 * Type conversion is monotonic, hence the extrema remain at the same place
+	 */
+	private void store(Object plane, int iMin, int iMax, int t, int z, int c)
+	{
+		double[] value = new double[1];
+		
+		int index = (t * sizeZ + z) * sizeC + c;
+		
+		min[index] = Array1DUtil.arrayToDoubleArray(plane, iMin, value, 0, 1, signed)[0];
+		max[index] = Array1DUtil.arrayToDoubleArray(plane, iMax, value, 0, 1, signed)[0];
+		written[index] = true;
+	}
+	
+	/**
+	 * Records the bounds of a plane written by another engine
+	 */
+	void set(int t, int z, int c, double planeMin, double planeMax)
+	{
+		int index = (t * sizeZ + z) * sizeC + c;
+		
+		min[index] = planeMin;
+		max[index] = planeMax;
+		written[index] = true;
+	}
+	
+	/**
+	 * @return true if the bounds of every plane have been recorded
+	 */
+	public boolean isComplete()
+	{
+		for (boolean w : written)
+			if (!w) return false;
+		
+		return true;
+	}
+	
+	/**
+	 * Hands the recorded bounds to the images of the output sequence (absolute and user bounds).
+	 * If some planes were not written (e.g. the process was interrupted), the bounds are computed
+	 * from the sequence data instead
+	 * 
+	 * @param output
+	 *            the output sequence
+	 */
+	public void apply(Sequence output)
+	{
+		if (!isComplete())
+		{
+			output.updateComponentsBounds(true);
+			return;
+		}
+		
+		output.beginUpdate();
+		
+		try
+		{
+			for (int t = 0; t < output.getSizeT(); t++)
+				for (int z = 0; z < sizeZ; z++)
+				{
+					IcyBufferedImage image = output.getImage(t, z);
+					
+					for (int c = 0; c < sizeC; c++)
+					{
+						int index = (t * sizeZ + z) * sizeC + c;
+						double[] bounds = { min[index], max[index] };
+						
+						image.setComponentAbsBounds(c, bounds);
+						image.setComponentUserBounds(c, bounds);
+					}
+				}
+		}
+		finally
+		{
+			output.endUpdate();
+		}
+	}
+}
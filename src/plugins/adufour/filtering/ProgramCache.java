@@ -0,0 +1,225 @@
+package plugins.adufour.filtering;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.nativelibs4java.opencl.CLBuildException;
+import com.nativelibs4java.opencl.CLContext;
+import com.nativelibs4java.opencl.CLDevice;
+import com.nativelibs4java.opencl.CLException;
+import com.nativelibs4java.opencl.CLProgram;
+
+/**
+ * Persistent cache of built OpenCL programs. <br>
+ * Building a program from source lets the driver compile it, which may take several seconds. The
+ * binaries of a built program are therefore stored on disk, one file per device, keyed by the
+ * device (name, vendor, OpenCL version), the driver version and the source code, such that any
+ * driver update or source change naturally invalidates the cache. Binaries that the driver
+ * rejects (e.g. CPU drivers returning an intermediate representation they cannot reload) are
+ * discarded, and the program is built from source instead.
+ * 
+ */
+public class ProgramCache
+{
+	/**
+	 * Default cache directory (in the user home folder, such that it survives restarts)
+	 */
+	public static final File	DEFAULT_DIRECTORY	= new File(System.getProperty("user.home"), ".FilterToolbox" + File.separator + "opencl");
+	
+	/**
+	 * Builds the given program for all the devices of the given context, from the cached binaries
+	 * if available, or from source otherwise (in which case the binaries are cached for the next
+	 * time)
+	 * 
+	 * @param context
+	 *            the OpenCL context
+	 * @param source
+	 *            the program source code
+	 * @param directory
+	 *            the cache directory (created if necessary)
+	 * @return the built program
+	 * @throws CLBuildException
+	 *             if the program cannot be built from source
+	 */
+	public static CLProgram build(CLContext context, String source, File directory) throws CLBuildException
+	{
+		CLDevice[] devices = context.getDevices();
+		
+		Map<CLDevice, File> files = new HashMap<CLDevice, File>();
+		Map<CLDevice, byte[]> binaries = new HashMap<CLDevice, byte[]>();
+		
+		for (CLDevice device : devices)
+		{
+			File file = new File(directory, key(device, source) + ".bin");
+			files.put(device, file);
+			
+			byte[] binary = read(file);
+			if (binary != null) binaries.put(device, binary);
+		}
+		
+		if (binaries.size() == devices.length)
+		{
+			try
+			{
+				return context.createProgram(binaries, source).build();
+			}
+			catch (CLBuildException e)
+			{
+				System.out.println("Warning (ProgramCache): cached OpenCL binaries rejected by the driver. Building from source.");
+			}
+			catch (CLException e)
+			{
+				System.out.println("Warning (ProgramCache): cached OpenCL binaries rejected by the driver. Building from source.");
+			}
+			
+			for (File file : files.values())
+				file.delete();
+		}
+		
+		CLProgram program = context.createProgram(source).build();
+		
+		try
+		{
+			for (Map.Entry<CLDevice, byte[]> binary : program.getBinaries().entrySet())
+			{
+				File file = files.get(binary.getKey());
+				
+				// some drivers do not expose any binary
+				if (file != null && binary.getValue() != null && binary.getValue().length > 0) write(file, binary.getValue());
+			}
+		}
+		catch (CLBuildException e)
+		{
+			System.out.println("Warning (ProgramCache): unable to retrieve the OpenCL binaries (" + e.getMessage() + ")");
+		}
+		catch (CLException e)
+		{
+			System.out.println("Warning (ProgramCache): unable to retrieve the OpenCL binaries (" + e.getMessage() + ")");
+		}
+		catch (IOException e)
+		{
+			System.out.println("Warning (ProgramCache): unable to write the OpenCL binaries to disk (" + e.getMessage() + ")");
+		}
+		
+		return program;
+	}
+	
+	/**
+	 * @return the cache key of the given device and source code, as a hexadecimal string
+	 */
+	private static String key(CLDevice device, String source)
+	{
+		MessageDigest digest;
+		
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+			
+			String deviceId = device.getName() + '\n' + device.getVendor() + '\n' + device.getVersion() + '\n' + device.getDriverVersion() + '\n';
+			digest.update(deviceId.getBytes("UTF-8"));
+			digest.update(source.getBytes("UTF-8"));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+		
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+			hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+		
+		return hex.toString();
+	}
+	
+	/**
+	 * @return the content of the given file, or null if it does not exist or cannot be read
+	 */
+	private static byte[] read(File file)
+	{
+		if (!file.isFile()) return null;
+		
+		InputStream stream = null;
+		
+		try
+		{
+			stream = new FileInputStream(file);
+			
+			byte[] data = new byte[(int) file.length()];
+			int offset = 0;
+			
+			while (offset < data.length)
+			{
+				int n = stream.read(data, offset, data.length - offset);
+				if (n < 0) return null;
+				offset += n;
+			}
+			
+			return data;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		finally
+		{
+			close(stream);
+		}
+	}
+	
+	/**
+	 * Writes the given data to a temporary file renamed once complete, such that concurrent
+	 * readers never see a partial binary
+	 */
+	private static void write(File file, byte[] data) throws IOException
+	{
+		File directory = file.getParentFile();
+		
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("unable to create " + directory);
+		
+		File temp = File.createTempFile("program", ".tmp", directory);
+		OutputStream stream = null;
+		
+		try
+		{
+			stream = new FileOutputStream(temp);
+			stream.write(data);
+		}
+		finally
+		{
+			close(stream);
+		}
+		
+		if (!temp.renameTo(file))
+		{
+			// e.g. the file was cached meanwhile by another instance
+			temp.delete();
+		}
+	}
+	
+	private static void close(Closeable stream)
+	{
+		if (stream == null) return;
+		
+		try
+		{
+			stream.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+}
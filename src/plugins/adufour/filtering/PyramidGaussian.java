@@ -0,0 +1,428 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.collection.array.Array1DUtil;
+import plugins.adufour.filtering.FilterToolbox.Axis;
+import plugins.adufour.vars.lang.VarBoolean;
+
+/**
+ * Multi-resolution (decimated) Gaussian filtering for large standard deviations. <br>
+ * Along each axis where the Gaussian is wide enough, the data is repeatedly reduced by a factor 2
+ * using a binomial anti-aliasing filter, blurred at the coarse level with the residual standard
+ * deviation, and linearly interpolated back to full resolution. The number of reductions is
+ * chosen per axis such that the estimated interpolation error stays below a user-defined bound
+ * (relative to the input dynamic range), hence the result is only approximately Gaussian, but the
+ * cost no longer depends on the kernel size.
+ * 
+ */
+public class PyramidGaussian
+{
+	/**
+	 * 5-tap binomial anti-aliasing filter (variance = 1 sample^2)
+	 */
+	private static final double[]	BINOMIAL			= { 1 / 16.0, 4 / 16.0, 6 / 16.0, 4 / 16.0, 1 / 16.0 };
+	
+	/**
+	 * Upper bound of the L1 norm of the second derivative of a unit-area Gaussian, multiplied by
+	 * sigma^2 (i.e. 4 / sqrt(2 * pi * e)) and divided by 8 (linear interpolation error factor)
+	 */
+	private static final double		INTERPOLATION_ERROR	= 4.0 / Math.sqrt(2 * Math.PI * Math.E) / 8.0;
+	
+	/**
+	 * Minimum number of samples kept along a reduced axis
+	 */
+	private static final int		MIN_COARSE_SIZE		= 4;
+	
+	/**
+	 * Computes the number of dyadic reductions that can be applied before smoothing with a Gaussian
+	 * of given standard deviation
+	 * 
+	 * @param sigma
+	 *            the standard deviation of the Gaussian
+	 * @param size
+	 *            the number of samples along the axis
+	 * @param maxError
+	 *            the maximum tolerated error, relative to the input dynamic range (0 disables the
+	 *            pyramid mode)
+	 * @return the number of reductions (0 if the Gaussian should be applied at full resolution)
+	 */
+	public static int getNbLevels(double sigma, int size, double maxError)
+	{
+		if (maxError <= 0 || sigma <= 0) return 0;
+		
+		// largest decimation factor such that the interpolation error stays below the bound
+		double maxFactor = sigma * Math.sqrt(maxError / INTERPOLATION_ERROR);
+		
+		int levels = 0;
+		int factor = 2;
+		
+		while (factor <= maxFactor && size / factor >= MIN_COARSE_SIZE && getResidualVariance(sigma, levels + 1) >= 0)
+		{
+			levels++;
+			factor <<= 1;
+		}
+		
+		return levels;
+	}
+	
+	/**
+	 * @return the Gaussian variance (in full resolution units) left to apply after the given
+	 *         number of reductions and the final interpolation. A negative value indicates that the
+	 *         pyramid blurs more than the target Gaussian
+	 */
+	private static double getResidualVariance(double sigma, int levels)
+	{
+		double factor2 = 1 << (2 * levels);
+		
+		// each binomial reduction adds a unit variance at its own resolution,
+		// the final linear interpolation adds factor^2 / 6 on average
+		return sigma * sigma - (factor2 - 1) / 3.0 - factor2 / 6.0;
+	}
+	
+	/**
+	 * Gaussian filtering of each (t,c) stack of the given sequence (in place), using the pyramid
+	 * mode along the axes where the tolerated error allows it
+	 * 
+	 * @param sequence
+	 *            the sequence to filter
+	 * @param sigmaX
+	 *            the standard deviation along X (0 to skip this axis)
+	 * @param sigmaY
+	 *            the standard deviation along Y (0 to skip this axis)
+	 * @param sigmaZ
+	 *            the standard deviation along Z (0 to skip this axis)
+	 * @param maxError
+	 *            the maximum tolerated error, relative to the input dynamic range
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param nbIter
+	 *            the number of filter iterations
+	 * @param stopFlag
+	 *            a flag that interrupts the computation when set to true
+	 */
+	public static void convolve(Sequence sequence, double sigmaX, double sigmaY, double sigmaZ, double maxError, boolean zeroEdges, int nbIter, VarBoolean stopFlag)
+	{
+		DataType type = sequence.getDataType_();
+		
+		double[][] z_xy = new double[sequence.getSizeZ()][sequence.getSizeX() * sequence.getSizeY()];
+		
+		sequence.beginUpdate();
+		
+		convolution: for (int t = 0; t < sequence.getSizeT(); t++)
+			for (int c = 0; c < sequence.getSizeC(); c++)
+			{
+				for (int i = 0; i < nbIter; i++)
+				{
+					for (int z = 0; z < sequence.getSizeZ(); z++)
+						Array1DUtil.arrayToDoubleArray(sequence.getDataXY(t, z, c), z_xy[z], type.isSigned());
+					
+					convolve(z_xy, sequence.getSizeX(), sequence.getSizeY(), sigmaX, sigmaY, sigmaZ, maxError, zeroEdges);
+					
+					for (int z = 0; z < sequence.getSizeZ(); z++)
+						Array1DUtil.doubleArrayToSafeArray(z_xy[z], sequence.getDataXY(t, z, c), type.isSigned());
+					
+					if (stopFlag.getValue())
+						break convolution;
+				}
+			}
+		
+		sequence.endUpdate();
+	}
+	
+	/**
+	 * Low-level Gaussian filtering in pyramid mode. <br>
+	 * The filtering is made "in-place", i.e. the input array is overwritten upon return. <br>
+	 * Warning: this is a low-level method. No check is performed on the input arguments, and the
+	 * method may return successfully though with incorrect results. Make sure your arguments follow
+	 * the indicated constraints.
+	 * 
+	 * @param array
+	 *            the data buffer, given as a [Z (slice)][XY (1D offset)] double array
+	 * @param width
+	 *            the image width
+	 * @param height
+	 *            the image height
+	 * @param sigmaX
+	 *            the standard deviation along X (0 to skip this axis)
+	 * @param sigmaY
+	 *            the standard deviation along Y (0 to skip this axis)
+	 * @param sigmaZ
+	 *            the standard deviation along Z (0 to skip this axis, ignored for 2D data)
+	 * @param maxError
+	 *            the maximum tolerated error, relative to the input dynamic range
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition (the reduction and interpolation steps always use mirroring)
+	 */
+	public static void convolve(double[][] array, int width, int height, double sigmaX, double sigmaY, double sigmaZ, double maxError, boolean zeroEdges)
+	{
+		int depth = array.length;
+		if (depth == 1) sigmaZ = 0;
+		
+		int levelsX = getNbLevels(sigmaX, width, maxError);
+		int levelsY = getNbLevels(sigmaY, height, maxError);
+		int levelsZ = getNbLevels(sigmaZ, depth, maxError);
+		
+		// 1) reduce
+		
+		double[][] coarse = array;
+		int[] size = { width, height, depth };
+		
+		for (int i = 0; i < levelsX; i++)
+			coarse = reduce(coarse, size, Axis.X);
+		for (int i = 0; i < levelsY; i++)
+			coarse = reduce(coarse, size, Axis.Y);
+		for (int i = 0; i < levelsZ; i++)
+			coarse = reduce(coarse, size, Axis.Z);
+		
+		// 2) blur with the residual standard deviations
+		
+		double[] kernelX = createResidualKernel(sigmaX, levelsX);
+		double[] kernelY = createResidualKernel(sigmaY, levelsY);
+		double[] kernelZ = createResidualKernel(sigmaZ, levelsZ);
+		
+		if (kernelX != null || kernelY != null || kernelZ != null)
+		{
+			double[][] source = coarse;
+			double[][] target = new double[coarse.length][coarse[0].length];
+			
+			double[][] kernels = { kernelX, kernelY, kernelZ };
+			
+			for (Axis axis : new Axis[] { Axis.X, Axis.Y, Axis.Z })
+			{
+				if (kernels[axis.ordinal()] == null) continue;
+				
+				Convolution1D.convolve1D(source, target, size[0], size[1], 1, kernels[axis.ordinal()], axis, zeroEdges);
+				
+				double[][] swap = source;
+				source = target;
+				target = swap;
+			}
+			
+			if (source != coarse)
+			{
+				for (int z = 0; z < coarse.length; z++)
+					System.arraycopy(source[z], 0, coarse[z], 0, coarse[z].length);
+			}
+		}
+		
+		// 3) expand back to full resolution
+		
+		if (levelsZ > 0) coarse = expand(coarse, size, Axis.Z, 1 << levelsZ, depth);
+		if (levelsY > 0) coarse = expand(coarse, size, Axis.Y, 1 << levelsY, height);
+		if (levelsX > 0) coarse = expand(coarse, size, Axis.X, 1 << levelsX, width);
+		
+		if (coarse != array)
+		{
+			for (int z = 0; z < depth; z++)
+				System.arraycopy(coarse[z], 0, array[z], 0, array[z].length);
+		}
+	}
+	
+	/**
+	 * @return the Gaussian kernel to apply at the coarse level, or null if no smoothing is needed
+	 */
+	private static double[] createResidualKernel(double sigma, int levels)
+	{
+		if (sigma <= 0) return null;
+		
+		if (levels == 0) return Kernel1D.gaussianDerivative(sigma, 0).data();
+		
+		double coarseSigma = Math.sqrt(getResidualVariance(sigma, levels)) / (1 << levels);
+		
+		return coarseSigma < 1.0e-10 ? null : Kernel1D.gaussianDerivative(coarseSigma, 0).data();
+	}
+	
+	/**
+	 * Anti-aliased reduction by a factor 2 along the given axis
+	 * 
+	 * @param input
+	 *            the input buffer
+	 * @param size
+	 *            the buffer dimensions (updated upon return)
+	 * @param axis
+	 *            the axis to reduce
+	 * @return a new buffer with the reduced data
+	 */
+	private static double[][] reduce(double[][] input, int[] size, Axis axis)
+	{
+		int inLength = size[axis.ordinal()];
+		int outLength = (inLength + 1) >> 1;
+		
+		size[axis.ordinal()] = outLength;
+		double[][] output = new double[size[2]][size[0] * size[1]];
+		
+		double[] inLine = new double[inLength];
+		double[] outLine = new double[outLength];
+		
+		for (int line = 0, nbLines = getNbLines(size, axis); line < nbLines; line++)
+		{
+			getLine(input, size, axis, line, inLine);
+			
+			for (int i = 0; i < outLength; i++)
+			{
+				double value = 0;
+				
+				for (int k = -2; k <= 2; k++)
+					value += inLine[Convolution1D.mirror(2 * i + k, inLength)] * BINOMIAL[k + 2];
+				
+				outLine[i] = value;
+			}
+			
+			setLine(output, size, axis, line, outLine);
+		}
+		
+		return output;
+	}
+	
+	/**
+	 * Linear interpolation by the given factor along the given axis
+	 * 
+	 * @param input
+	 *            the input buffer
+	 * @param size
+	 *            the buffer dimensions (updated upon return)
+	 * @param axis
+	 *            the axis to expand
+	 * @param factor
+	 *            the expansion factor (i.e. the sampling step of the input data)
+	 * @param outLength
+	 *            the final number of samples along the axis
+	 * @return a new buffer with the expanded data
+	 */
+	private static double[][] expand(double[][] input, int[] size, Axis axis, int factor, int outLength)
+	{
+		int inLength = size[axis.ordinal()];
+		
+		size[axis.ordinal()] = outLength;
+		double[][] output = new double[size[2]][size[0] * size[1]];
+		
+		double[] inLine = new double[inLength];
+		double[] outLine = new double[outLength];
+		
+		for (int line = 0, nbLines = getNbLines(size, axis); line < nbLines; line++)
+		{
+			getLine(input, size, axis, line, inLine);
+			
+			for (int i = 0; i < outLength; i++)
+			{
+				int left = i / factor;
+				
+				if (left >= inLength - 1)
+				{
+					outLine[i] = inLine[inLength - 1];
+				}
+				else
+				{
+					double w = (i - left * factor) / (double) factor;
+					outLine[i] = (1 - w) * inLine[left] + w * inLine[left + 1];
+				}
+			}
+			
+			setLine(output, size, axis, line, outLine);
+		}
+		
+		return output;
+	}
+	
+	/**
+	 * @return the number of 1D lines along the given axis (the size array must contain the
+	 *         dimensions of the buffer, excepted along the given axis)
+	 */
+	private static int getNbLines(int[] size, Axis axis)
+	{
+		switch (axis)
+		{
+			case X:
+				return size[1] * size[2];
+			case Y:
+				return size[0] * size[2];
+			default:
+				return size[0] * size[1];
+		}
+	}
+	
+	/**
+	 * Copies a 1D line of the given buffer along the given axis
+	 * 
+	 * @param buffer
+	 *            the buffer to read from
+	 * @param size
+	 *            the buffer dimensions (except along the given axis which is given by the line
+	 *            length)
+	 * @param axis
+	 *            the axis of the line
+	 * @param line
+	 *            the line index (in Z-Y or Z-X or XY order)
+	 * @param values
+	 *            the line values
+	 */
+	private static void getLine(double[][] buffer, int[] size, Axis axis, int line, double[] values)
+	{
+		int n = values.length;
+		
+		switch (axis)
+		{
+			case X:
+			{
+				int z = line / size[1], y = line % size[1];
+				System.arraycopy(buffer[z], y * n, values, 0, n);
+			}
+			break;
+			
+			case Y:
+			{
+				int z = line / size[0], x = line % size[0];
+				double[] slice = buffer[z];
+				for (int i = 0, offset = x; i < n; i++, offset += size[0])
+					values[i] = slice[offset];
+			}
+			break;
+			
+			case Z:
+			{
+				for (int i = 0; i < n; i++)
+					values[i] = buffer[i][line];
+			}
+			break;
+		}
+	}
+	
+	/**
+	 * Writes a 1D line into the given buffer along the given axis
+	 * 
+	 * @see #getLine(double[][], int[], Axis, int, double[])
+	 */
+	private static void setLine(double[][] buffer, int[] size, Axis axis, int line, double[] values)
+	{
+		int n = values.length;
+		
+		switch (axis)
+		{
+			case X:
+			{
+				int z = line / size[1], y = line % size[1];
+				System.arraycopy(values, 0, buffer[z], y * n, n);
+			}
+			break;
+			
+			case Y:
+			{
+				int z = line / size[0], x = line % size[0];
+				double[] slice = buffer[z];
+				for (int i = 0, offset = x; i < n; i++, offset += size[0])
+					slice[offset] = values[i];
+			}
+			break;
+			
+			case Z:
+			{
+				for (int i = 0; i < n; i++)
+					buffer[i][line] = values[i];
+			}
+			break;
+		}
+	}
+}
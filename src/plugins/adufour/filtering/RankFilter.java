@@ -0,0 +1,558 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import plugins.adufour.vars.lang.VarBoolean;
+
+/**
+ * Rank filters (minimum, median, maximum, or any percentile) over rectangular 2D windows, applied
+ * to each plane of a sequence. Windows are clipped to the plane bounds, i.e. ranks near the edges
+ * are computed over the pixels inside the plane only. <br>
+ * 8/16-bit data is processed with sliding histograms, whose cost per pixel does not depend on the
+ * window area:
+ * <ul>
+ * <li>8-bit data uses the algorithm of Perreault and H&eacute;bert (one histogram per column,
+ * added to and removed from the window histogram as it slides), in constant time per pixel
+ * whatever the radius</li>
+ * <li>16-bit data uses two-level (coarse and fine) histograms to locate the rank quickly. Tall
+ * windows (see {@link #MIN_PERREAULT_HEBERT_RADIUS}) use the algorithm of Perreault and
+ * H&eacute;bert, in constant time per pixel: the fine histogram of a coarse bucket is only updated
+ * when the rank falls into that bucket. Shorter windows, and bands whose fine column histograms
+ * would exceed {@link #MAX_FINE_HISTOGRAMS}, use the algorithm of Huang (the window histogram is
+ * updated with the column entering and the column leaving the window), in time proportional to
+ * the window height</li>
+ * </ul>
+ * Other data types are processed by sorting the values of each window. <br>
+ * Each plane is split into bands of rows (see {@link #BAND_HEIGHT}), filtered in parallel.
+ * 
+ */
+public class RankFilter
+{
+	/**
+	 * Minimum number of rows of the bands filtered in parallel
+	 */
+	public static final int		BAND_HEIGHT					= 64;
+	
+	/**
+	 * Minimum vertical radius from which 16-bit data is processed with the
+	 * Perreault-H&eacute;bert algorithm (the Huang algorithm is faster for shorter windows)
+	 */
+	public static final int		MIN_PERREAULT_HEBERT_RADIUS	= 48;
+	
+	/**
+	 * Maximum size (in bytes) of the fine column histograms of a band of 16-bit data, above which
+	 * the Huang algorithm is used instead of the Perreault-H&eacute;bert algorithm
+	 */
+	public static final long	MAX_FINE_HISTOGRAMS			= 64L << 20;
+	
+	/**
+	 * Replaces each pixel by the median of its neighborhood
+	 * 
+	 * @see #filter(Sequence, Sequence, int, int, double, VarBoolean)
+	 */
+	public static void median(Sequence input, Sequence output, int radiusX, int radiusY, VarBoolean stopFlag)
+	{
+		filter(input, output, radiusX, radiusY, 50, stopFlag);
+	}
+	
+	/**
+	 * Replaces each pixel by the minimum of its neighborhood (i.e. grey-level erosion)
+	 * 
+	 * @see #filter(Sequence, Sequence, int, int, double, VarBoolean)
+	 */
+	public static void minimum(Sequence input, Sequence output, int radiusX, int radiusY, VarBoolean stopFlag)
+	{
+		filter(input, output, radiusX, radiusY, 0, stopFlag);
+	}
+	
+	/**
+	 * Replaces each pixel by the maximum of its neighborhood (i.e. grey-level dilation)
+	 * 
+	 * @see #filter(Sequence, Sequence, int, int, double, VarBoolean)
+	 */
+	public static void maximum(Sequence input, Sequence output, int radiusX, int radiusY, VarBoolean stopFlag)
+	{
+		filter(input, output, radiusX, radiusY, 100, stopFlag);
+	}
+	
+	/**
+	 * Replaces each pixel by the given percentile of its neighborhood, and writes the result into
+	 * the output sequence (out-of-place)
+	 * 
+	 * @param input
+	 *            the input sequence (unchanged)
+	 * @param output
+	 *            the output sequence, with the same dimensions as the input (see
+	 *            {@link Convolution#createOutput(Sequence, DataType)}). Can be the input itself
+	 * @param radiusX
+	 *            the window half-width (the window width is 2 * radiusX + 1)
+	 * @param radiusY
+	 *            the window half-height
+	 * @param percentile
+	 *            the percentile to compute, from 0 (minimum) to 100 (maximum). The value of rank
+	 *            round(percentile / 100 * (n - 1)) is retained among the n values of each window
+	 * @param stopFlag
+	 *            a flag that stops the process when set to true
+	 * @throws IllegalArgumentException
+	 *             if the percentile is not within [0, 100]
+	 */
+	public static void filter(Sequence input, Sequence output, final int radiusX, final int radiusY, final double percentile, VarBoolean stopFlag) throws IllegalArgumentException
+	{
+		if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Invalid argument: the percentile must be within [0, 100]");
+		
+		final int width = input.getSizeX();
+		final int height = input.getSizeY();
+		final DataType type = input.getDataType_();
+		
+		// channel bounds are collected while writing the result
+		OutputBounds bounds = new OutputBounds(output);
+		
+		int nbThreads = Runtime.getRuntime().availableProcessors();
+		int bandHeight = Math.max(BAND_HEIGHT, (height + nbThreads - 1) / nbThreads);
+		
+		ExecutorService service = Executors.newFixedThreadPool(nbThreads);
+		
+		output.beginUpdate();
+		
+		try
+		{
+			for (int t = 0; t < input.getSizeT(); t++)
+				for (int z = 0; z < input.getSizeZ(); z++)
+					for (int c = 0; c < input.getSizeC(); c++)
+					{
+						// 8/16-bit values are turned into histogram bins, other types are sorted
+						final int[] bins = toBins(input.getDataXY(t, z, c), type);
+						final double[] data = bins == null ? input.getDataXYAsDouble(t, z, c) : null;
+						final double[] _outXY = new double[width * height];
+						final VarBoolean flag = stopFlag;
+						
+						ArrayList<Future<?>> bands = new ArrayList<Future<?>>();
+						
+						for (int y = 0; y < height; y += bandHeight)
+						{
+							final int yMin = y, yMax = Math.min(height, y + bandHeight);
+							
+							bands.add(service.submit(new Runnable()
+							{
+								@Override
+								public void run()
+								{
+									if (bins == null)
+									{
+										filterBandSort(data, width, height, radiusX, radiusY, percentile, yMin, yMax, _outXY, flag);
+									}
+									else if (type == DataType.UBYTE || type == DataType.BYTE)
+									{
+										filterBand8(bins, width, height, radiusX, radiusY, percentile, yMin, yMax, binOffset(type), _outXY, flag);
+									}
+									else
+									{
+										filterBand16(bins, width, height, radiusX, radiusY, percentile, yMin, yMax, binOffset(type), _outXY, flag);
+									}
+								}
+							}));
+						}
+						
+						for (Future<?> band : bands)
+							band.get();
+						
+						if (stopFlag.getValue()) return;
+						
+						// the entire plane was read before writing, hence the output can be the input
+						bounds.write(_outXY, output, t, z, c);
+					}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			service.shutdown();
+			output.endUpdate();
+			bounds.apply(output);
+		}
+	}
+	
+	/**
+	 * Converts 8/16-bit data into histogram bins (i.e. values shifted to start at 0)
+	 * 
+	 * @return the bins, or null if the data type has no compact histogram
+	 */
+	private static int[] toBins(Object in, DataType type)
+	{
+		switch (type)
+		{
+			case UBYTE:
+			case BYTE:
+			{
+				byte[] data = (byte[]) in;
+				int[] bins = new int[data.length];
+				int offset = binOffset(type);
+				
+				for (int i = 0; i < bins.length; i++)
+					bins[i] = type == DataType.BYTE ? data[i] + offset : data[i] & 0xff;
+				
+				return bins;
+			}
+			case USHORT:
+			case SHORT:
+			{
+				short[] data = (short[]) in;
+				int[] bins = new int[data.length];
+				int offset = binOffset(type);
+				
+				for (int i = 0; i < bins.length; i++)
+					bins[i] = type == DataType.SHORT ? data[i] + offset : data[i] & 0xffff;
+				
+				return bins;
+			}
+			default:
+				return null;
+		}
+	}
+	
+	/**
+	 * @return the offset between the values of the given type and their histogram bins
+	 */
+	private static int binOffset(DataType type)
+	{
+		if (type == DataType.BYTE) return 128;
+		if (type == DataType.SHORT) return 32768;
+		return 0;
+	}
+	
+	/**
+	 * @return the rank of the given percentile among n values
+	 */
+	private static int rank(double percentile, int n)
+	{
+		return (int) Math.round(percentile / 100 * (n - 1));
+	}
+	
+	/**
+	 * Perreault-H&eacute;bert algorithm (8-bit data, given as bins in [0, 255])
+	 */
+	private static void filterBand8(int[] bins, int width, int height, int radiusX, int radiusY, double percentile, int yMin, int yMax, int offset, double[] out, VarBoolean stopFlag)
+	{
+		int[][] columns = new int[width][256];
+		int[] window = new int[256];
+		
+		// column histograms of the window rows of the first band row
+		for (int y = Math.max(0, yMin - radiusY); y <= Math.min(height - 1, yMin + radiusY); y++)
+			for (int x = 0, xy = y * width; x < width; x++, xy++)
+				columns[x][bins[xy]]++;
+		
+		for (int y = yMin; y < yMax; y++)
+		{
+			if (y > yMin)
+			{
+				// slide the column histograms down by one row
+				int top = y - radiusY - 1, bottom = y + radiusY;
+				
+				if (top >= 0) for (int x = 0, xy = top * width; x < width; x++, xy++)
+					columns[x][bins[xy]]--;
+				
+				if (bottom < height) for (int x = 0, xy = bottom * width; x < width; x++, xy++)
+					columns[x][bins[xy]]++;
+			}
+			
+			int nbRows = Math.min(height - 1, y + radiusY) - Math.max(0, y - radiusY) + 1;
+			
+			Arrays.fill(window, 0);
+			for (int x = 0; x <= Math.min(width - 1, radiusX); x++)
+				add(window, columns[x], 1);
+			
+			for (int x = 0, xy = y * width; x < width; x++, xy++)
+			{
+				int nbColumns = Math.min(width - 1, x + radiusX) - Math.max(0, x - radiusX) + 1;
+				int k = rank(percentile, nbRows * nbColumns);
+				
+				int bin = 0, count = window[0];
+				while (count <= k)
+					count += window[++bin];
+				out[xy] = bin - offset;
+				
+				// slide the window right by one column
+				if (x - radiusX >= 0) add(window, columns[x - radiusX], -1);
+				if (x + radiusX + 1 < width) add(window, columns[x + radiusX + 1], 1);
+			}
+			
+			if (stopFlag.getValue()) return;
+		}
+	}
+	
+	private static void add(int[] window, int[] column, int sign)
+	{
+		for (int i = 0; i < 256; i++)
+			window[i] += sign * column[i];
+	}
+	
+	/**
+	 * 16-bit data (given as bins in [0, 65535]): Huang algorithm for windows shorter than
+	 * {@link #MIN_PERREAULT_HEBERT_RADIUS}, or if the fine column histograms would exceed
+	 * {@link #MAX_FINE_HISTOGRAMS}, and Perreault-H&eacute;bert algorithm otherwise
+	 */
+	private static void filterBand16(int[] bins, int width, int height, int radiusX, int radiusY, double percentile, int yMin, int yMax, int offset, double[] out, VarBoolean stopFlag)
+	{
+		if (radiusY < MIN_PERREAULT_HEBERT_RADIUS)
+		{
+			filterBandHuang(bins, width, height, radiusX, radiusY, percentile, yMin, yMax, offset, out, stopFlag);
+			return;
+		}
+		
+		// each coarse bucket used by the rows of the band needs a fine histogram per column
+		boolean[] used = new boolean[256];
+		int nbBuckets = 0, minBucket = 255, maxBucket = 0;
+		
+		for (int xy = Math.max(0, yMin - radiusY) * width; xy < Math.min(height, yMax + radiusY) * width; xy++)
+		{
+			int bucket = bins[xy] >> 8;
+			if (used[bucket]) continue;
+			used[bucket] = true;
+			nbBuckets++;
+			minBucket = Math.min(minBucket, bucket);
+			maxBucket = Math.max(maxBucket, bucket);
+		}
+		
+		if ((long) nbBuckets * width * 256 * 4 > MAX_FINE_HISTOGRAMS)
+			filterBandHuang(bins, width, height, radiusX, radiusY, percentile, yMin, yMax, offset, out, stopFlag);
+		else
+			filterBandPerreaultHebert(bins, width, height, radiusX, radiusY, percentile, yMin, yMax, offset, minBucket, maxBucket, out, stopFlag);
+	}
+	
+	/**
+	 * Perreault-H&eacute;bert algorithm with two-level histograms (16-bit data). The coarse window
+	 * histogram slides with the coarse column histograms, and the fine window histogram of a
+	 * coarse bucket is only brought up to date when the rank falls into that bucket. The coarse
+	 * histograms are only swept over the buckets [minBucket, maxBucket] used by the band
+	 */
+	private static void filterBandPerreaultHebert(int[] bins, int width, int height, int radiusX, int radiusY, double percentile, int yMin, int yMax, int offset, int minBucket, int maxBucket, double[] out, VarBoolean stopFlag)
+	{
+		// column histograms: coarse as [X][bucket], fine as [bucket][X * 256 + bin] (allocated for
+		// the buckets in use only)
+		int[][] coarseColumns = new int[width][256];
+		int[][] fineColumns = new int[256][];
+		
+		int[] coarse = new int[256];
+		int[] fine = new int[65536];
+		
+		// range of columns [first, last] summed in the fine window histogram of each bucket
+		int[] first = new int[256];
+		int[] last = new int[256];
+		
+		// column histograms of the window rows of the first band row
+		for (int y = Math.max(0, yMin - radiusY); y <= Math.min(height - 1, yMin + radiusY); y++)
+			addRow(bins, width, y, coarseColumns, fineColumns, 1);
+		
+		for (int y = yMin; y < yMax; y++)
+		{
+			if (y > yMin)
+			{
+				// slide the column histograms down by one row
+				int top = y - radiusY - 1, bottom = y + radiusY;
+				
+				if (top >= 0) addRow(bins, width, top, coarseColumns, fineColumns, -1);
+				if (bottom < height) addRow(bins, width, bottom, coarseColumns, fineColumns, 1);
+			}
+			
+			int nbRows = Math.min(height - 1, y + radiusY) - Math.max(0, y - radiusY) + 1;
+			
+			Arrays.fill(coarse, 0);
+			for (int x = 0; x <= Math.min(width - 1, radiusX); x++)
+				add(coarse, coarseColumns[x], minBucket, maxBucket, 1);
+			
+			// the column histograms have changed: all the fine window histograms are out of date
+			Arrays.fill(first, 0);
+			Arrays.fill(last, -1);
+			
+			for (int x = 0, xy = y * width; x < width; x++, xy++)
+			{
+				int x0 = Math.max(0, x - radiusX), x1 = Math.min(width - 1, x + radiusX);
+				int k = rank(percentile, nbRows * (x1 - x0 + 1));
+				
+				// locate the coarse bucket, then the fine bin within the bucket
+				int bucket = minBucket, count = coarse[minBucket];
+				while (count <= k)
+					count += coarse[++bucket];
+				count -= coarse[bucket];
+				
+				updateFine(fine, coarseColumns, fineColumns[bucket], bucket, first, last, x0, x1);
+				
+				int bin = bucket << 8;
+				count += fine[bin];
+				while (count <= k)
+					count += fine[++bin];
+				out[xy] = bin - offset;
+				
+				// slide the window right by one column
+				if (x - radiusX >= 0) add(coarse, coarseColumns[x - radiusX], minBucket, maxBucket, -1);
+				if (x + radiusX + 1 < width) add(coarse, coarseColumns[x + radiusX + 1], minBucket, maxBucket, 1);
+			}
+			
+			if (stopFlag.getValue()) return;
+		}
+	}
+	
+	private static void add(int[] window, int[] column, int from, int to, int sign)
+	{
+		for (int i = from; i <= to; i++)
+			window[i] += sign * column[i];
+	}
+	
+	private static void addRow(int[] bins, int width, int y, int[][] coarseColumns, int[][] fineColumns, int sign)
+	{
+		for (int x = 0, xy = y * width; x < width; x++, xy++)
+		{
+			int bin = bins[xy];
+			int bucket = bin >> 8;
+			
+			if (fineColumns[bucket] == null) fineColumns[bucket] = new int[width << 8];
+			
+			coarseColumns[x][bucket] += sign;
+			fineColumns[bucket][(x << 8) | (bin & 0xff)] += sign;
+		}
+	}
+	
+	/**
+	 * Brings the fine window histogram of the given bucket up to date with the columns [x0, x1],
+	 * either from the columns it currently sums, or from scratch if that is cheaper
+	 */
+	private static void updateFine(int[] fine, int[][] coarseColumns, int[] columns, int bucket, int[] first, int[] last, int x0, int x1)
+	{
+		int block = bucket << 8;
+		
+		// the window only slides right, hence first <= x0 and last <= x1
+		int removed = x0 - first[bucket], added = x1 - last[bucket];
+		
+		if (first[bucket] > last[bucket] || removed + added > x1 - x0 + 1)
+		{
+			Arrays.fill(fine, block, block + 256, 0);
+			for (int x = x0; x <= x1; x++)
+				addFine(fine, block, coarseColumns, columns, x, 1);
+		}
+		else if (removed == 1 && added == 1 && coarseColumns[first[bucket]][bucket] != 0 && coarseColumns[x1][bucket] != 0)
+		{
+			// one column leaves and one column enters: both are processed in a single sweep
+			for (int i = block, out = first[bucket] << 8, in = x1 << 8; i < block + 256; i++, out++, in++)
+				fine[i] += columns[in] - columns[out];
+		}
+		else
+		{
+			for (int x = first[bucket]; x < x0; x++)
+				addFine(fine, block, coarseColumns, columns, x, -1);
+			for (int x = last[bucket] + 1; x <= x1; x++)
+				addFine(fine, block, coarseColumns, columns, x, 1);
+		}
+		
+		first[bucket] = x0;
+		last[bucket] = x1;
+	}
+	
+	private static void addFine(int[] fine, int block, int[][] coarseColumns, int[] columns, int x, int sign)
+	{
+		// columns without any value in the bucket leave the fine histogram unchanged
+		if (coarseColumns[x][block >> 8] == 0) return;
+		
+		for (int i = 0, xi = x << 8; i < 256; i++, xi++)
+			fine[block + i] += sign * columns[xi];
+	}
+	
+	/**
+	 * Huang algorithm with a two-level histogram (16-bit data), in time proportional to the window
+	 * height
+	 */
+	private static void filterBandHuang(int[] bins, int width, int height, int radiusX, int radiusY, double percentile, int yMin, int yMax, int offset, double[] out, VarBoolean stopFlag)
+	{
+		int[] fine = new int[65536];
+		int[] coarse = new int[256];
+		
+		for (int y = yMin; y < yMax; y++)
+		{
+			int top = Math.max(0, y - radiusY), bottom = Math.min(height - 1, y + radiusY);
+			int nbRows = bottom - top + 1;
+			
+			Arrays.fill(fine, 0);
+			Arrays.fill(coarse, 0);
+			
+			for (int x = 0; x <= Math.min(width - 1, radiusX); x++)
+				addColumn(bins, width, x, top, bottom, fine, coarse, 1);
+			
+			for (int x = 0, xy = y * width; x < width; x++, xy++)
+			{
+				int nbColumns = Math.min(width - 1, x + radiusX) - Math.max(0, x - radiusX) + 1;
+				int k = rank(percentile, nbRows * nbColumns);
+				
+				// locate the coarse bucket, then the fine bin within the bucket
+				int bucket = 0, count = coarse[0];
+				while (count <= k)
+					count += coarse[++bucket];
+				count -= coarse[bucket];
+				
+				int bin = bucket << 8;
+				count += fine[bin];
+				while (count <= k)
+					count += fine[++bin];
+				out[xy] = bin - offset;
+				
+				// slide the window right by one column
+				if (x - radiusX >= 0) addColumn(bins, width, x - radiusX, top, bottom, fine, coarse, -1);
+				if (x + radiusX + 1 < width) addColumn(bins, width, x + radiusX + 1, top, bottom, fine, coarse, 1);
+			}
+			
+			if (stopFlag.getValue()) return;
+		}
+	}
+	
+	private static void addColumn(int[] bins, int width, int x, int top, int bottom, int[] fine, int[] coarse, int sign)
+	{
+		for (int y = top, xy = top * width + x; y <= bottom; y++, xy += width)
+		{
+			int bin = bins[xy];
+			fine[bin] += sign;
+			coarse[bin >> 8] += sign;
+		}
+	}
+	
+	/**
+	 * Generic algorithm (sort of each window), for data types without a compact histogram
+	 */
+	private static void filterBandSort(double[] data, int width, int height, int radiusX, int radiusY, double percentile, int yMin, int yMax, double[] out, VarBoolean stopFlag)
+	{
+		double[] values = new double[(2 * radiusX + 1) * (2 * radiusY + 1)];
+		
+		for (int y = yMin; y < yMax; y++)
+		{
+			int top = Math.max(0, y - radiusY), bottom = Math.min(height - 1, y + radiusY);
+			
+			for (int x = 0, xy = y * width; x < width; x++, xy++)
+			{
+				int left = Math.max(0, x - radiusX), right = Math.min(width - 1, x + radiusX);
+				int n = 0;
+				
+				for (int wy = top; wy <= bottom; wy++)
+				{
+					System.arraycopy(data, wy * width + left, values, n, right - left + 1);
+					n += right - left + 1;
+				}
+				
+				Arrays.sort(values, 0, n);
+				out[xy] = values[rank(percentile, n)];
+			}
+			
+			if (stopFlag.getValue()) return;
+		}
+	}
+}
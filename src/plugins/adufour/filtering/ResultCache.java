@@ -0,0 +1,539 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, thread-safe LRU cache of filter results, keyed by the content of the input (see
+ * {@link #fingerprint(Sequence)}) and by the filter parameters (kernel, edge condition, number of
+ * iterations, etc.). <br>
+ * Running the same filter twice on the same data (or switching back and forth between two
+ * kernels) returns the cached result immediately instead of recomputing it. Results are kept in
+ * memory up to a given number of bytes, after which the least recently used ones are either
+ * dropped or, if a spill directory is set, written to disk (as raw planes, in a directory only
+ * accessible to the current user) and reloaded on demand.
+ * 
+ */
+public class ResultCache
+{
+	/**
+	 * Cached result, given as a [T][Z][C] array of planes (copied from the output sequence)
+	 */
+	private static final class Entry
+	{
+		final Object[][][]	planes;
+		
+		final long			nbBytes;
+		
+		Entry(Object[][][] planes, long nbBytes)
+		{
+			this.planes = planes;
+			this.nbBytes = nbBytes;
+		}
+	}
+	
+	/**
+	 * Default spill directory (in the user home folder, rather than in the shared temporary
+	 * folder)
+	 */
+	public static final File			DEFAULT_SPILL_DIRECTORY	= new File(System.getProperty("user.home"), ".FilterToolbox" + File.separator + "cache");
+	
+	/**
+	 * Array types of the planes, indexed by their code in the spilled files
+	 */
+	private static final Class<?>[]		PLANE_TYPES	= { byte[].class, short[].class, int[].class, float[].class, double[].class };
+	
+	private final Map<String, Entry>	memory	= new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	
+	private final Map<String, File>		disk	= new LinkedHashMap<String, File>(16, 0.75f, true);
+	
+	private final Map<String, Long>		diskSizes	= new LinkedHashMap<String, Long>();
+	
+	private long						maxMemoryBytes;
+	
+	private long						memoryBytes	= 0;
+	
+	private File						spillDirectory;
+	
+	private long						maxDiskBytes;
+	
+	private long						diskBytes	= 0;
+	
+	/**
+	 * Creates a new cache holding at most a quarter of the maximum heap size (and not spilling to
+	 * disk)
+	 */
+	public ResultCache()
+	{
+		this(Runtime.getRuntime().maxMemory() / 4);
+	}
+	
+	/**
+	 * Creates a new cache (not spilling to disk)
+	 * 
+	 * @param maxMemoryBytes
+	 *            the maximum number of bytes of results held in memory
+	 */
+	public ResultCache(long maxMemoryBytes)
+	{
+		this.maxMemoryBytes = maxMemoryBytes;
+	}
+	
+	/**
+	 * Sets the directory where the results evicted from memory are written (or null to drop them).
+	 * Results already spilled to a previous directory are deleted
+	 * 
+	 * @param directory
+	 *            the spill directory (created if necessary, and restricted to the current user),
+	 *            or null to disable spilling
+	 * @param maxDiskBytes
+	 *            the maximum number of bytes of results written to disk
+	 */
+	public synchronized void setSpillDirectory(File directory, long maxDiskBytes)
+	{
+		if (directory == null || !directory.equals(spillDirectory)) clearDisk();
+		
+		if (directory != null)
+		{
+			directory.mkdirs();
+			restrictToOwner(directory);
+		}
+		
+		this.spillDirectory = directory;
+		this.maxDiskBytes = maxDiskBytes;
+		
+		trimDisk();
+	}
+	
+	/**
+	 * Builds a cache key from the input content and the filter parameters
+	 * 
+	 * @param input
+	 *            the filter input
+	 * @param parameters
+	 *            the filter parameters (primitive arrays are compared by content)
+	 * @return the cache key
+	 */
+	public static String key(Sequence input, Object... parameters)
+	{
+		return fingerprint(input) + Arrays.deepToString(parameters);
+	}
+	
+	/**
+	 * Computes a digest of the dimensions, data type and data of the given sequence. Two sequences
+	 * with the same digest can be considered identical
+	 * 
+	 * @param sequence
+	 *            the sequence to fingerprint
+	 * @return the sequence digest, as a hexadecimal string
+	 */
+	public static String fingerprint(Sequence sequence)
+	{
+		MessageDigest digest;
+		
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		
+		buffer.putInt(sequence.getSizeX()).putInt(sequence.getSizeY()).putInt(sequence.getSizeZ());
+		buffer.putInt(sequence.getSizeT()).putInt(sequence.getSizeC());
+		buffer.putInt(sequence.getDataType_().ordinal());
+		
+		for (int t = 0; t < sequence.getSizeT(); t++)
+			for (int z = 0; z < sequence.getSizeZ(); z++)
+				for (int c = 0; c < sequence.getSizeC(); c++)
+					update(digest, buffer, sequence.getDataXY(t, z, c));
+		
+		digest.update(buffer.array(), 0, buffer.position());
+		
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+			hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+		
+		return hex.toString();
+	}
+	
+	/**
+	 * Feeds the given plane into the digest, through the given buffer (flushed whenever full)
+	 */
+	private static void update(MessageDigest digest, ByteBuffer buffer, Object plane)
+	{
+		digest.update(buffer.array(), 0, buffer.position());
+		buffer.clear();
+		
+		if (plane instanceof byte[])
+		{
+			digest.update((byte[]) plane);
+			return;
+		}
+		
+		int length = Array.getLength(plane);
+		int elementSize = elementSize(plane);
+		int chunk = buffer.capacity() / elementSize;
+		
+		for (int i = 0; i < length; i += chunk)
+		{
+			int n = Math.min(chunk, length - i);
+			
+			if (plane instanceof short[]) buffer.asShortBuffer().put((short[]) plane, i, n);
+			else if (plane instanceof int[]) buffer.asIntBuffer().put((int[]) plane, i, n);
+			else if (plane instanceof float[]) buffer.asFloatBuffer().put((float[]) plane, i, n);
+			else buffer.asDoubleBuffer().put((double[]) plane, i, n);
+			
+			digest.update(buffer.array(), 0, n * elementSize);
+		}
+	}
+	
+	/**
+	 * Copies the cached result of the given key (if any) into the output sequence
+	 * 
+	 * @param key
+	 *            the cache key (see {@link #key(Sequence, Object...)})
+	 * @param output
+	 *            the sequence receiving the result (with the same dimensions and data type as the
+	 *            cached result)
+	 * @return true if the result was found in the cache, false otherwise
+	 */
+	public synchronized boolean get(String key, Sequence output)
+	{
+		Entry entry = memory.get(key);
+		
+		if (entry == null && disk.containsKey(key))
+		{
+			entry = load(key);
+			
+			// reloaded results move back to memory
+			if (entry != null) store(key, entry);
+		}
+		
+		if (entry == null || !matches(entry, output)) return false;
+		
+		for (int t = 0; t < entry.planes.length; t++)
+			for (int z = 0; z < entry.planes[t].length; z++)
+				for (int c = 0; c < entry.planes[t][z].length; c++)
+				{
+					Object plane = entry.planes[t][z][c];
+					System.arraycopy(plane, 0, output.getDataXY(t, z, c), 0, Array.getLength(plane));
+				}
+		
+		output.dataChanged();
+		
+		return true;
+	}
+	
+	/**
+	 * Stores a copy of the given result in the cache
+	 * 
+	 * @param key
+	 *            the cache key (see {@link #key(Sequence, Object...)})
+	 * @param output
+	 *            the filter result
+	 */
+	public synchronized void put(String key, Sequence output)
+	{
+		Object[][][] planes = new Object[output.getSizeT()][output.getSizeZ()][output.getSizeC()];
+		long nbBytes = 0;
+		
+		for (int t = 0; t < planes.length; t++)
+			for (int z = 0; z < planes[t].length; z++)
+				for (int c = 0; c < planes[t][z].length; c++)
+				{
+					Object plane = output.getDataXY(t, z, c);
+					int length = Array.getLength(plane);
+					
+					planes[t][z][c] = Array.newInstance(plane.getClass().getComponentType(), length);
+					System.arraycopy(plane, 0, planes[t][z][c], 0, length);
+					nbBytes += (long) length * output.getDataType_().getSize();
+				}
+		
+		removeFromDisk(key);
+		store(key, new Entry(planes, nbBytes));
+	}
+	
+	/**
+	 * Removes all the results from the cache (including those spilled to disk)
+	 */
+	public synchronized void clear()
+	{
+		memory.clear();
+		memoryBytes = 0;
+		clearDisk();
+	}
+	
+	/**
+	 * @return the number of results currently in the cache (in memory or on disk)
+	 */
+	public synchronized int size()
+	{
+		return memory.size() + disk.size();
+	}
+	
+	/**
+	 * @return the number of bytes of results currently held in memory
+	 */
+	public synchronized long getMemoryBytes()
+	{
+		return memoryBytes;
+	}
+	
+	private static boolean matches(Entry entry, Sequence output)
+	{
+		if (entry.planes.length != output.getSizeT()) return false;
+		if (entry.planes[0].length != output.getSizeZ()) return false;
+		if (entry.planes[0][0].length != output.getSizeC()) return false;
+		
+		return entry.planes[0][0][0].getClass() == output.getDataXY(0, 0, 0).getClass();
+	}
+	
+	/**
+	 * Adds an entry in memory and evicts the least recently used ones if necessary
+	 */
+	private void store(String key, Entry entry)
+	{
+		Entry previous = memory.put(key, entry);
+		if (previous != null) memoryBytes -= previous.nbBytes;
+		memoryBytes += entry.nbBytes;
+		
+		Iterator<Map.Entry<String, Entry>> eldest = memory.entrySet().iterator();
+		
+		while (memoryBytes > maxMemoryBytes && eldest.hasNext())
+		{
+			Map.Entry<String, Entry> evicted = eldest.next();
+			eldest.remove();
+			memoryBytes -= evicted.getValue().nbBytes;
+			
+			if (spillDirectory != null) spill(evicted.getKey(), evicted.getValue());
+		}
+	}
+	
+	/**
+	 * Writes an evicted entry to disk
+	 */
+	private void spill(String key, Entry entry)
+	{
+		if (entry.nbBytes > maxDiskBytes) return;
+		
+		DataOutputStream stream = null;
+		
+		try
+		{
+			File file = File.createTempFile("result", ".cache", spillDirectory);
+			file.deleteOnExit();
+			restrictToOwner(file);
+			
+			Object first = entry.planes[0][0][0];
+			
+			stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			stream.writeInt(Arrays.asList(PLANE_TYPES).indexOf(first.getClass()));
+			stream.writeInt(entry.planes.length);
+			stream.writeInt(entry.planes[0].length);
+			stream.writeInt(entry.planes[0][0].length);
+			stream.writeInt(Array.getLength(first));
+			
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			
+			for (Object[][] stack : entry.planes)
+				for (Object[] channels : stack)
+					for (Object plane : channels)
+						write(stream, buffer, plane);
+			
+			stream.close();
+			
+			disk.put(key, file);
+			diskSizes.put(key, entry.nbBytes);
+			diskBytes += entry.nbBytes;
+			
+			trimDisk();
+		}
+		catch (IOException e)
+		{
+			System.out.println("Warning (ResultCache): unable to write a result to disk (" + e.getMessage() + ")");
+		}
+		finally
+		{
+			close(stream);
+		}
+	}
+	
+	/**
+	 * Reads (and removes) an entry from disk
+	 * 
+	 * @return the entry, or null if it cannot be read
+	 */
+	private Entry load(String key)
+	{
+		File file = disk.get(key);
+		long nbBytes = diskSizes.get(key);
+		
+		DataInputStream stream = null;
+		
+		try
+		{
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			
+			int type = stream.readInt();
+			if (type < 0 || type >= PLANE_TYPES.length) throw new IOException("invalid plane type");
+			
+			Object[][][] planes = new Object[stream.readInt()][stream.readInt()][stream.readInt()];
+			int length = stream.readInt();
+			
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			
+			for (Object[][] stack : planes)
+				for (Object[] channels : stack)
+					for (int c = 0; c < channels.length; c++)
+					{
+						channels[c] = Array.newInstance(PLANE_TYPES[type].getComponentType(), length);
+						read(stream, buffer, channels[c]);
+					}
+			
+			return new Entry(planes, nbBytes);
+		}
+		catch (IOException e)
+		{
+			System.out.println("Warning (ResultCache): unable to read a result from disk (" + e.getMessage() + ")");
+			return null;
+		}
+		finally
+		{
+			close(stream);
+			removeFromDisk(key);
+		}
+	}
+	
+	/**
+	 * Writes the raw values of a plane, through the given buffer
+	 */
+	private static void write(DataOutputStream stream, ByteBuffer buffer, Object plane) throws IOException
+	{
+		if (plane instanceof byte[])
+		{
+			stream.write((byte[]) plane);
+			return;
+		}
+		
+		int length = Array.getLength(plane);
+		int elementSize = elementSize(plane);
+		int chunk = buffer.capacity() / elementSize;
+		
+		for (int i = 0; i < length; i += chunk)
+		{
+			int n = Math.min(chunk, length - i);
+			
+			if (plane instanceof short[]) buffer.asShortBuffer().put((short[]) plane, i, n);
+			else if (plane instanceof int[]) buffer.asIntBuffer().put((int[]) plane, i, n);
+			else if (plane instanceof float[]) buffer.asFloatBuffer().put((float[]) plane, i, n);
+			else buffer.asDoubleBuffer().put((double[]) plane, i, n);
+			
+			stream.write(buffer.array(), 0, n * elementSize);
+		}
+	}
+	
+	/**
+	 * Reads the raw values of a plane, through the given buffer
+	 */
+	private static void read(DataInputStream stream, ByteBuffer buffer, Object plane) throws IOException
+	{
+		if (plane instanceof byte[])
+		{
+			stream.readFully((byte[]) plane);
+			return;
+		}
+		
+		int length = Array.getLength(plane);
+		int elementSize = elementSize(plane);
+		int chunk = buffer.capacity() / elementSize;
+		
+		for (int i = 0; i < length; i += chunk)
+		{
+			int n = Math.min(chunk, length - i);
+			
+			stream.readFully(buffer.array(), 0, n * elementSize);
+			
+			if (plane instanceof short[]) buffer.asShortBuffer().get((short[]) plane, i, n);
+			else if (plane instanceof int[]) buffer.asIntBuffer().get((int[]) plane, i, n);
+			else if (plane instanceof float[]) buffer.asFloatBuffer().get((float[]) plane, i, n);
+			else buffer.asDoubleBuffer().get((double[]) plane, i, n);
+		}
+	}
+	
+	/**
+	 * @return the number of bytes per element of the given plane
+	 */
+	private static int elementSize(Object plane)
+	{
+		return plane instanceof byte[] ? 1 : plane instanceof short[] ? 2 : plane instanceof double[] ? 8 : 4;
+	}
+	
+	/**
+	 * Restricts the access to the given file (or directory) to the current user
+	 */
+	private static void restrictToOwner(File file)
+	{
+		file.setReadable(false, false);
+		file.setWritable(false, false);
+		file.setExecutable(false, false);
+		file.setReadable(true, true);
+		file.setWritable(true, true);
+		if (file.isDirectory()) file.setExecutable(true, true);
+	}
+	
+	private void removeFromDisk(String key)
+	{
+		File file = disk.remove(key);
+		
+		if (file == null) return;
+		
+		diskBytes -= diskSizes.remove(key);
+		file.delete();
+	}
+	
+	private void trimDisk()
+	{
+		while (diskBytes > maxDiskBytes && !disk.isEmpty())
+			removeFromDisk(disk.keySet().iterator().next());
+	}
+	
+	private void clearDisk()
+	{
+		while (!disk.isEmpty())
+			removeFromDisk(disk.keySet().iterator().next());
+	}
+	
+	private static void close(Closeable stream)
+	{
+		if (stream == null) return;
+		
+		try
+		{
+			stream.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+}
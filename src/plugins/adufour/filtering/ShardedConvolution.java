@@ -0,0 +1,795 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import plugins.adufour.vars.lang.VarBoolean;
+
+/**
+ * Sharded execution of the separable convolution of {@link Convolution1D}, for volumes that are
+ * too large to be processed by a single process. <br>
+ * The volume is split along Z into slabs, and each slab is sent to a worker JVM (started on the
+ * local host, and connected through a loopback socket). Since slabs contain entire XY planes, the
+ * passes along X and Y are performed independently by each worker. Only the convolution along Z
+ * requires data from the neighboring slabs: the r slices (where r is the radius of the kernel
+ * along Z) on each side of a slab are relayed from the worker holding them before the last pass
+ * (the "halo exchange"). The filtered slabs are finally gathered into the output. <br>
+ * The input and output are streamed row by row (see {@link RowSource}, {@link RowSink} and
+ * {@link RawFile}), hence the coordinating process never holds the stack.
+ * 
+ */
+public class ShardedConvolution
+{
+	// worker commands
+	
+	private static final int	QUIT			= 0;
+	
+	private static final int	LOAD			= 1;
+	
+	private static final int	SLICE			= 2;
+	
+	private static final int	HALO			= 3;
+	
+	private static final int	COPY_HALO		= 4;
+	
+	private static final int	CONVOLVE_Z		= 5;
+	
+	private static final int	GATHER			= 6;
+	
+	/**
+	 * Time (in milliseconds) to wait for the workers to connect
+	 */
+	public static final int		CONNECT_TIMEOUT	= 60000;
+	
+	private final int			nbWorkers;
+	
+	private final List<String>	jvmArguments	= new ArrayList<String>();
+	
+	/**
+	 * Creates a new sharded convolution
+	 * 
+	 * @param nbWorkers
+	 *            the number of worker processes (i.e. the maximum number of slabs)
+	 * @throws IllegalArgumentException
+	 *             if the number of workers is not strictly positive
+	 */
+	public ShardedConvolution(int nbWorkers) throws IllegalArgumentException
+	{
+		if (nbWorkers < 1) throw new IllegalArgumentException("Invalid argument: at least one worker is needed");
+		
+		this.nbWorkers = nbWorkers;
+	}
+	
+	/**
+	 * Sets the arguments of the worker JVMs (e.g. "-Xmx4g")
+	 * 
+	 * @param arguments
+	 *            the JVM arguments
+	 */
+	public void setJvmArguments(String... arguments)
+	{
+		jvmArguments.clear();
+		jvmArguments.addAll(Arrays.asList(arguments));
+	}
+	
+	/**
+	 * Separable convolution of a stack held in memory, distributed over the worker processes (see
+	 * {@link #convolve(RowSource, RowSink, int, int, int, double[], double[], double[], boolean, VarBoolean)}
+	 * for stacks that do not fit in the memory of the coordinating process)
+	 * 
+	 * @param input
+	 *            the input stack, given as a [Z] array of XY planes
+	 * @param output
+	 *            the output stack, given as a [Z] array of XY planes (can be the input itself)
+	 * @param width
+	 *            the stack width
+	 * @param height
+	 *            the stack height
+	 * @param kernelX
+	 *            the kernel to use for convolution along X (or null)
+	 * @param kernelY
+	 *            the kernel to use for convolution along Y (or null)
+	 * @param kernelZ
+	 *            the kernel to use for convolution along Z (or null)
+	 * @param zeroEdges
+	 *            true if data outside the stack should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param stopFlag
+	 *            a flag that interrupts the process (before the output is written) when set to
+	 *            true
+	 * @throws IllegalArgumentException
+	 *             If all kernels are null or of even size
+	 * @throws IOException
+	 *             if the workers cannot be started, or if the communication with a worker fails
+	 */
+	public void convolve(final ChunkedDoubleArray[] input, final ChunkedDoubleArray[] output, final int width, int height, double[] kernelX, double[] kernelY, double[] kernelZ, boolean zeroEdges, VarBoolean stopFlag) throws IllegalArgumentException, IOException
+	{
+		RowSource source = new RowSource()
+		{
+			@Override
+			public void read(int z, int y, double[] row)
+			{
+				input[z].get((long) y * width, row, 0, width);
+			}
+		};
+		
+		RowSink sink = new RowSink()
+		{
+			@Override
+			public void write(int z, int y, double[] row)
+			{
+				output[z].set((long) y * width, row, 0, width);
+			}
+		};
+		
+		convolve(source, sink, width, height, input.length, kernelX, kernelY, kernelZ, zeroEdges, stopFlag);
+	}
+	
+	/**
+	 * Separable convolution of a stack, distributed over the worker processes. The coordinating
+	 * process holds no copy of the stack: it only relays rows from the source to the workers,
+	 * between the workers (halo exchange) and from the workers to the sink, such that the stack
+	 * is only held once, spread over the workers
+	 * 
+	 * @param input
+	 *            the source of the input rows (each row is read once)
+	 * @param output
+	 *            the sink of the output rows (each row is written once, after all the input rows
+	 *            have been read, hence the sink can write over the source)
+	 * @param width
+	 *            the stack width
+	 * @param height
+	 *            the stack height
+	 * @param depth
+	 *            the stack depth
+	 * @param kernelX
+	 *            the kernel to use for convolution along X (or null)
+	 * @param kernelY
+	 *            the kernel to use for convolution along Y (or null)
+	 * @param kernelZ
+	 *            the kernel to use for convolution along Z (or null)
+	 * @param zeroEdges
+	 *            true if data outside the stack should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param stopFlag
+	 *            a flag that interrupts the process (before the output is written) when set to
+	 *            true
+	 * @throws IllegalArgumentException
+	 *             If all kernels are null or of even size
+	 * @throws IOException
+	 *             if the workers cannot be started, if the communication with a worker fails, or
+	 *             if the source or sink fails
+	 */
+	public void convolve(RowSource input, RowSink output, int width, int height, int depth, double[] kernelX, double[] kernelY, double[] kernelZ, boolean zeroEdges, VarBoolean stopFlag) throws IllegalArgumentException, IOException
+	{
+		if (kernelX == null && kernelY == null && kernelZ == null)
+			throw new IllegalArgumentException("Invalid argument: provide at least one non-null kernel");
+		
+		for (double[] kernel : new double[][] { kernelX, kernelY, kernelZ })
+			if (kernel != null && kernel.length % 2 == 0)
+				throw new IllegalArgumentException("Invalid argument: kernels must have odd size");
+		
+		int nbShards = Math.min(nbWorkers, depth);
+		
+		if (depth == 1) kernelZ = null;
+		
+		int kRadiusZ = kernelZ == null ? 0 : kernelZ.length >> 1;
+		
+		// first slice of each slab
+		int[] zStart = new int[nbShards + 1];
+		for (int i = 0; i <= nbShards; i++)
+			zStart[i] = (int) ((long) depth * i / nbShards);
+		
+		double[] row = new double[width];
+		ByteBuffer buffer = ByteBuffer.allocate(width * 8);
+		
+		List<Process> processes = new ArrayList<Process>();
+		Socket[] sockets = new Socket[nbShards];
+		DataInputStream[] in = new DataInputStream[nbShards];
+		DataOutputStream[] out = new DataOutputStream[nbShards];
+		
+		ServerSocket server = new ServerSocket(0, nbShards, InetAddress.getByName(null));
+		
+		try
+		{
+			for (int i = 0; i < nbShards; i++)
+				processes.add(launch(server.getLocalPort()));
+			
+			server.setSoTimeout(CONNECT_TIMEOUT);
+			
+			for (int i = 0; i < nbShards; i++)
+			{
+				sockets[i] = server.accept();
+				in[i] = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream()));
+				out[i] = new DataOutputStream(new BufferedOutputStream(sockets[i].getOutputStream()));
+			}
+			
+			// 1. distribute the slabs (each worker convolves along X and Y upon reception)
+			
+			for (int i = 0; i < nbShards; i++)
+			{
+				out[i].writeInt(LOAD);
+				out[i].writeInt(width);
+				out[i].writeInt(height);
+				out[i].writeInt(zStart[i + 1] - zStart[i]);
+				writeKernel(out[i], kernelX);
+				writeKernel(out[i], kernelY);
+				writeKernel(out[i], kernelZ);
+				out[i].writeBoolean(zeroEdges);
+				
+				for (int z = zStart[i]; z < zStart[i + 1]; z++)
+					for (int y = 0; y < height; y++)
+					{
+						input.read(z, y, row);
+						writeRow(out[i], row, buffer);
+					}
+				
+				out[i].flush();
+				
+				if (stopFlag.getValue()) return;
+			}
+			
+			// 2. relay the halo slices, then convolve along Z
+			
+			if (kRadiusZ > 0)
+			{
+				for (int i = 0; i < nbShards; i++)
+				{
+					for (int h = 0; h < 2 * kRadiusZ; h++)
+					{
+						// global index of the halo slice (r slices below, then r slices above)
+						int z = h < kRadiusZ ? zStart[i] - kRadiusZ + h : zStart[i + 1] + h - kRadiusZ;
+						
+						if (z < 0 || z >= depth)
+						{
+							if (zeroEdges)
+							{
+								out[i].writeInt(HALO);
+								out[i].writeInt(h);
+								out[i].writeBoolean(false);
+								continue;
+							}
+							
+							z = Convolution1D.mirror(z, depth);
+						}
+						
+						int owner = 0;
+						while (z >= zStart[owner + 1])
+							owner++;
+						
+						if (owner == i)
+						{
+							out[i].writeInt(COPY_HALO);
+							out[i].writeInt(z - zStart[i]);
+							out[i].writeInt(h);
+							continue;
+						}
+						
+						out[owner].writeInt(SLICE);
+						out[owner].writeInt(z - zStart[owner]);
+						out[owner].flush();
+						
+						out[i].writeInt(HALO);
+						out[i].writeInt(h);
+						out[i].writeBoolean(true);
+						
+						for (int y = 0; y < height; y++)
+						{
+							readRow(in[owner], row, buffer);
+							writeRow(out[i], row, buffer);
+						}
+					}
+					
+					out[i].flush();
+				}
+				
+				for (int i = 0; i < nbShards; i++)
+				{
+					out[i].writeInt(CONVOLVE_Z);
+					out[i].flush();
+				}
+			}
+			
+			if (stopFlag.getValue()) return;
+			
+			// 3. gather the filtered slabs
+			
+			for (int i = 0; i < nbShards; i++)
+			{
+				out[i].writeInt(GATHER);
+				out[i].flush();
+				
+				for (int z = zStart[i]; z < zStart[i + 1]; z++)
+					for (int y = 0; y < height; y++)
+					{
+						readRow(in[i], row, buffer);
+						output.write(z, y, row);
+					}
+			}
+		}
+		finally
+		{
+			for (int i = 0; i < nbShards; i++)
+			{
+				if (sockets[i] == null) continue;
+				
+				try
+				{
+					out[i].writeInt(QUIT);
+					out[i].flush();
+				}
+				catch (IOException e)
+				{
+					// the worker is already gone
+				}
+				
+				sockets[i].close();
+			}
+			
+			server.close();
+			
+			for (Process process : processes)
+			{
+				try
+				{
+					process.waitFor();
+				}
+				catch (InterruptedException e)
+				{
+					process.destroy();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Source of the rows of the input stack
+	 */
+	public interface RowSource
+	{
+		/**
+		 * Reads one row of the input stack
+		 * 
+		 * @param z
+		 *            the slice index
+		 * @param y
+		 *            the row index
+		 * @param row
+		 *            the array to fill (of the stack width)
+		 * @throws IOException
+		 *             if the row cannot be read
+		 */
+		void read(int z, int y, double[] row) throws IOException;
+	}
+	
+	/**
+	 * Sink of the rows of the output stack
+	 */
+	public interface RowSink
+	{
+		/**
+		 * Writes one row of the output stack
+		 * 
+		 * @param z
+		 *            the slice index
+		 * @param y
+		 *            the row index
+		 * @param row
+		 *            the row values (of the stack width)
+		 * @throws IOException
+		 *             if the row cannot be written
+		 */
+		void write(int z, int y, double[] row) throws IOException;
+	}
+	
+	/**
+	 * Stack stored in a raw file of doubles (big-endian, one XY plane after another), e.g. for
+	 * stacks that do not fit in memory. The same file can be used as source and sink
+	 */
+	public static class RawFile implements RowSource, RowSink, Closeable
+	{
+		private final RandomAccessFile	file;
+		
+		private final int				width, height;
+		
+		private final ByteBuffer		buffer;
+		
+		/**
+		 * Opens (or creates) a raw stack file
+		 * 
+		 * @param file
+		 *            the file
+		 * @param width
+		 *            the stack width
+		 * @param height
+		 *            the stack height
+		 * @throws IOException
+		 *             if the file cannot be opened
+		 */
+		public RawFile(File file, int width, int height) throws IOException
+		{
+			this.file = new RandomAccessFile(file, "rw");
+			this.width = width;
+			this.height = height;
+			this.buffer = ByteBuffer.allocate(width * 8);
+		}
+		
+		@Override
+		public void read(int z, int y, double[] row) throws IOException
+		{
+			file.seek(((long) z * height + y) * width * 8);
+			file.readFully(buffer.array(), 0, width * 8);
+			buffer.clear();
+			buffer.asDoubleBuffer().get(row, 0, width);
+		}
+		
+		@Override
+		public void write(int z, int y, double[] row) throws IOException
+		{
+			buffer.clear();
+			buffer.asDoubleBuffer().put(row, 0, width);
+			file.seek(((long) z * height + y) * width * 8);
+			file.write(buffer.array(), 0, width * 8);
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			file.close();
+		}
+	}
+	
+	/**
+	 * Starts a new worker process
+	 */
+	private Process launch(int port) throws IOException
+	{
+		List<String> command = new ArrayList<String>();
+		
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(jvmArguments);
+		command.add("-cp");
+		command.add(getClassPath());
+		command.add(ShardedConvolution.class.getName());
+		command.add(String.valueOf(port));
+		
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		
+		final Process process = builder.start();
+		
+		// forward the worker output (e.g. errors) to the standard error
+		Thread drain = new Thread("worker output")
+		{
+			@Override
+			public void run()
+			{
+				InputStream stream = process.getInputStream();
+				byte[] bytes = new byte[1024];
+				
+				try
+				{
+					for (int n = stream.read(bytes); n >= 0; n = stream.read(bytes))
+						System.err.write(bytes, 0, n);
+				}
+				catch (IOException e)
+				{
+					// the worker has terminated
+				}
+			}
+		};
+		drain.setDaemon(true);
+		drain.start();
+		
+		return process;
+	}
+	
+	/**
+	 * @return the class path of the worker processes, i.e. the class path of the current process
+	 *         and the locations of the plug-in and Icy classes (which may be loaded by another
+	 *         class loader)
+	 */
+	private static String getClassPath()
+	{
+		LinkedHashSet<String> entries = new LinkedHashSet<String>();
+		
+		for (Class<?> type : new Class<?>[] { ShardedConvolution.class, Sequence.class, VarBoolean.class })
+		{
+			URL location = type.getProtectionDomain().getCodeSource() == null ? null : type.getProtectionDomain().getCodeSource().getLocation();
+			
+			if (location == null) continue;
+			
+			try
+			{
+				entries.add(new File(location.toURI()).getPath());
+			}
+			catch (URISyntaxException e)
+			{
+				entries.add(location.getPath());
+			}
+		}
+		
+		entries.addAll(Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator)));
+		
+		StringBuilder classPath = new StringBuilder();
+		
+		for (String entry : entries)
+		{
+			if (classPath.length() > 0) classPath.append(File.pathSeparator);
+			classPath.append(entry);
+		}
+		
+		return classPath.toString();
+	}
+	
+	private static void writeKernel(DataOutputStream out, double[] kernel) throws IOException
+	{
+		if (kernel == null)
+		{
+			out.writeInt(0);
+			return;
+		}
+		
+		out.writeInt(kernel.length);
+		for (double value : kernel)
+			out.writeDouble(value);
+	}
+	
+	private static double[] readKernel(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		
+		if (length == 0) return null;
+		
+		double[] kernel = new double[length];
+		for (int i = 0; i < length; i++)
+			kernel[i] = in.readDouble();
+		
+		return kernel;
+	}
+	
+	private static void writeRow(DataOutputStream out, double[] row, ByteBuffer buffer) throws IOException
+	{
+		buffer.clear();
+		buffer.asDoubleBuffer().put(row);
+		out.write(buffer.array(), 0, row.length * 8);
+	}
+	
+	private static void readRow(DataInputStream in, double[] row, ByteBuffer buffer) throws IOException
+	{
+		in.readFully(buffer.array(), 0, row.length * 8);
+		buffer.clear();
+		buffer.asDoubleBuffer().get(row);
+	}
+	
+	/**
+	 * Entry point of the worker processes
+	 * 
+	 * @param args
+	 *            the port of the coordinating process (on the local host)
+	 * @throws IOException
+	 *             if the communication with the coordinating process fails
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Socket socket = new Socket(InetAddress.getByName(null), Integer.parseInt(args[0]));
+		
+		try
+		{
+			new Worker(socket).run();
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Worker holding one slab of the stack
+	 */
+	private static class Worker
+	{
+		private final DataInputStream	in;
+		
+		private final DataOutputStream	out;
+		
+		private int						width, height;
+		
+		private double[]				kernelZ;
+		
+		private ChunkedDoubleArray[]	slab;
+		
+		/**
+		 * The halo slices (r below the slab, then r above the slab), null for zero slices
+		 */
+		private ChunkedDoubleArray[]	halo;
+		
+		private double[]				row;
+		
+		private ByteBuffer				buffer;
+		
+		Worker(Socket socket) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+		
+		void run() throws IOException
+		{
+			while (true)
+			{
+				switch (in.readInt())
+				{
+					case QUIT:
+						return;
+					
+					case LOAD:
+						load();
+						break;
+					
+					case SLICE:
+					{
+						ChunkedDoubleArray slice = slab[in.readInt()];
+						
+						for (int y = 0; y < height; y++)
+						{
+							slice.get((long) y * width, row, 0, width);
+							writeRow(out, row, buffer);
+						}
+						
+						out.flush();
+					}
+					break;
+					
+					case HALO:
+					{
+						int h = in.readInt();
+						
+						if (!in.readBoolean())
+						{
+							halo[h] = null;
+							break;
+						}
+						
+						halo[h] = new ChunkedDoubleArray((long) width * height);
+						
+						for (int y = 0; y < height; y++)
+						{
+							readRow(in, row, buffer);
+							halo[h].set((long) y * width, row, 0, width);
+						}
+					}
+					break;
+					
+					case COPY_HALO:
+					{
+						ChunkedDoubleArray slice = slab[in.readInt()];
+						int h = in.readInt();
+						
+						halo[h] = new ChunkedDoubleArray((long) width * height);
+						
+						for (int y = 0; y < height; y++)
+						{
+							slice.get((long) y * width, row, 0, width);
+							halo[h].set((long) y * width, row, 0, width);
+						}
+					}
+					break;
+					
+					case CONVOLVE_Z:
+						convolveZ();
+						break;
+					
+					case GATHER:
+					{
+						for (ChunkedDoubleArray slice : slab)
+							for (int y = 0; y < height; y++)
+							{
+								slice.get((long) y * width, row, 0, width);
+								writeRow(out, row, buffer);
+							}
+						
+						out.flush();
+					}
+					break;
+					
+					default:
+						throw new IOException("Unknown command");
+				}
+			}
+		}
+		
+		/**
+		 * Receives the slab and convolves it along X and Y
+		 */
+		private void load() throws IOException
+		{
+			width = in.readInt();
+			height = in.readInt();
+			int depth = in.readInt();
+			double[] kernelX = readKernel(in);
+			double[] kernelY = readKernel(in);
+			kernelZ = readKernel(in);
+			boolean zeroEdges = in.readBoolean();
+			
+			row = new double[width];
+			buffer = ByteBuffer.allocate(width * 8);
+			
+			slab = ChunkedDoubleArray.createStack(width, height, depth);
+			halo = new ChunkedDoubleArray[kernelZ == null ? 0 : kernelZ.length - 1];
+			
+			for (ChunkedDoubleArray slice : slab)
+				for (int y = 0; y < height; y++)
+				{
+					readRow(in, row, buffer);
+					slice.set((long) y * width, row, 0, width);
+				}
+			
+			if (kernelX != null || kernelY != null)
+				Convolution1D.convolve(slab, slab, width, height, kernelX, kernelY, null, zeroEdges);
+		}
+		
+		/**
+		 * Convolves the slab along Z, using the halo slices beyond the slab boundaries
+		 */
+		private void convolveZ()
+		{
+			int depth = slab.length;
+			int kRadius = kernelZ.length >> 1;
+			
+			// one row of each slice of the extended slab (halo below, slab, halo above)
+			double[][] rows = new double[depth + 2 * kRadius][width];
+			double[] sum = new double[width];
+			
+			for (int y = 0; y < height; y++)
+			{
+				long offset = (long) y * width;
+				
+				for (int e = 0; e < rows.length; e++)
+				{
+					ChunkedDoubleArray slice = e < kRadius ? halo[e] : e < kRadius + depth ? slab[e - kRadius] : halo[e - depth];
+					
+					if (slice == null)
+						Arrays.fill(rows[e], 0);
+					else
+						slice.get(offset, rows[e], 0, width);
+				}
+				
+				for (int z = 0; z < depth; z++)
+				{
+					Arrays.fill(sum, 0);
+					
+					for (int k = 0; k < kernelZ.length; k++)
+					{
+						double[] source = rows[z + k];
+						double weight = kernelZ[k];
+						
+						for (int x = 0; x < width; x++)
+							sum[x] += source[x] * weight;
+					}
+					
+					slab[z].set(offset, sum, 0, width);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+
+/**
+ * Compact representation of a convolution kernel, restricted to its non-zero coefficients (or
+ * "taps"). <br>
+ * Many kernels are mostly made of zeros (e.g. {@link Kernels2D#LAPLACE}, the zero row of
+ * {@link Kernels2D#SOBEL_X} or the zero center of {@link Kernels1D#GRADIENT}), and the
+ * convolution engines only need to evaluate the remaining taps. Each tap is stored as a
+ * displacement from the kernel center and a weight, and can be turned into linear offsets for a
+ * given row length (see {@link #getOffsets(int)}) to sweep the interior of an image without any
+ * border check.
+ * 
+ */
+public final class SparseKernel
+{
+	private final int		kWidth, kHeight, kDepth;
+	
+	/**
+	 * Displacement of each tap from the kernel center
+	 */
+	final int[]				dx, dy, dz;
+	
+	/**
+	 * Weight of each tap
+	 */
+	final double[]			weights;
+	
+	private SparseKernel(int kWidth, int kHeight, int kDepth, int[] dx, int[] dy, int[] dz, double[] weights)
+	{
+		this.kWidth = kWidth;
+		this.kHeight = kHeight;
+		this.kDepth = kDepth;
+		this.dx = dx;
+		this.dy = dy;
+		this.dz = dz;
+		this.weights = weights;
+	}
+	
+	/**
+	 * Compiles the given kernel into its non-zero taps
+	 * 
+	 * @param kernel
+	 *            the kernel to compile
+	 * @return the compiled kernel
+	 */
+	public static SparseKernel compile(IKernel kernel)
+	{
+		return compile(kernel.toSequence());
+	}
+	
+	/**
+	 * Compiles the given kernel into its non-zero taps. If the kernel has more than one channel or
+	 * time point, only the first c,t are used
+	 * 
+	 * @param kernel
+	 *            the kernel (1D, 2D or 3D) to compile
+	 * @return the compiled kernel
+	 */
+	public static SparseKernel compile(Sequence kernel)
+	{
+		return compile(kernel.getDataXYZAsDouble(0, 0), kernel.getSizeX(), kernel.getSizeY());
+	}
+	
+	/**
+	 * Compiles the given kernel into its non-zero taps
+	 * 
+	 * @param kernel
+	 *            the kernel, given as a [Z][XY] array of odd dimensions
+	 * @param sizeX
+	 *            the kernel width
+	 * @param sizeY
+	 *            the kernel height
+	 * @return the compiled kernel
+	 */
+	public static SparseKernel compile(double[][] kernel, int sizeX, int sizeY)
+	{
+		int kWidth = sizeX >> 1;
+		int kHeight = sizeY >> 1;
+		int kDepth = kernel.length >> 1;
+		
+		int nbTaps = 0;
+		for (double[] plane : kernel)
+			for (double value : plane)
+				if (value != 0) nbTaps++;
+		
+		int[] dx = new int[nbTaps];
+		int[] dy = new int[nbTaps];
+		int[] dz = new int[nbTaps];
+		double[] weights = new double[nbTaps];
+		
+		// taps are sorted by slice, row and column, such that memory is swept forward
+		for (int z = 0, tap = 0; z < kernel.length; z++)
+			for (int xy = 0; xy < kernel[z].length; xy++)
+			{
+				if (kernel[z][xy] == 0) continue;
+				
+				dx[tap] = xy % sizeX - kWidth;
+				dy[tap] = xy / sizeX - kHeight;
+				dz[tap] = z - kDepth;
+				weights[tap] = kernel[z][xy];
+				tap++;
+			}
+		
+		return new SparseKernel(kWidth, kHeight, kDepth, dx, dy, dz, weights);
+	}
+	
+	/**
+	 * @return the number of non-zero taps
+	 */
+	public int getNbTaps()
+	{
+		return weights.length;
+	}
+	
+	/**
+	 * @return the kernel half-width
+	 */
+	public int getRadiusX()
+	{
+		return kWidth;
+	}
+	
+	/**
+	 * @return the kernel half-height
+	 */
+	public int getRadiusY()
+	{
+		return kHeight;
+	}
+	
+	/**
+	 * @return the kernel half-depth
+	 */
+	public int getRadiusZ()
+	{
+		return kDepth;
+	}
+	
+	/**
+	 * @return the dense coefficients of a 2D kernel (i.e. a single slice), given as an XY array
+	 *         (zero taps included)
+	 */
+	double[] toArray2D()
+	{
+		int sizeX = 2 * kWidth + 1;
+		double[] data = new double[sizeX * (2 * kHeight + 1)];
+		
+		for (int tap = 0; tap < weights.length; tap++)
+			data[(dy[tap] + kHeight) * sizeX + dx[tap] + kWidth] = weights[tap];
+		
+		return data;
+	}
+	
+	/**
+	 * Computes the linear offset of each tap within a slice (the slice displacement is given
+	 * separately by the tap index along Z)
+	 * 
+	 * @param rowLength
+	 *            the number of elements per row of the data to convolve
+	 * @return the offset of each tap from the current element
+	 */
+	public int[] getOffsets(int rowLength)
+	{
+		int[] offsets = new int[weights.length];
+		
+		for (int tap = 0; tap < offsets.length; tap++)
+			offsets[tap] = dy[tap] * rowLength + dx[tap];
+		
+		return offsets;
+	}
+}
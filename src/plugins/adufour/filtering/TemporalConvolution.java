@@ -0,0 +1,271 @@
+package plugins.adufour.filtering;
+
+import icy.sequence.Sequence;
+import icy.type.collection.array.Array1DUtil;
+import plugins.adufour.filtering.FilterToolbox.Axis;
+import plugins.adufour.vars.lang.VarBoolean;
+
+/**
+ * Streaming separable convolution along time (T), optionally combined with the spatial (X, Y, Z)
+ * passes of {@link Convolution1D}. <br>
+ * Frames are pushed one at a time into a ring buffer of 2r+1 (spatially filtered) frames, where r
+ * is the radius of the temporal kernel. As soon as frame t is pushed, the filtered frame t-r is
+ * returned, such that a live acquisition can be filtered on the fly without waiting for the
+ * entire movie. The last r frames are retrieved with {@link #flush()} once the stream has ended.
+ * 
+ */
+public class TemporalConvolution
+{
+	private final int			width, height;
+	
+	private final double[]		kernelT, kernelX, kernelY, kernelZ;
+	
+	private final boolean		zeroEdges;
+	
+	private final int			radius;
+	
+	/**
+	 * Ring buffer of the last 2r+1 frames, each given as a [C][Z][XY] array
+	 */
+	private final double[][][][]	ring;
+	
+	/**
+	 * Temporary buffer for the spatial passes
+	 */
+	private double[][]			temp;
+	
+	private int					nbFrames	= 0;
+	
+	private int					nbEmitted	= 0;
+	
+	/**
+	 * Creates a new streaming filter
+	 * 
+	 * @param width
+	 *            the frame width
+	 * @param height
+	 *            the frame height
+	 * @param kernelT
+	 *            the odd-length kernel to use for convolution along T
+	 * @param kernelX
+	 *            the kernel to use for convolution along X (or null)
+	 * @param kernelY
+	 *            the kernel to use for convolution along Y (or null)
+	 * @param kernelZ
+	 *            the kernel to use for convolution along Z (or null)
+	 * @param zeroEdges
+	 *            true if data outside the sequence (and before the first / after the last frame)
+	 *            should be treated as zero, or false for mirroring condition
+	 * @throws IllegalArgumentException
+	 *             if a kernel has even size
+	 */
+	public TemporalConvolution(int width, int height, double[] kernelT, double[] kernelX, double[] kernelY, double[] kernelZ, boolean zeroEdges) throws IllegalArgumentException
+	{
+		for (double[] kernel : new double[][] { kernelT, kernelX, kernelY, kernelZ })
+			if (kernel != null && kernel.length % 2 == 0)
+				throw new IllegalArgumentException("Invalid argument: kernels must have odd size");
+		
+		this.width = width;
+		this.height = height;
+		this.kernelT = kernelT == null ? new double[] { 1 } : kernelT;
+		this.kernelX = kernelX;
+		this.kernelY = kernelY;
+		this.kernelZ = kernelZ;
+		this.zeroEdges = zeroEdges;
+		this.radius = this.kernelT.length >> 1;
+		this.ring = new double[this.kernelT.length][][][];
+	}
+	
+	/**
+	 * @return the number of frames between a pushed frame and the corresponding filtered frame
+	 *         (i.e. the radius of the temporal kernel)
+	 */
+	public int getLatency()
+	{
+		return radius;
+	}
+	
+	/**
+	 * Pushes a new frame into the stream. The frame is copied, hence the given array can be reused
+	 * by the caller
+	 * 
+	 * @param frame
+	 *            the new frame (at time t), given as a [C][Z][XY] array
+	 * @return the filtered frame at time t-r as a new [C][Z][XY] array, or null if fewer than r+1
+	 *         frames were pushed so far
+	 */
+	public double[][][] push(double[][][] frame)
+	{
+		double[][][] slot = ring[nbFrames % ring.length];
+		
+		if (slot == null || slot.length != frame.length || slot[0].length != frame[0].length)
+		{
+			slot = new double[frame.length][frame[0].length][width * height];
+			ring[nbFrames % ring.length] = slot;
+		}
+		
+		for (int c = 0; c < frame.length; c++)
+		{
+			for (int z = 0; z < frame[c].length; z++)
+				System.arraycopy(frame[c][z], 0, slot[c][z], 0, width * height);
+			
+			filterSpatial(slot, c);
+		}
+		
+		nbFrames++;
+		
+		return nbFrames > radius ? emit() : null;
+	}
+	
+	/**
+	 * Retrieves the remaining filtered frames once the stream has ended (the frames after the last
+	 * one are treated according to the edge condition). This method should be called repeatedly
+	 * until it returns null
+	 * 
+	 * @return the next filtered frame as a new [C][Z][XY] array, or null if all the frames have
+	 *         been retrieved
+	 */
+	public double[][][] flush()
+	{
+		return nbEmitted < nbFrames ? emit() : null;
+	}
+	
+	/**
+	 * Applies the spatial passes to the given channel of a frame (in-place)
+	 */
+	private void filterSpatial(double[][][] frame, int c)
+	{
+		double[][] data = frame[c];
+		
+		Axis[] axes = { Axis.X, Axis.Y, Axis.Z };
+		double[][] kernels = { kernelX, kernelY, data.length == 1 ? null : kernelZ };
+		
+		for (int axis = 0; axis < 3; axis++)
+		{
+			if (kernels[axis] == null) continue;
+			
+			if (temp == null || temp.length != data.length) temp = new double[data.length][width * height];
+			
+			Convolution1D.convolve1D(data, temp, width, height, 1, kernels[axis], axes[axis], zeroEdges);
+			
+			// swap buffers
+			double[][] swap = data;
+			data = temp;
+			temp = swap;
+		}
+		
+		frame[c] = data;
+	}
+	
+	/**
+	 * Computes the next filtered frame from the frames in the ring buffer
+	 */
+	private double[][][] emit()
+	{
+		int t = nbEmitted++;
+		
+		double[][][] first = ring[0];
+		double[][][] out = new double[first.length][first[0].length][width * height];
+		
+		for (int k = 0; k < kernelT.length; k++)
+		{
+			int inT = t - radius + k;
+			
+			if (inT < 0 || inT >= nbFrames)
+			{
+				if (zeroEdges) continue;
+				
+				inT = Convolution1D.mirror(inT, nbFrames);
+			}
+			
+			double[][][] frame = ring[inT % ring.length];
+			double weight = kernelT[k];
+			
+			if (weight == 0) continue;
+			
+			for (int c = 0; c < out.length; c++)
+				for (int z = 0; z < out[c].length; z++)
+				{
+					double[] in = frame[c][z];
+					double[] o = out[c][z];
+					
+					for (int xy = 0; xy < o.length; xy++)
+						o[xy] += in[xy] * weight;
+				}
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Spatio-temporal separable convolution of an entire sequence (in-place), streaming the frames
+	 * through a {@link TemporalConvolution} filter. Only 2r+1 frames are held in memory in double
+	 * precision
+	 * 
+	 * @param sequence
+	 *            the sequence to convolve
+	 * @param kernelX
+	 *            the kernel to use for convolution along X (or null)
+	 * @param kernelY
+	 *            the kernel to use for convolution along Y (or null)
+	 * @param kernelZ
+	 *            the kernel to use for convolution along Z (or null)
+	 * @param kernelT
+	 *            the kernel to use for convolution along T
+	 * @param zeroEdges
+	 *            true if data outside the sequence should be treated as zero, or false for
+	 *            mirroring condition
+	 * @param nbIter
+	 *            the number of filter iterations
+	 * @param stopFlag
+	 *            a flag that stops the process when set to true
+	 */
+	public static void convolve(Sequence sequence, double[] kernelX, double[] kernelY, double[] kernelZ, double[] kernelT, boolean zeroEdges, int nbIter, VarBoolean stopFlag)
+	{
+		int width = sequence.getSizeX();
+		int height = sequence.getSizeY();
+		boolean signed = sequence.getDataType_().isSigned();
+		
+		double[][][] frame = new double[sequence.getSizeC()][sequence.getSizeZ()][width * height];
+		
+		sequence.beginUpdate();
+		
+		try
+		{
+			for (int i = 0; i < nbIter; i++)
+			{
+				TemporalConvolution stream = new TemporalConvolution(width, height, kernelT, kernelX, kernelY, kernelZ, zeroEdges);
+				
+				int tOut = 0;
+				
+				for (int t = 0; t < sequence.getSizeT(); t++)
+				{
+					for (int c = 0; c < frame.length; c++)
+						for (int z = 0; z < frame[c].length; z++)
+							Array1DUtil.arrayToDoubleArray(sequence.getDataXY(t, z, c), frame[c][z], signed);
+					
+					// frame t-r can be overwritten since its data is held by the ring buffer
+					double[][][] filtered = stream.push(frame);
+					
+					if (filtered != null) write(filtered, sequence, tOut++, signed);
+					
+					if (stopFlag.getValue()) return;
+				}
+				
+				for (double[][][] filtered = stream.flush(); filtered != null; filtered = stream.flush())
+					write(filtered, sequence, tOut++, signed);
+			}
+		}
+		finally
+		{
+			sequence.endUpdate();
+		}
+	}
+	
+	private static void write(double[][][] frame, Sequence sequence, int t, boolean signed)
+	{
+		for (int c = 0; c < frame.length; c++)
+			for (int z = 0; z < frame[c].length; z++)
+				Array1DUtil.doubleArrayToSafeArray(frame[c][z], sequence.getDataXY(t, z, c), signed);
+	}
+}